@@ -0,0 +1,888 @@
+package org.nhahtdh;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Non-blocking HTTP client. Requests are served by a few event loop threads,
+ * each multiplexing many connections with a {@code Selector}, instead of one
+ * thread per connection.
+ * <p>
+ * - The request, the cookies, the naming of the received file and the
+ *   validation cache follow the same rules as HttpClient (an HttpClient is
+ *   used as the state of each request, but does not connect).
+ * - The response header is parsed by HttpResponseHeader. The message body is
+ *   written to disk as it arrives, with Content-Length, chunk-encoding or
+ *   end of connection.
+ * - HTTPS is implemented with {@code SSLEngine}, from a TlsContext which keeps
+ *   the sessions for resumption.
+ * - All requests to the same (scheme, host, port) are served by the same event
+ *   loop, with at most maxPerHost connections. Keep-alive connections are reused.
+ * - Redirections are followed.
+ * - An exchange fails with a SocketTimeoutException when the connection is
+ *   not established within ConnectionPool.CONNECT_TIMEOUT, or no progress is
+ *   made within ConnectionPool.READ_TIMEOUT. Idle connections are closed after
+ *   ConnectionPool.DEFAULT_IDLE_TIMEOUT. The timeouts are checked every second.
+ * - Content-coding is not negotiated, and downloads are not resumed.
+ * <p>
+ * The result of a request is delivered through a {@code Future}, and to an
+ * optional callback, which is run by the event loop thread and must not block.
+ * A request cancelled through its {@code Future} is stopped, and the callback
+ * is run by the cancelling thread.
+ *
+ * @author Hong Dai Thanh
+ *
+ */
+class AsyncHttpClient {
+	//---------
+	// Debug
+	//---------
+	/*
+	 * 0 - Exchanges and connections
+	 */
+	private static final boolean debug[] = {false};
+
+	//--------------
+	// Constants
+	//--------------
+	public static final int DEFAULT_NUM_LOOPS = 2;
+	public static final int DEFAULT_MAX_PER_HOST = ConnectionPool.DEFAULT_MAX_PER_HOST;
+	private static final int MAX_REDIRECTION = 5;
+	private static final int RECEIVE_BUFFER_SIZE = 16384;
+	/** Interval between the checks of the timeouts (ms) */
+	private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+	/**
+	 * Receives the result of a request.
+	 */
+	public interface Callback {
+		/**
+		 * @param file
+		 *        The received file, or null if the server returned a status code
+		 *        other than 200 (or 304 with a valid copy).
+		 */
+		void completed(File file);
+
+		void failed(Throwable cause);
+	}
+
+	//----------------
+	// Data members
+	//----------------
+	private final CookieStore cookieStore;
+	private final TlsContext tlsContext;
+	private final int maxPerHost;
+	private final EventLoop loops[];
+	private volatile ValidationCache validationCache;
+
+	//----------------
+	// Constructors
+	//----------------
+	/**
+	 * Create an asynchronous client with the default number of event loops.
+	 * @param cookieStore
+	 *        The cookie store shared with other clients.
+	 * @throws IOException
+	 */
+	public AsyncHttpClient(CookieStore cookieStore) throws IOException {
+		this(DEFAULT_NUM_LOOPS, DEFAULT_MAX_PER_HOST, cookieStore);
+	}
+
+	/**
+	 * Create an asynchronous client.
+	 * @param numLoops
+	 *        Number of event loop threads.
+	 * @param maxPerHost
+	 *        Maximum number of connections to the same (scheme, host, port).
+	 * @param cookieStore
+	 *        The cookie store shared with other clients.
+	 * @throws IOException
+	 */
+	public AsyncHttpClient(int numLoops, int maxPerHost, CookieStore cookieStore) throws IOException {
+		this(numLoops, maxPerHost, cookieStore, TlsContext.getDefault());
+	}
+
+	/**
+	 * Create an asynchronous client which opens the secured connections with the given context.
+	 * @param numLoops
+	 *        Number of event loop threads.
+	 * @param maxPerHost
+	 *        Maximum number of connections to the same (scheme, host, port).
+	 * @param cookieStore
+	 *        The cookie store shared with other clients.
+	 * @param tlsContext
+	 *        Context of the secured connections.
+	 * @throws IOException
+	 */
+	public AsyncHttpClient(int numLoops, int maxPerHost, CookieStore cookieStore, TlsContext tlsContext) throws IOException {
+		if (numLoops < 1)
+			throw new IllegalArgumentException("Invalid number of event loops: " + numLoops);
+		if (maxPerHost < 1)
+			throw new IllegalArgumentException("Invalid number of connections per host: " + maxPerHost);
+		this.cookieStore = cookieStore;
+		this.maxPerHost = maxPerHost;
+		this.tlsContext = tlsContext;
+		this.loops = new EventLoop[numLoops];
+		for (int i = 0; i < numLoops; i++) {
+			loops[i] = new EventLoop();
+			Thread thread = new Thread(loops[i], "AsyncHttpClient-" + i);
+			// Do not keep the JVM alive if close is not called.
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	//----------------
+	// Mutators
+	//----------------
+	/**
+	 * Set the cache of validators used for conditional GET requests.
+	 * @see HttpClient#setValidationCache(ValidationCache)
+	 */
+	public void setValidationCache(ValidationCache validationCache) {
+		this.validationCache = validationCache;
+	}
+
+	/**
+	 * Download a file with a GET request, without waiting.
+	 * @see #requestAsync(String, String, String, String, String, Callback)
+	 */
+	public Future<File> downloadAsync(String address, String workingDir, String fileName) throws URISyntaxException {
+		return requestAsync("GET", address, null, workingDir, fileName, null);
+	}
+
+	/**
+	 * Send a request without waiting for the response.
+	 * @param method
+	 *        GET or POST.
+	 * @param address
+	 *        Absolute URL.
+	 * @param postData
+	 *        The data to be uploaded. It will be ignored when GET method is used.
+	 * @param workingDir
+	 *        Directory where the file will be written to.
+	 * @param fileName
+	 *        Name of the file. The file will be automatically named if set to null.
+	 * @param callback
+	 *        Receives the result, or null.
+	 * @return a {@code Future} of the received file. The file is null if the server
+	 * returned a status code other than 200.
+	 * @throws URISyntaxException
+	 */
+	public Future<File> requestAsync(String method, String address, String postData, String workingDir, String fileName, Callback callback) throws URISyntaxException {
+		if (!method.equals("GET") && !method.equals("POST"))
+			throw new IllegalArgumentException("Unsupported or invalid method: " + method);
+		HttpClient state = new HttpClient(cookieStore);
+		state.setAcceptCompression(false);
+		state.setValidationCache(validationCache);
+		state.setWorkingDir(workingDir);
+		state.setURL(address, true);
+
+		Exchange exchange = new Exchange(state, method, postData, fileName, callback);
+		loopFor(state).submit(exchange);
+		return exchange.result;
+	}
+
+	/**
+	 * Stop the event loops. Requests in progress fail, and all connections are closed.
+	 */
+	public void close() {
+		for (EventLoop loop : loops)
+			loop.close();
+	}
+
+	//----------------
+	// Accessors
+	//----------------
+	private static String getKey(HttpClient state) {
+		return (state.isHttps() ? "https://" : "http://") + state.getHost().toLowerCase() + ":" + state.getPort();
+	}
+
+	private EventLoop loopFor(HttpClient state) {
+		return loops[(getKey(state).hashCode() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	/**
+	 * Connections and waiting exchanges of one (scheme, host, port). Only used
+	 * by the thread of the event loop.
+	 */
+	private static class Host {
+		/** Number of connections opened (idle and in use) */
+		int opened;
+		/** Idle connections. The most recently used connection is at the head. */
+		final LinkedList<NioConnection> idle = new LinkedList<NioConnection>();
+		/** Exchanges waiting for a connection */
+		final LinkedList<Exchange> waiting = new LinkedList<Exchange>();
+	}
+
+	/**
+	 * An event loop thread.
+	 */
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		/** Exchanges submitted by other threads, to be started by the loop */
+		private final ConcurrentLinkedQueue<Exchange> submitted;
+		/** Exchanges cancelled by other threads, to be stopped by the loop */
+		private final ConcurrentLinkedQueue<Exchange> cancelled;
+		private final HashMap<String, Host> hosts;
+		private volatile boolean closed;
+
+		EventLoop() throws IOException {
+			this.selector = Selector.open();
+			this.submitted = new ConcurrentLinkedQueue<Exchange>();
+			this.cancelled = new ConcurrentLinkedQueue<Exchange>();
+			this.hosts = new HashMap<String, Host>();
+		}
+
+		void submit(Exchange exchange) {
+			submitted.add(exchange);
+			selector.wakeup();
+			// The loop may have stopped before taking the exchange.
+			if (closed)
+				failSubmitted();
+		}
+
+		void cancel(Exchange exchange) {
+			cancelled.add(exchange);
+			selector.wakeup();
+		}
+
+		void close() {
+			closed = true;
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				long nextCheck = System.currentTimeMillis() + TIMEOUT_CHECK_INTERVAL;
+				while (!closed) {
+					selector.select(Math.max(1, nextCheck - System.currentTimeMillis()));
+
+					Exchange exchange;
+					while ((exchange = submitted.poll()) != null)
+						start(exchange);
+					while ((exchange = cancelled.poll()) != null)
+						stop(exchange);
+
+					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						Object attachment = key.attachment();
+						if (attachment instanceof Exchange)
+							((Exchange) attachment).step();
+						else if (attachment instanceof NioConnection && key.isValid())
+							// An idle connection is readable: the server has closed it.
+							discard((NioConnection) attachment);
+					}
+
+					long now = System.currentTimeMillis();
+					if (now >= nextCheck) {
+						expire(now);
+						nextCheck = now + TIMEOUT_CHECK_INTERVAL;
+					}
+				}
+			} catch (IOException e) {
+				// The selector is broken.
+				e.printStackTrace();
+			} finally {
+				closed = true;
+				for (SelectionKey key : selector.keys()) {
+					Object attachment = key.attachment();
+					if (attachment instanceof Exchange)
+						((Exchange) attachment).fail(new IOException("Client closed"));
+					else if (attachment instanceof NioConnection)
+						((NioConnection) attachment).close();
+				}
+				for (Host host : hosts.values())
+					for (Exchange exchange : host.waiting)
+						exchange.result.fail(new IOException("Client closed"));
+				failSubmitted();
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// Ignore.
+				}
+			}
+		}
+
+		private void failSubmitted() {
+			Exchange exchange;
+			while ((exchange = submitted.poll()) != null)
+				exchange.result.fail(new IOException("Client closed"));
+		}
+
+		private Host getHost(String key) {
+			Host host = hosts.get(key);
+			if (host == null)
+				hosts.put(key, host = new Host());
+			return host;
+		}
+
+		/**
+		 * Give the exchange a connection, or queue it if the host has maxPerHost
+		 * connections in use.
+		 */
+		void start(Exchange exchange) {
+			// Announce the loop before checking, so that a concurrent cancel reaches either the check or the loop.
+			exchange.loop = this;
+			if (exchange.result.isCancelled())
+				return;
+			String key = getKey(exchange.state);
+			Host host = getHost(key);
+			NioConnection connection = host.idle.poll();
+			if (connection == null) {
+				if (host.opened >= maxPerHost) {
+					host.waiting.add(exchange);
+					return;
+				}
+				try {
+					connection = new NioConnection(key, exchange.state.getHost(), exchange.state.getPort(), exchange.state.isHttps() ? tlsContext : null);
+					connection.selectionKey = connection.channel.register(selector, 0);
+				} catch (IOException e) {
+					if (connection != null)
+						connection.close();
+					exchange.fail(e);
+					return;
+				}
+				host.opened++;
+				if (debug[0])
+					System.out.println("New connection to " + key);
+			}
+			exchange.begin(connection);
+		}
+
+		/**
+		 * Stop a cancelled exchange, if it is still served by this loop.
+		 */
+		private void stop(Exchange exchange) {
+			if (exchange.loop != this)
+				// Moved to another loop by a redirection. That loop has seen the cancellation when starting it.
+				return;
+			if (exchange.hasConnection())
+				exchange.fail(new CancellationException());
+			else
+				getHost(getKey(exchange.state)).waiting.remove(exchange);
+		}
+
+		/**
+		 * Fail the exchanges which have not made progress in time, and close the
+		 * connections which have been idle for too long.
+		 */
+		private void expire(long now) {
+			// Failing an exchange may open a connection, which changes the keys.
+			for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+				if (!key.isValid())
+					continue;
+				Object attachment = key.attachment();
+				if (attachment instanceof Exchange) {
+					Exchange exchange = (Exchange) attachment;
+					if (now >= exchange.deadline) {
+						String reason = exchange.isConnecting() ? "Connection not established in " + ConnectionPool.CONNECT_TIMEOUT
+							: "No data received in " + ConnectionPool.READ_TIMEOUT;
+						exchange.fail(new SocketTimeoutException(reason + " ms: " + exchange.state.getURL()));
+					}
+				} else if (attachment instanceof NioConnection) {
+					NioConnection connection = (NioConnection) attachment;
+					if (now - connection.lastUsed >= ConnectionPool.DEFAULT_IDLE_TIMEOUT)
+						discard(connection);
+				}
+			}
+		}
+
+		/**
+		 * Keep the connection for the next exchange to the same host.
+		 */
+		void release(NioConnection connection) {
+			Host host = getHost(connection.key);
+			connection.reused = true;
+			connection.lastUsed = System.currentTimeMillis();
+			connection.selectionKey.attach(connection);
+			connection.selectionKey.interestOps(SelectionKey.OP_READ);
+			host.idle.addFirst(connection);
+			if (!host.waiting.isEmpty())
+				start(host.waiting.poll());
+		}
+
+		/**
+		 * Close the connection, and let a waiting exchange open another one.
+		 */
+		void discard(NioConnection connection) {
+			Host host = getHost(connection.key);
+			host.idle.remove(connection);
+			connection.selectionKey.cancel();
+			connection.close();
+			host.opened--;
+			if (!host.waiting.isEmpty())
+				start(host.waiting.poll());
+		}
+	}
+
+	/**
+	 * One request and its response, including redirections. Only used by the
+	 * thread of the event loop of the current host.
+	 */
+	private class Exchange {
+		private static final int CONNECTING = 0, SENDING = 1, HEADER = 2, BODY = 3;
+		private static final int BODY_LENGTH = 0, BODY_UNTIL_EOF = 1, CHUNK_SIZE = 2, CHUNK_DATA = 3, CHUNK_END = 4, TRAILER = 5;
+
+		final HttpClient state;
+		final Result result;
+		private String method;
+		private String postData;
+		private final String fileName;
+		private int numRedirections;
+
+		private NioConnection connection;
+		/** Loop serving the exchange. Written by the loop, read by the thread which cancels the exchange. */
+		volatile EventLoop loop;
+		/** Time by which the exchange must make progress */
+		long deadline;
+		private int phase;
+		private ByteBuffer request;
+		private final ByteBuffer receiveBuffer;
+		/** Whether any byte of the response has been received on the connection */
+		private boolean responseStarted;
+
+		// Response header
+		private final ByteArrayOutputStream headerBytes;
+		private int headerLineLength;
+		private boolean headerStarted;
+		private HttpResponseHeader header;
+
+		// Message body
+		private int bodyMode;
+		private long remaining;
+		private final StringBuilder lineBuilder;
+		private File outFile;
+		private FileChannel toFile;
+
+		Exchange(HttpClient state, String method, String postData, String fileName, Callback callback) {
+			this.state = state;
+			this.method = method;
+			this.postData = postData;
+			this.fileName = fileName;
+			this.result = new Result(this, callback);
+			this.receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+			this.headerBytes = new ByteArrayOutputStream();
+			this.lineBuilder = new StringBuilder();
+		}
+
+		/**
+		 * Send the request on the connection.
+		 */
+		void begin(NioConnection connection) {
+			this.connection = connection;
+			connection.selectionKey.attach(this);
+			this.phase = CONNECTING;
+			this.responseStarted = false;
+			this.headerBytes.reset();
+			this.headerStarted = false;
+			this.headerLineLength = 0;
+			this.receiveBuffer.clear();
+			this.request = state.getRequest(method, postData);
+			if (debug[0])
+				System.out.println((connection.reused ? "Reusing connection for " : "Requesting ") + state.getURL());
+			step();
+		}
+
+		/**
+		 * Move the exchange forward as far as possible without blocking.
+		 */
+		@SuppressWarnings("fallthrough") // Each phase continues into the next one once it is done.
+		void step() {
+			// The exchange is only stepped when the connection is ready, or when it begins.
+			deadline = System.currentTimeMillis() + (isConnecting() ? ConnectionPool.CONNECT_TIMEOUT : ConnectionPool.READ_TIMEOUT);
+			try {
+				switch (phase) {
+				case CONNECTING:
+					if (!connection.connect())
+						break;
+					phase = SENDING;
+					// Continue.
+				case SENDING:
+					if (!connection.write(request))
+						break;
+					phase = HEADER;
+					// Continue.
+				default:
+					// HEADER and BODY
+					receive();
+				}
+				if (connection != null && connection.selectionKey.attachment() == this)
+					connection.selectionKey.interestOps(connection.getInterestOps());
+			} catch (IOException e) {
+				retryOrFail(e);
+			} catch (RuntimeException e) {
+				fail(e);
+			}
+		}
+
+		boolean hasConnection() {
+			return connection != null;
+		}
+
+		/**
+		 * @return whether the TCP connection is not established yet.
+		 */
+		boolean isConnecting() {
+			return connection != null && connection.channel.isConnectionPending();
+		}
+
+		/**
+		 * Read and process the response until no more bytes are available.
+		 */
+		private void receive() throws IOException {
+			while (connection != null) {
+				int n = connection.read(receiveBuffer);
+				if (n == 0)
+					return;
+				if (n < 0) {
+					endOfStream();
+					return;
+				}
+				responseStarted = true;
+				receiveBuffer.flip();
+				while (connection != null && receiveBuffer.hasRemaining()) {
+					if (phase == HEADER)
+						readHeader();
+					else
+						readBody();
+				}
+				receiveBuffer.compact();
+			}
+		}
+
+		private void endOfStream() throws IOException {
+			if (phase == BODY && bodyMode == BODY_UNTIL_EOF) {
+				// The body ends with the connection.
+				loop.discard(connection);
+				connection = null;
+				endBody();
+			} else if (!responseStarted)
+				throw new EOFException("Connection closed before the response");
+			else
+				throw new EOFException("Connection closed before the end of the response");
+		}
+
+		/**
+		 * Collect the bytes of the header until the empty line.
+		 */
+		private void readHeader() throws IOException {
+			while (receiveBuffer.hasRemaining()) {
+				byte b = receiveBuffer.get();
+				headerBytes.write(b);
+				if (b == '\n') {
+					if (headerLineLength == 0 && headerStarted) {
+						processHeader();
+						return;
+					}
+					headerStarted |= headerLineLength > 0;
+					headerLineLength = 0;
+				} else if (b != '\r')
+					headerLineLength++;
+			}
+		}
+
+		private void processHeader() throws IOException {
+			header = new HttpResponseHeader();
+			header.parse(headerBytes.toByteArray(), 0, headerBytes.size());
+			headerBytes.reset();
+			headerStarted = false;
+			state.acceptHeader(header);
+			int statusCode = header.getStatusCode();
+
+			if (statusCode / 100 == 1) {
+				// An interim response. The final response follows.
+				return;
+			}
+			phase = BODY;
+			outFile = null;
+			toFile = null;
+
+			// Get the framing of the body. See HttpClient.readBody for the assumptions.
+			long contentLength = header.contentLength();
+			if (header.hasTransferEncoding()) {
+				if (!header.isChunked())
+					throw new IOException("Unsupported transfer encoding: " + header.getFirstValue("Transfer-Encoding"));
+				bodyMode = CHUNK_SIZE;
+				lineBuilder.setLength(0);
+			} else if (statusCode == 204 || statusCode == 304 || method.equals("HEAD")) {
+				bodyMode = BODY_LENGTH;
+				remaining = 0;
+			} else if (contentLength >= 0) {
+				bodyMode = BODY_LENGTH;
+				remaining = contentLength;
+			} else if (!state.isKeepAlive()) {
+				bodyMode = BODY_UNTIL_EOF;
+			} else {
+				bodyMode = BODY_LENGTH;
+				remaining = 0;
+			}
+
+			if (statusCode == 200) {
+				outFile = state.createBodyFile(fileName);
+				toFile = new FileOutputStream(outFile).getChannel();
+			} else if (statusCode != 304 && statusCode != 204 && !isRedirection(statusCode))
+				System.err.println(state.getURL() + ": " + statusCode + " " + header.getReason());
+
+			if (bodyMode == BODY_LENGTH && remaining == 0)
+				endBody();
+		}
+
+		/**
+		 * Write the bytes of the body to the file, removing the chunk-encoding.
+		 */
+		private void readBody() throws IOException {
+			switch (bodyMode) {
+			case BODY_UNTIL_EOF:
+				write(receiveBuffer.remaining());
+				break;
+			case BODY_LENGTH:
+			case CHUNK_DATA:
+				// Math.min: The result is always in int range so the conversion is safe.
+				write((int) Math.min(remaining, receiveBuffer.remaining()));
+				if (remaining > 0)
+					break;
+				if (bodyMode == BODY_LENGTH)
+					endBody();
+				else
+					bodyMode = CHUNK_END;
+				break;
+			default:
+				// CHUNK_SIZE, CHUNK_END and TRAILER are lines.
+				if (!readLine())
+					break;
+				if (bodyMode == CHUNK_SIZE) {
+					if ((remaining = HttpClient.parseChunkSize(lineBuilder)) == 0)
+						// Last chunk (zero chunk) encountered.
+						bodyMode = TRAILER;
+					else
+						bodyMode = CHUNK_DATA;
+				} else if (bodyMode == CHUNK_END)
+					// CRLF that terminates chunk data.
+					bodyMode = CHUNK_SIZE;
+				else if (HttpClient.isBlank(lineBuilder))
+					// The CRLF that terminates the whole chunk body.
+					endBody();
+				lineBuilder.setLength(0);
+			}
+		}
+
+		/**
+		 * Collect the bytes of a line of the chunk-encoding.
+		 * @return whether the line is complete.
+		 */
+		private boolean readLine() {
+			while (receiveBuffer.hasRemaining()) {
+				char c = (char) (receiveBuffer.get() & 0xff);
+				if (c == '\n')
+					return true;
+				if (c != '\r')
+					lineBuilder.append(c);
+			}
+			return false;
+		}
+
+		private void write(int length) throws IOException {
+			if (toFile != null) {
+				ByteBuffer slice = receiveBuffer.duplicate();
+				slice.limit(slice.position() + length);
+				while (slice.hasRemaining())
+					toFile.write(slice);
+			}
+			receiveBuffer.position(receiveBuffer.position() + length);
+			remaining -= length;
+		}
+
+		/**
+		 * The response is complete. Return the connection, and complete the
+		 * exchange or follow the redirection.
+		 */
+		private void endBody() throws IOException {
+			if (toFile != null) {
+				toFile.close();
+				toFile = null;
+			}
+
+			// The connection can be reused if the response has been read exactly.
+			if (connection != null) {
+				NioConnection done = connection;
+				connection = null;
+				if (state.isKeepAlive() && !receiveBuffer.hasRemaining())
+					loop.release(done);
+				else
+					loop.discard(done);
+			}
+
+			int statusCode = header.getStatusCode();
+			switch (statusCode) {
+			case 200:
+				state.completeBody(outFile);
+				result.complete(outFile);
+				break;
+			case 304:
+				// Our copy is still valid.
+				result.complete(state.getNotModifiedFile());
+				break;
+			case 301:
+			case 302:
+			case 307:
+				if (++numRedirections >= MAX_REDIRECTION) {
+					result.fail(new SocketException("Maximum number of redirections reached"));
+					break;
+				}
+				// See HttpClient.request for the change of method.
+				if (statusCode == 302 && method.equals("POST")) {
+					method = "GET";
+					postData = null;
+				}
+				try {
+					state.setURL(header.getFirstValue("Location"), true);
+				} catch (URISyntaxException e) {
+					result.fail(e);
+					break;
+				}
+				if (debug[0])
+					System.out.println("Redirecting to " + state.getURL());
+				// The new host may be served by another event loop.
+				loopFor(state).submit(this);
+				break;
+			default:
+				result.complete(null);
+			}
+		}
+
+		/**
+		 * The server may have closed the idle connection before we reuse it. In
+		 * that case, retry with another connection. Otherwise, fail the exchange.
+		 */
+		private void retryOrFail(IOException e) {
+			if (connection != null && connection.reused && !responseStarted && phase != BODY) {
+				if (debug[0])
+					System.out.println("Stale connection discarded. Retrying...");
+				NioConnection stale = connection;
+				connection = null;
+				loop.discard(stale);
+				loop.start(this);
+			} else
+				fail(e);
+		}
+
+		void fail(Throwable cause) {
+			if (toFile != null) {
+				try {
+					toFile.close();
+				} catch (IOException e) {
+					// Ignore.
+				}
+				toFile = null;
+				// Do not leave a truncated file behind.
+				outFile.delete();
+			}
+			if (connection != null) {
+				NioConnection broken = connection;
+				connection = null;
+				loop.discard(broken);
+			}
+			result.fail(cause);
+		}
+	}
+
+	private static boolean isRedirection(int statusCode) {
+		return statusCode == 301 || statusCode == 302 || statusCode == 307;
+	}
+
+	/**
+	 * Future of the received file, completed by the event loop.
+	 */
+	private static class Result implements Future<File> {
+		private final Exchange exchange;
+		private final CountDownLatch done;
+		private final Callback callback;
+		// Guarded by this.
+		private File file;
+		private Throwable cause;
+		private volatile boolean cancelled;
+
+		Result(Exchange exchange, Callback callback) {
+			this.exchange = exchange;
+			this.done = new CountDownLatch(1);
+			this.callback = callback;
+		}
+
+		void complete(File file) {
+			synchronized (this) {
+				if (done.getCount() == 0)
+					return;
+				this.file = file;
+				done.countDown();
+			}
+			if (callback != null)
+				callback.completed(file);
+		}
+
+		void fail(Throwable cause) {
+			synchronized (this) {
+				if (done.getCount() == 0)
+					return;
+				this.cause = cause;
+				done.countDown();
+			}
+			if (callback != null)
+				callback.failed(cause);
+		}
+
+		/**
+		 * Stop the exchange. The connection it uses is closed, and the file it
+		 * was writing is deleted. The exchange is stopped whether or not
+		 * mayInterruptIfRunning is set, since no thread is blocked on it.
+		 */
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized (this) {
+				if (done.getCount() == 0)
+					return false;
+				cancelled = true;
+				done.countDown();
+			}
+			// Tell the loop after setting the flag, so that a loop starting the exchange sees either.
+			EventLoop loop = exchange.loop;
+			if (loop != null)
+				loop.cancel(exchange);
+			if (callback != null)
+				callback.failed(new CancellationException());
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public File get() throws InterruptedException, ExecutionException {
+			done.await();
+			return getResult();
+		}
+
+		public File get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit))
+				throw new TimeoutException();
+			return getResult();
+		}
+
+		private synchronized File getResult() throws ExecutionException {
+			if (cancelled)
+				throw new CancellationException();
+			if (cause != null)
+				throw new ExecutionException(cause);
+			return file;
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package org.nhahtdh;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.security.*;
+
+/**
+ * Content-addressed store of downloaded files. Each distinct content is kept
+ * once in the store directory, named after its SHA-256 digest, and the file in
+ * the forum folder refers to it.
+ * <p>
+ * The reference is a hard link when the Java runtime and the file system
+ * support it (java.nio.file.Files.createLink, looked up at run time), so the
+ * file in the forum folder looks like any other file. Otherwise, it is a small
+ * pointer entry next to where the file would be, named after the file with the
+ * .blob extension, which contains the path of the blob.
+ * <p>
+ * The digest is computed by the HTTP client while the body is written to disk
+ * (see {@link #newDigester()}). The store is safe for multithreaded access.
+ * 
+ * @author Hong Dai Thanh
+ *
+ */
+class BlobStore {
+	//---------
+	// Debug
+	//---------
+	/*
+	 * 0 - Stored and linked blobs
+	 */
+	private static final boolean debug[] = {false};
+	
+	//--------------
+	// Constants
+	//--------------
+	public static final String POINTER_FILE_EXTENSION = ".blob";
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final String POINTER_CHARSET = "UTF-8";
+	private static final int BUFFER_SIZE = 65536;
+	
+	/** Files.createLink(Path, Path), or null if not available */
+	private static final Method CREATE_LINK;
+	/** File.toPath(), or null if not available */
+	private static final Method TO_PATH;
+	static {
+		Method createLink = null, toPath = null;
+		try {
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			createLink = Class.forName("java.nio.file.Files").getMethod("createLink", pathClass, pathClass);
+			toPath = File.class.getMethod("toPath");
+		} catch (Exception e) {
+			// Java 6. Pointer entries are used.
+			createLink = toPath = null;
+		}
+		CREATE_LINK = createLink;
+		TO_PATH = toPath;
+	}
+	
+	//----------------
+	// Data members
+	//----------------
+	private final File directory;
+	/** Whether hard links have failed once. Pointer entries are used from then on. */
+	private volatile boolean linkFailed;
+	
+	//----------------
+	// Constructors
+	//----------------
+	/**
+	 * Open the store in the given directory. The directory is created if it
+	 * does not exist.
+	 * @param path
+	 *        Path of the store directory.
+	 * @throws IOException
+	 */
+	public BlobStore(String path) throws IOException {
+		this.directory = new File(path);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory.getPath());
+		this.linkFailed = CREATE_LINK == null;
+	}
+	
+	//----------------
+	// Mutators
+	//----------------
+	/**
+	 * Move a received file into the store, and put a reference to the blob in
+	 * its place. If the store already holds the same content, the received file
+	 * is discarded.
+	 * @param file
+	 *        The received file.
+	 * @param digest
+	 *        SHA-256 digest of the file, or null to compute it from the file.
+	 * @return the reference: the file itself if it is a hard link to the blob,
+	 * or the pointer entry.
+	 * @throws IOException
+	 */
+	public File store(File file, byte digest[]) throws IOException {
+		if (digest == null)
+			digest = digest(file);
+		File blob = getBlob(digest);
+		synchronized (this) {
+			if (blob.exists()) {
+				if (!file.delete())
+					throw new IOException("Cannot delete " + file.getPath());
+				if (debug[0])
+					System.out.println(file.getPath() + " is already stored as " + blob.getPath());
+			} else if (!file.renameTo(blob))
+				throw new IOException("Cannot move " + file.getPath() + " to " + blob.getPath());
+		}
+		return link(blob, file);
+	}
+	
+	/**
+	 * Make another reference to the content referred to by the entry, without
+	 * copying the content.
+	 * @param entry
+	 *        A reference returned by store or duplicate, or a plain file.
+	 * @param to
+	 *        Where the new reference should be. Nothing is done if it (or its 
+	 *        pointer entry) already exists.
+	 * @return the new reference.
+	 * @throws IOException
+	 */
+	public File duplicate(File entry, File to) throws IOException {
+		File pointer = new File(to.getPath() + POINTER_FILE_EXTENSION);
+		if (to.exists())
+			return to;
+		if (pointer.exists())
+			return pointer;
+		
+		File blob;
+		if (entry.getName().endsWith(POINTER_FILE_EXTENSION))
+			blob = readPointer(entry);
+		else {
+			// A hard link to the blob, or a file downloaded without the store. Read it, but do not write it again.
+			blob = getBlob(digest(entry));
+			synchronized (this) {
+				if (!blob.exists())
+					copy(entry, blob);
+			}
+		}
+		return link(blob, to);
+	}
+	
+	/**
+	 * Create a digester for the content of a file. The HTTP client writes the
+	 * body to it as the body is written to disk.
+	 */
+	public Digester newDigester() {
+		try {
+			return new Digester(MessageDigest.getInstance(DIGEST_ALGORITHM));
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is always available.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Private helper method for store and duplicate. Refer to the blob from the
+	 * given path, with a hard link if possible, or with a pointer entry.
+	 */
+	private File link(File blob, File to) throws IOException {
+		if (!linkFailed) {
+			try {
+				CREATE_LINK.invoke(null, TO_PATH.invoke(to), TO_PATH.invoke(blob));
+				if (debug[0])
+					System.out.println(to.getPath() + " linked to " + blob.getPath());
+				return to;
+			} catch (InvocationTargetException e) {
+				if (to.exists())
+					throw new IOException("Cannot link " + to.getPath() + " to " + blob.getPath() + ": " + e.getCause());
+				// The file system does not support hard links. Do not try again.
+				linkFailed = true;
+			} catch (IllegalAccessException e) {
+				linkFailed = true;
+			}
+		}
+		
+		File pointer = new File(to.getPath() + POINTER_FILE_EXTENSION);
+		Writer out = new OutputStreamWriter(new FileOutputStream(pointer), POINTER_CHARSET);
+		try {
+			out.write(blob.getPath());
+		} finally {
+			out.close();
+		}
+		if (debug[0])
+			System.out.println(pointer.getPath() + " points to " + blob.getPath());
+		return pointer;
+	}
+	
+	//----------------
+	// Accessors
+	//----------------
+	/**
+	 * Get the blob a pointer entry refers to.
+	 * @param pointer
+	 *        The pointer entry.
+	 * @return the blob.
+	 * @throws IOException
+	 */
+	public File readPointer(File pointer) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(pointer), POINTER_CHARSET));
+		try {
+			String path = in.readLine();
+			if (path == null)
+				throw new IOException("Empty pointer entry: " + pointer.getPath());
+			return new File(path);
+		} finally {
+			in.close();
+		}
+	}
+	
+	private File getBlob(byte digest[]) {
+		StringBuilder name = new StringBuilder(digest.length * 2);
+		for (byte b : digest)
+			name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return new File(directory, name.toString());
+	}
+	
+	private byte[] digest(File file) throws IOException {
+		Digester digester = newDigester();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte data[] = new byte[BUFFER_SIZE];
+			int ti0; // Temporary variable
+			while ((ti0 = in.read(data)) >= 0)
+				digester.write(data, 0, ti0);
+		} finally {
+			in.close();
+		}
+		return digester.digest();
+	}
+	
+	private static void copy(File from, File to) throws IOException {
+		File temp = new File(to.getPath() + ".tmp");
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				byte data[] = new byte[BUFFER_SIZE];
+				int ti0; // Temporary variable
+				while ((ti0 = in.read(data)) >= 0)
+					out.write(data, 0, ti0);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		if (!temp.renameTo(to))
+			throw new IOException("Cannot move " + temp.getPath() + " to " + to.getPath());
+	}
+	
+	/**
+	 * Computes the digest of the bytes written to it. Nothing is kept.
+	 */
+	static class Digester extends OutputStream {
+		private final MessageDigest messageDigest;
+		
+		private Digester(MessageDigest messageDigest) {
+			this.messageDigest = messageDigest;
+		}
+		
+		public void write(int b) {
+			messageDigest.update((byte) b);
+		}
+		
+		public void write(byte b[], int off, int len) {
+			messageDigest.update(b, off, len);
+		}
+		
+		/**
+		 * Complete the digest.
+		 */
+		public byte[] digest() {
+			return messageDigest.digest();
+		}
+	}
+}
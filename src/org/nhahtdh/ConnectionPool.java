@@ -0,0 +1,323 @@
+package org.nhahtdh;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/**
+ * A pool of keep-alive connections, keyed by (scheme, host, port).
+ * <p>
+ * A connection is checked out for the duration of one request (or one batch
+ * of requests) and returned afterwards, so that the next request to the same
+ * host can reuse the connection instead of doing a new TCP (and TLS) handshake.
+ * <p>
+ * - Idle connections are closed after the idle timeout.
+ * - At most maxPerHost connections (idle or checked out) are opened to the same
+ *   (scheme, host, port). Checking out blocks until a connection is returned.
+ * - Secured connections are opened with the TlsContext of the pool, so that a
+ *   new connection to a host resumes the TLS session of an earlier one.
+ * - The pool is safe for multithreaded access. It is guarded by a {@code ReentrantLock}
+ *   rather than a monitor, so that a virtual thread waiting for a connection
+ *   does not pin its carrier thread.
+ * 
+ * @author Hong Dai Thanh
+ *
+ */
+class ConnectionPool {
+	//---------
+	// Debug
+	//---------
+	/*
+	 * 0 - Checkout and return
+	 */
+	private static final boolean debug[] = {false};
+	
+	//--------------
+	// Constants
+	//--------------
+	public static final int DEFAULT_MAX_PER_HOST = 8;
+	public static final long DEFAULT_IDLE_TIMEOUT = 15000; // ms
+	/** Time to wait for a new connection to be established */
+	public static final int CONNECT_TIMEOUT = 10000; // ms
+	/** Time a read on a connection waits for data before the exchange is given up */
+	public static final int READ_TIMEOUT = 30000; // ms
+	
+	/** Pool shared by clients which are not given a pool explicitly */
+	private static final ConnectionPool sharedPool = new ConnectionPool(DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT);
+	
+	//----------------
+	// Data members
+	//----------------
+	private final int maxPerHost;
+	private final long idleTimeout;
+	/** Context of the secured connections, or null to use the default context */
+	private final TlsContext tlsContext;
+	/** Idle connections of each key. The most recently returned connection is at the head. */
+	private final HashMap<String, LinkedList<Connection>> idle;
+	/** Number of connections (idle and checked out) opened for each key */
+	private final HashMap<String, Integer> opened;
+	private final ReentrantLock lock;
+	/** Signalled when a connection is returned or closed */
+	private final Condition returned;
+	
+	//----------------
+	// Constructors
+	//----------------
+	/**
+	 * Create a connection pool.
+	 * @param maxPerHost
+	 *        Maximum number of connections to the same (scheme, host, port).
+	 * @param idleTimeout
+	 *        Time in milliseconds after which an idle connection is closed.
+	 */
+	public ConnectionPool(int maxPerHost, long idleTimeout) {
+		this(maxPerHost, idleTimeout, null);
+	}
+	
+	/**
+	 * Create a connection pool which opens the secured connections with the given context.
+	 * @param maxPerHost
+	 *        Maximum number of connections to the same (scheme, host, port).
+	 * @param idleTimeout
+	 *        Time in milliseconds after which an idle connection is closed.
+	 * @param tlsContext
+	 *        Context of the secured connections, or null to use {@code TlsContext.getDefault()}.
+	 */
+	public ConnectionPool(int maxPerHost, long idleTimeout, TlsContext tlsContext) {
+		if (maxPerHost < 1)
+			throw new IllegalArgumentException("Invalid maximum number of connections per host: " + maxPerHost);
+		this.maxPerHost = maxPerHost;
+		this.idleTimeout = idleTimeout;
+		this.tlsContext = tlsContext;
+		this.idle = new HashMap<String, LinkedList<Connection>>();
+		this.opened = new HashMap<String, Integer>();
+		this.lock = new ReentrantLock();
+		this.returned = lock.newCondition();
+	}
+	
+	public static ConnectionPool getSharedPool() {
+		return sharedPool;
+	}
+	
+	//----------------
+	// Mutators
+	//----------------
+	/**
+	 * Check out a connection to the given host. A warm idle connection is returned
+	 * if there is one; otherwise a new connection is opened. If maxPerHost connections
+	 * are already opened, this method blocks until one of them is returned.
+	 * @param isHttps
+	 *        Whether the connection is secured.
+	 * @param host
+	 *        Host name.
+	 * @param port
+	 *        Port number.
+	 * @return a connection for exclusive use of the caller until it is returned.
+	 * @throws IOException
+	 */
+	public Connection checkout(boolean isHttps, String host, int port) throws IOException {
+		String key = getKey(isHttps, host, port);
+		lock.lock();
+		try {
+			while (true) {
+				LinkedList<Connection> idleList = idle.get(key);
+				long now = System.currentTimeMillis();
+				// Take the warmest idle connection which is still usable.
+				while (idleList != null && !idleList.isEmpty()) {
+					Connection conn = idleList.removeFirst();
+					if (now - conn.lastUsed < idleTimeout && !conn.socket.isClosed()) {
+						conn.reused = true;
+						if (debug[0])
+							System.out.println("Reuse connection to " + key);
+						return conn;
+					}
+					discard(conn);
+				}
+				
+				Integer count = opened.get(key);
+				if (count == null || count < maxPerHost) {
+					opened.put(key, count == null ? 1 : count + 1);
+					break;
+				}
+				
+				// Wait for a connection to be returned.
+				try {
+					returned.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for a connection to " + key);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		// Open the new connection outside the lock, since it may take a while.
+		try {
+			Connection conn = new Connection(key, isHttps ? getTlsContext() : null, host, port);
+			if (debug[0])
+				System.out.println("New connection to " + key);
+			return conn;
+		} catch (IOException e) {
+			lock.lock();
+			try {
+				decrementOpened(key);
+				returned.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Return a connection checked out from this pool.
+	 * @param conn
+	 *        The connection.
+	 * @param reusable
+	 *        Whether the connection can be reused. Pass {@code false} if the server
+	 *        closes the connection, or if the response is not fully read.
+	 */
+	public void release(Connection conn, boolean reusable) {
+		lock.lock();
+		try {
+			if (reusable && !conn.socket.isClosed()) {
+				conn.lastUsed = System.currentTimeMillis();
+				LinkedList<Connection> idleList = idle.get(conn.key);
+				if (idleList == null)
+					idle.put(conn.key, idleList = new LinkedList<Connection>());
+				idleList.addFirst(conn);
+				if (debug[0])
+					System.out.println("Connection to " + conn.key + " returned");
+			} else
+				discard(conn);
+			returned.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Close all idle connections.
+	 */
+	public void closeIdle() {
+		lock.lock();
+		try {
+			for (LinkedList<Connection> idleList : idle.values())
+				while (!idleList.isEmpty())
+					discard(idleList.removeFirst());
+			returned.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void discard(Connection conn) {
+		conn.close();
+		decrementOpened(conn.key);
+	}
+	
+	private void decrementOpened(String key) {
+		Integer count = opened.get(key);
+		if (count == null || count <= 1)
+			opened.remove(key);
+		else
+			opened.put(key, count - 1);
+	}
+	
+	/**
+	 * @return the context of the secured connections opened by this pool.
+	 * @throws IOException
+	 *         If no TLS implementation is available.
+	 */
+	public TlsContext getTlsContext() throws IOException {
+		return tlsContext != null ? tlsContext : TlsContext.getDefault();
+	}
+	
+	private static String getKey(boolean isHttps, String host, int port) {
+		return (isHttps ? "https://" : "http://") + host.toLowerCase() + ":" + port;
+	}
+	
+	/**
+	 * A connection to a host, with the streams used to send and receive messages.
+	 */
+	static class Connection {
+		final String key;
+		final Socket socket;
+		/** Channel of the socket, for plain connections. Null for secured connections. */
+		final SocketChannel channel;
+		/** Selector to wait for data while the channel is not blocking, or null */
+		private Selector selector;
+		final OutputStream send;
+		final RawStreamReader receive;
+		/** Whether the connection has been used for an earlier request */
+		boolean reused;
+		/** Time the connection is last returned to the pool */
+		long lastUsed;
+		
+		/**
+		 * Open a connection, with the handshake done if it is secured.
+		 * @param tlsContext
+		 *        Context of the secured connection, or null for a plain connection.
+		 */
+		private Connection(String key, TlsContext tlsContext, String host, int port) throws IOException {
+			this.key = key;
+			if (tlsContext != null) {
+				this.socket = tlsContext.createSocket(host, port, CONNECT_TIMEOUT, READ_TIMEOUT);
+				this.channel = null;
+			} else {
+				// Open through a channel, so that the message body can be transferred to file directly.
+				this.channel = SocketChannel.open();
+				this.socket = channel.socket();
+				try {
+					socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+					// Applies to the streams of the socket only. See awaitReadable for the channel.
+					socket.setSoTimeout(READ_TIMEOUT);
+				} catch (IOException e) {
+					channel.close();
+					throw e;
+				}
+			}
+			this.send = socket.getOutputStream();
+			this.receive = new RawStreamReader(socket.getInputStream());
+		}
+		
+		/**
+		 * Wait for data on the channel, which must be in non-blocking mode. Reads
+		 * on the channel itself are not bounded by the timeout of the socket.
+		 * @throws SocketTimeoutException
+		 *         If no data arrives within the read timeout.
+		 */
+		void awaitReadable() throws IOException {
+			if (selector == null) {
+				selector = Selector.open();
+				channel.register(selector, SelectionKey.OP_READ);
+			}
+			if (selector.select(READ_TIMEOUT) == 0)
+				throw new SocketTimeoutException("No data received in " + READ_TIMEOUT + " ms");
+			selector.selectedKeys().clear();
+		}
+		
+		/**
+		 * Put the channel back in blocking mode, for the streams of the socket.
+		 */
+		void restoreBlocking() throws IOException {
+			if (selector != null) {
+				// Closing the selector deregisters the channel, which cannot block while it is registered.
+				selector.close();
+				selector = null;
+			}
+			if (channel.isOpen())
+				channel.configureBlocking(true);
+		}
+		
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore. The connection is no longer used.
+			}
+		}
+	}
+}
@@ -0,0 +1,830 @@
+package org.nhahtdh;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+
+/**
+ * A pool of download workers. Each download is made with an {@code HttpClient}
+ * of the engine, and all the clients share the same cookie store, so that the
+ * session established by the login routine is used by every connection.
+ * <p>
+ * Downloads are submitted with {@code submit} and the result is collected
+ * through the returned {@code Future}. The order of completion is not
+ * guaranteed, so the caller should keep the futures in the order it needs.
+ * <p>
+ * In thread-per-task mode, every download runs on its own thread (a virtual
+ * thread if the Java runtime has them), and the number of downloads running
+ * against the same host is capped by a semaphore instead of by the size of
+ * the thread pool. The download code stays blocking.
+ * <p>
+ * An {@code HttpClient} is not safe for multithreaded access, so each client is
+ * used by one download at a time: it is taken from the idle clients when the
+ * download starts and put back when it completes. The clients only share state
+ * which is safe for multithreaded access (the cookie store, the connection
+ * pool, the validation cache and the blob store).
+ * <p>
+ * Single downloads can be hedged: if a download is still running after the
+ * 95th percentile of the recent download times, the same request is sent
+ * again on another connection, and the first response wins. The hedged
+ * request writes into a folder of its own, and its file is moved to the
+ * working directory only if it wins; the losing request is interrupted and
+ * its file is deleted. Both requests scan the page with their own copy of
+ * the scanner, and the results of the winner are copied into the scanner of
+ * the caller.
+ * 
+ * @author Hong Dai Thanh
+ *
+ */
+class CrawlEngine {
+	//---------
+	// Debug
+	//---------
+	/*
+	 * 0 - Worker activity
+	 */
+	private static final boolean debug[] = {false};
+	
+	//--------------
+	// Constants
+	//--------------
+	public static final int DEFAULT_NUM_WORKERS = 4;
+	private static final String VIRTUAL_THREAD_EXECUTOR_METHOD = "newVirtualThreadPerTaskExecutor";
+	private static final String HEDGE_FOLDER_PREFIX = "hedge-";
+	/** Number of recent download times the hedging delay is computed from */
+	private static final int LATENCY_WINDOW_SIZE = 256;
+	/** Minimum number of download times before any download is hedged */
+	private static final int MIN_LATENCY_SAMPLES = 20;
+	/** Lower bound of the hedging delay (ms) */
+	private static final long MIN_HEDGE_DELAY = 100;
+	/** Maximum fraction of the downloads which are hedged */
+	private static final double MAX_HEDGE_RATIO = 0.1;
+	/** Number of threads sending the hedged requests */
+	private static final int NUM_HEDGE_WORKERS = 2;
+	
+	//----------------
+	// Data members
+	//----------------
+	private final CookieStore cookieStore;
+	private final ExecutorService workers;
+	/** Clients which are not used by any download */
+	private final ConcurrentLinkedQueue<HttpClient> idleClients;
+	/** All clients created, so that their connections can be closed on shut down */
+	private final List<HttpClient> allClients;
+	/** Connection pool of the clients */
+	private final ConnectionPool pool;
+	/** Maximum number of downloads running against the same host in thread-per-task mode */
+	private final int maxPerHost;
+	/** Permits of each host in thread-per-task mode, null otherwise */
+	private final ConcurrentHashMap<String, Semaphore> hostPermits;
+	/** Number of requests pipelined by each worker in submitAll */
+	private final int pipelineDepth;
+	/** Whether the workers keep compressed files on disk as-is */
+	private volatile boolean keepCompressed;
+	/** Validators shared by the workers for conditional requests */
+	private volatile ValidationCache validationCache;
+	/** Whether interrupted downloads are resumed */
+	private volatile boolean resumable;
+	/** Store of the received files by content, shared by the workers */
+	private volatile BlobStore blobStore;
+	/** Whether the workers overwrite existing files with the same name */
+	private volatile boolean overwrite;
+	/** Limiter of the requests, shared by the workers */
+	private volatile Throttle throttle;
+	/** Policy of retrying failed downloads, shared by the workers */
+	private volatile RetryPolicy retryPolicy;
+	/** Starts the hedged requests, or null if downloads are not hedged */
+	private volatile ScheduledExecutorService hedgeTimer;
+	/**
+	 * Runs the hedged requests, or null if downloads are not hedged. A hedge is
+	 * due when the download is already late, so it does not queue behind the
+	 * downloads waiting for the workers.
+	 */
+	private volatile ExecutorService hedgeWorkers;
+	/**
+	 * Recent times of single downloads of scanned pages (the posts), and of other
+	 * files (the images and attachments). A large attachment takes far longer than
+	 * a page, so a download is only compared with the downloads of its kind.
+	 */
+	private final LatencyWindow pageLatencies, fileLatencies;
+	/** Number of single downloads, and number of hedged requests sent */
+	private final AtomicInteger numDownloads, numHedges;
+	/** Suffix of the folder of the next hedged request */
+	private final AtomicInteger nextHedgeFolder;
+	
+	//----------------
+	// Constructors
+	//----------------
+	/**
+	 * Create a crawl engine with the given number of workers.
+	 * @param numWorkers
+	 *        Number of workers, which is also the maximum number of concurrent connections.
+	 * @param cookieStore
+	 *        The cookie store shared by all workers.
+	 */
+	public CrawlEngine(int numWorkers, CookieStore cookieStore) {
+		this(numWorkers, 1, cookieStore);
+	}
+	
+	/**
+	 * Create a crawl engine with the given number of workers, each pipelining
+	 * the given number of requests.
+	 * @param numWorkers
+	 *        Number of workers, which is also the maximum number of concurrent connections.
+	 * @param pipelineDepth
+	 *        Number of requests sent back-to-back on one connection by submitAll. 1
+	 *        disables pipelining.
+	 * @param cookieStore
+	 *        The cookie store shared by all workers.
+	 */
+	public CrawlEngine(int numWorkers, int pipelineDepth, CookieStore cookieStore) {
+		this(numWorkers, pipelineDepth, cookieStore, false);
+	}
+	
+	/**
+	 * Create a crawl engine with a fixed number of workers, or in thread-per-task mode.
+	 * @param numWorkers
+	 *        Number of workers, which is also the maximum number of concurrent connections.
+	 *        In thread-per-task mode, maximum number of downloads running against the
+	 *        same host.
+	 * @param pipelineDepth
+	 *        Number of requests sent back-to-back on one connection by submitAll. 1
+	 *        disables pipelining.
+	 * @param cookieStore
+	 *        The cookie store shared by all workers. It must be safe for multithreaded
+	 *        access (the store of {@code CookieManager} is).
+	 * @param threadPerTask
+	 *        Whether each download runs on its own thread.
+	 */
+	public CrawlEngine(int numWorkers, int pipelineDepth, CookieStore cookieStore, boolean threadPerTask) {
+		if (numWorkers < 1)
+			throw new IllegalArgumentException("Invalid number of workers: " + numWorkers);
+		if (pipelineDepth < 1)
+			throw new IllegalArgumentException("Invalid pipeline depth: " + pipelineDepth);
+		this.cookieStore = cookieStore;
+		this.pipelineDepth = pipelineDepth;
+		this.maxPerHost = numWorkers;
+		if (threadPerTask) {
+			this.workers = newThreadPerTaskExecutor();
+			this.hostPermits = new ConcurrentHashMap<String, Semaphore>();
+			// The shared pool would cap the connections below maxPerHost.
+			this.pool = new ConnectionPool(Math.max(numWorkers, ConnectionPool.DEFAULT_MAX_PER_HOST), ConnectionPool.DEFAULT_IDLE_TIMEOUT);
+		} else {
+			this.workers = Executors.newFixedThreadPool(numWorkers);
+			this.hostPermits = null;
+			this.pool = ConnectionPool.getSharedPool();
+		}
+		this.idleClients = new ConcurrentLinkedQueue<HttpClient>();
+		this.allClients = Collections.synchronizedList(new ArrayList<HttpClient>());
+		this.pageLatencies = new LatencyWindow(LATENCY_WINDOW_SIZE);
+		this.fileLatencies = new LatencyWindow(LATENCY_WINDOW_SIZE);
+		this.numDownloads = new AtomicInteger();
+		this.numHedges = new AtomicInteger();
+		this.nextHedgeFolder = new AtomicInteger();
+	}
+	
+	/**
+	 * Create an executor which starts a virtual thread per task. Virtual threads
+	 * are looked up by reflection, since they only exist in recent Java runtimes;
+	 * otherwise, a platform thread is started (or reused) per task.
+	 */
+	private static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			Method method = Executors.class.getMethod(VIRTUAL_THREAD_EXECUTOR_METHOD);
+			return (ExecutorService) method.invoke(null);
+		} catch (NoSuchMethodException e) {
+			// Virtual threads are not available.
+		} catch (IllegalAccessException e) {
+			// Virtual threads are not available.
+		} catch (InvocationTargetException e) {
+			// Virtual threads are disabled (preview feature not enabled).
+		}
+		if (debug[0])
+			System.out.println("Virtual threads are not available. Using platform threads.");
+		return Executors.newCachedThreadPool();
+	}
+	
+	//----------------
+	// Mutators
+	//----------------
+	/**
+	 * Set whether the workers keep compressed files on disk as-is. Must be
+	 * called before any download is queued.
+	 * @see HttpClient#setKeepCompressed(boolean)
+	 */
+	public void setKeepCompressed(boolean keepCompressed) {
+		this.keepCompressed = keepCompressed;
+	}
+	
+	/**
+	 * Set the cache of validators used by the workers for conditional requests.
+	 * Must be called before any download is queued.
+	 * @see HttpClient#setValidationCache(ValidationCache)
+	 */
+	public void setValidationCache(ValidationCache validationCache) {
+		this.validationCache = validationCache;
+	}
+	
+	/**
+	 * Set whether the workers resume interrupted downloads. Must be called before
+	 * any download is queued.
+	 * @see HttpClient#setResumable(boolean)
+	 */
+	public void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+	
+	/**
+	 * Set the store where the workers keep received files by content. Must be
+	 * called before any download is queued.
+	 * @see HttpClient#setBlobStore(BlobStore)
+	 */
+	public void setBlobStore(BlobStore blobStore) {
+		this.blobStore = blobStore;
+	}
+	
+	/**
+	 * Set whether the workers overwrite existing files with the same name. Must
+	 * be called before any download is queued.
+	 * @see HttpClient#setOverwrite(boolean)
+	 */
+	public void setOverwrite(boolean overwrite) {
+		this.overwrite = overwrite;
+	}
+	
+	/**
+	 * Set the limiter of the requests of the workers. Must be called before any
+	 * download is queued.
+	 * @see HttpClient#setThrottle(Throttle)
+	 */
+	public void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+	
+	/**
+	 * Set the policy of retrying failed downloads. Must be called before any
+	 * download is queued.
+	 * @see HttpClient#setRetryPolicy(RetryPolicy)
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+	
+	/**
+	 * Set whether single downloads are hedged. Downloads pipelined by submitAll
+	 * are never hedged. Must be called before any download is queued.
+	 * @param hedging
+	 *        Whether to hedge single downloads.
+	 */
+	public void setHedging(boolean hedging) {
+		if (hedging && hedgeTimer == null) {
+			ThreadFactory daemons = new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "CrawlEngine-hedge");
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+			hedgeWorkers = Executors.newFixedThreadPool(NUM_HEDGE_WORKERS, daemons);
+			hedgeTimer = Executors.newSingleThreadScheduledExecutor(daemons);
+		} else if (!hedging && hedgeTimer != null) {
+			hedgeTimer.shutdown();
+			hedgeTimer = null;
+			hedgeWorkers.shutdown();
+			hedgeWorkers = null;
+		}
+	}
+	
+	/**
+	 * Take an idle client, or create a new one. The client must be given back
+	 * with releaseClient.
+	 */
+	private HttpClient acquireClient() {
+		HttpClient client = idleClients.poll();
+		if (client != null)
+			return client;
+		client = new HttpClient(cookieStore, pool);
+		configure(client);
+		allClients.add(client);
+		return client;
+	}
+	
+	/**
+	 * Apply the settings of the engine to the client.
+	 */
+	private void configure(HttpClient client) {
+		client.setPipelineDepth(pipelineDepth);
+		client.setKeepCompressed(keepCompressed);
+		client.setValidationCache(validationCache);
+		client.setResumable(resumable);
+		client.setCommitDeferred(false);
+		client.setBlobStore(blobStore);
+		client.setOverwrite(overwrite);
+		client.setThrottle(throttle);
+		client.setRetryPolicy(retryPolicy);
+	}
+	
+	private void releaseClient(HttpClient client) {
+		idleClients.add(client);
+	}
+	
+	/**
+	 * In thread-per-task mode, wait until fewer than maxPerHost downloads are
+	 * running against the host of the address.
+	 * @return the permits of the host, to be released when the download completes,
+	 * or null if the engine is not in thread-per-task mode.
+	 */
+	private Semaphore acquireHost(String address) throws URISyntaxException, InterruptedException {
+		if (hostPermits == null)
+			return null;
+		String host = new URI(address).getHost();
+		host = host == null ? "" : host.toLowerCase();
+		Semaphore permits = hostPermits.get(host);
+		if (permits == null) {
+			Semaphore newPermits = new Semaphore(maxPerHost);
+			if ((permits = hostPermits.putIfAbsent(host, newPermits)) == null)
+				permits = newPermits;
+		}
+		permits.acquire();
+		return permits;
+	}
+	
+	/**
+	 * Queue a download.
+	 * @param address
+	 *        Absolute URL of the file to be downloaded.
+	 * @param workingDir
+	 *        Directory where the file will be written to.
+	 * @param fileName
+	 *        Name of the file. The file will be automatically named if set to null.
+	 * @return a {@code Future} of the received file. The file is null if the server
+	 * returned a status code other than 200.
+	 */
+	public Future<File> submit(String address, String workingDir, String fileName) {
+		return submit(address, workingDir, fileName, null);
+	}
+	
+	/**
+	 * Queue a download, and run the scanner on the received page. The results of
+	 * the scanner can be read once the {@code Future} is done.
+	 * @param scanner
+	 *        The scanner to run on the received page, or null.
+	 * @see #submit(String, String, String)
+	 */
+	public Future<File> submit(final String address, final String workingDir, final String fileName, final PageScanner scanner) {
+		if (hedgeTimer != null) {
+			HedgedDownload download = new HedgedDownload(address, workingDir, fileName, scanner);
+			download.start();
+			return download;
+		}
+		return workers.submit(new Callable<File>() {
+			public File call() throws Exception {
+				Semaphore permits = acquireHost(address);
+				HttpClient client = acquireClient();
+				try {
+					client.setWorkingDir(workingDir);
+					client.setURL(address, true);
+					if (debug[0])
+						System.out.println(Thread.currentThread().getName() + ": " + address);
+					return client.download(fileName, scanner);
+				} finally {
+					releaseClient(client);
+					if (permits != null)
+						permits.release();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Queue a list of downloads to the same directory. The list is split into
+	 * batches of pipelineDepth downloads, and each batch is pipelined by one worker.
+	 * @param addresses
+	 *        Absolute URLs of the files to be downloaded.
+	 * @param workingDir
+	 *        Directory where the files will be written to.
+	 * @param fileNames
+	 *        Names of the files, or null to name all files automatically.
+	 * @return a list of {@code Future} of the received files, in the order of the URLs.
+	 */
+	public List<Future<File>> submitAll(List<String> addresses, String workingDir, List<String> fileNames) {
+		return submitAll(addresses, workingDir, fileNames, null);
+	}
+	
+	/**
+	 * Queue a list of downloads to the same directory, and run a scanner on each
+	 * received page. The results of a scanner can be read once the corresponding
+	 * {@code Future} is done.
+	 * @param scanners
+	 *        The scanners to run on the pages, or null to scan none of the pages.
+	 * @see #submitAll(List, String, List)
+	 */
+	public List<Future<File>> submitAll(List<String> addresses, final String workingDir, List<String> fileNames, List<PageScanner> scanners) {
+		List<Future<File>> files = new ArrayList<Future<File>>(addresses.size());
+		for (int i = 0; i < addresses.size(); i += pipelineDepth) {
+			int end = Math.min(i + pipelineDepth, addresses.size());
+			if (end - i == 1) {
+				files.add(submit(addresses.get(i), workingDir, fileNames == null ? null : fileNames.get(i), scanners == null ? null : scanners.get(i)));
+				continue;
+			}
+			
+			final List<String> batchAddresses = new ArrayList<String>(addresses.subList(i, end));
+			final List<String> batchFileNames = fileNames == null ? null : new ArrayList<String>(fileNames.subList(i, end));
+			final List<PageScanner> batchScanners = scanners == null ? null : new ArrayList<PageScanner>(scanners.subList(i, end));
+			Future<List<File>> batch = workers.submit(new Callable<List<File>>() {
+				public List<File> call() throws Exception {
+					// All the addresses of a batch are on the same connection, hence the same host.
+					Semaphore permits = acquireHost(batchAddresses.get(0));
+					HttpClient client = acquireClient();
+					try {
+						client.setWorkingDir(workingDir);
+						if (debug[0])
+							System.out.println(Thread.currentThread().getName() + ": " + batchAddresses);
+						return client.downloadAll(batchAddresses, batchFileNames, batchScanners);
+					} finally {
+						releaseClient(client);
+						if (permits != null)
+							permits.release();
+					}
+				}
+			});
+			for (int j = 0; j < end - i; j++)
+				files.add(new BatchItem(batch, j));
+		}
+		return files;
+	}
+	
+	/**
+	 * Wait for the download to complete.
+	 * <p> Failure of the download is reported and null is returned, so that a single
+	 * failed download does not abort the whole crawl.
+	 * @param future
+	 *        The future returned by {@code submit}.
+	 * @return the received file, or null if the download failed.
+	 * @throws InterruptedException
+	 */
+	public static File await(Future<File> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Stop accepting downloads, wait for the queued downloads to complete and 
+	 * close all connections.
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		// All downloads are decided. The pending hedges are no longer needed.
+		if (hedgeTimer != null) {
+			hedgeTimer.shutdownNow();
+			hedgeWorkers.shutdown();
+			hedgeWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		synchronized (allClients) {
+			for (HttpClient client : allClients) {
+				try {
+					client.close();
+				} catch (IOException e) {
+					// Ignore. The connection is no longer used.
+				}
+			}
+		}
+		if (pool != ConnectionPool.getSharedPool())
+			pool.closeIdle();
+	}
+	
+	/**
+	 * Future of one file in a batch queued by submitAll.
+	 */
+	private static class BatchItem implements Future<File> {
+		private final Future<List<File>> batch;
+		private final int index;
+		
+		BatchItem(Future<List<File>> batch, int index) {
+			this.batch = batch;
+			this.index = index;
+		}
+		
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return batch.cancel(mayInterruptIfRunning);
+		}
+		
+		public boolean isCancelled() {
+			return batch.isCancelled();
+		}
+		
+		public boolean isDone() {
+			return batch.isDone();
+		}
+		
+		public File get() throws InterruptedException, ExecutionException {
+			return batch.get().get(index);
+		}
+		
+		public File get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return batch.get(timeout, unit).get(index);
+		}
+	}
+	
+	/**
+	 * Recent download times, for the hedging delay. Safe for multithreaded access.
+	 */
+	private static class LatencyWindow {
+		private final long samples[];
+		private int count;
+		private int next;
+		
+		LatencyWindow(int size) {
+			this.samples = new long[size];
+		}
+		
+		synchronized void add(long time) {
+			samples[next] = time;
+			next = (next + 1) % samples.length;
+			if (count < samples.length)
+				count++;
+		}
+		
+		/**
+		 * @return the 95th percentile of the recent times, or -1 if there are too few of them.
+		 */
+		synchronized long getPercentile95() {
+			if (count < MIN_LATENCY_SAMPLES)
+				return -1;
+			long sorted[] = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			return sorted[(int) Math.ceil(count * 0.95) - 1];
+		}
+	}
+	
+	/**
+	 * A single download which may be hedged by a second request.
+	 */
+	private class HedgedDownload implements Future<File> {
+		private final String address;
+		private final String workingDir;
+		private final String fileName;
+		private final PageScanner scanner;
+		/** Recent times of the downloads of the same kind */
+		private final LatencyWindow latencies;
+		private final CountDownLatch done;
+		
+		// Guarded by this.
+		private Future<File> primary, hedge;
+		/** Number of requests started which have not completed */
+		private int pending;
+		/** Whether a request has won, or all requests have failed */
+		private boolean decided;
+		private boolean cancelled;
+		private File result;
+		/** Failure of the first request which failed */
+		private Throwable failure;
+		
+		HedgedDownload(String address, String workingDir, String fileName, PageScanner scanner) {
+			this.address = address;
+			this.workingDir = workingDir;
+			this.fileName = fileName;
+			this.scanner = scanner;
+			this.latencies = scanner != null ? pageLatencies : fileLatencies;
+			this.done = new CountDownLatch(1);
+		}
+		
+		synchronized void start() {
+			numDownloads.incrementAndGet();
+			pending++;
+			primary = workers.submit(new Attempt(false));
+		}
+		
+		/**
+		 * Send the hedged request, if the primary request has not completed.
+		 */
+		synchronized void hedge() {
+			if (decided || hedge != null)
+				return;
+			// Keep the extra load on the server bounded.
+			if (numHedges.get() >= numDownloads.get() * MAX_HEDGE_RATIO)
+				return;
+			ExecutorService executor = hedgeWorkers;
+			if (executor == null)
+				return;
+			try {
+				// The lock is held, so the hedge cannot complete before it is counted as pending.
+				hedge = executor.submit(new Attempt(true));
+			} catch (RejectedExecutionException e) {
+				// The engine is shutting down.
+				return;
+			}
+			numHedges.incrementAndGet();
+			pending++;
+			if (debug[0])
+				System.out.println("Hedging " + address);
+		}
+		
+		/**
+		 * A request which has completed takes the win if no other request has.
+		 */
+		synchronized boolean claim() {
+			pending--;
+			if (decided)
+				return false;
+			decided = true;
+			return true;
+		}
+		
+		/**
+		 * A request answered with a transient error leaves the win to the other
+		 * request, if it is pending.
+		 * @return whether the request has given way.
+		 */
+		synchronized boolean giveWay() {
+			if (decided || pending < 2)
+				return false;
+			pending--;
+			return true;
+		}
+		
+		/**
+		 * @return whether the other request has won, so that this one has been stopped.
+		 */
+		synchronized boolean hasLost() {
+			return decided && !cancelled && failure == null && done.getCount() == 0;
+		}
+		
+		/**
+		 * Record the failure of a request. The download fails if no other request is pending.
+		 */
+		synchronized void fail(Throwable cause) {
+			pending--;
+			if (decided)
+				return;
+			if (failure == null)
+				failure = cause;
+			if (pending > 0)
+				return;
+			decided = true;
+			done.countDown();
+		}
+		
+		/**
+		 * Complete the download with the file of the winning request, or the failure
+		 * to move it, and stop the other request. Must be called with the lock held,
+		 * by the request which won the claim.
+		 */
+		private void complete(File file, PageScanner attemptScanner, Throwable cause) {
+			result = file;
+			failure = cause;
+			if (scanner != null && cause == null)
+				scanner.copyResults(attemptScanner);
+			done.countDown();
+			if (primary != null && !primary.isDone())
+				primary.cancel(true);
+			if (hedge != null && !hedge.isDone())
+				hedge.cancel(true);
+		}
+		
+		public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+			if (decided)
+				return false;
+			decided = cancelled = true;
+			primary.cancel(mayInterruptIfRunning);
+			if (hedge != null)
+				hedge.cancel(mayInterruptIfRunning);
+			done.countDown();
+			return true;
+		}
+		
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+		
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+		
+		public File get() throws InterruptedException, ExecutionException {
+			done.await();
+			return getResult();
+		}
+		
+		public File get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit))
+				throw new TimeoutException();
+			return getResult();
+		}
+		
+		private synchronized File getResult() throws ExecutionException {
+			if (cancelled)
+				throw new CancellationException();
+			if (failure != null)
+				throw new ExecutionException(failure);
+			return result;
+		}
+		
+		/**
+		 * One request of the download.
+		 */
+		private class Attempt implements Callable<File> {
+			private final boolean isHedge;
+			
+			Attempt(boolean isHedge) {
+				this.isHedge = isHedge;
+			}
+			
+			public File call() throws Exception {
+				PageScanner attemptScanner = scanner == null ? null : new PageScanner(scanner);
+				Semaphore permits = null;
+				HttpClient client = null;
+				File hedgeDir = null;
+				File file;
+				try {
+					// The hedge is not counted against the host: its permit is held by the late primary request.
+					if (!isHedge)
+						permits = acquireHost(address);
+					client = acquireClient();
+					// Both requests receive the file under a .part name. Only the one which wins takes its name.
+					client.setCommitDeferred(true);
+					long start = System.currentTimeMillis();
+					if (isHedge) {
+						// Write into a folder of our own, with none of the state shared with the primary request.
+						hedgeDir = new File(workingDir + HEDGE_FOLDER_PREFIX + nextHedgeFolder.incrementAndGet());
+						if (!hedgeDir.mkdirs())
+							throw new IOException("Cannot create " + hedgeDir.getPath());
+						client.setWorkingDir(hedgeDir.getPath() + File.separator);
+						client.setResumable(false);
+						client.setValidationCache(null);
+						client.setBlobStore(null);
+					} else {
+						client.setWorkingDir(workingDir);
+						long delay = latencies.getPercentile95();
+						ScheduledExecutorService timer = hedgeTimer;
+						if (delay >= 0 && timer != null) {
+							timer.schedule(new Runnable() {
+								public void run() {
+									hedge();
+								}
+							}, Math.max(delay, MIN_HEDGE_DELAY), TimeUnit.MILLISECONDS);
+						}
+					}
+					client.setURL(address, true);
+					if (debug[0])
+						System.out.println(Thread.currentThread().getName() + ": " + address + (isHedge ? " (hedge)" : ""));
+					file = client.download(fileName, attemptScanner);
+					RetryPolicy policy = retryPolicy;
+					if (file == null && policy != null && policy.isRetryable(client.getStatusCode()) && giveWay())
+						return null;
+					
+					synchronized (HedgedDownload.this) {
+						if (!claim()) {
+							// The other request has won.
+							if (file != null)
+								client.discardFile(file);
+							return null;
+						}
+						if (file != null) {
+							configure(client);
+							client.setWorkingDir(workingDir);
+							try {
+								file = client.commitFile(file, scanner != null);
+							} catch (IOException e) {
+								complete(null, attemptScanner, e);
+								return null;
+							}
+						}
+						latencies.add(System.currentTimeMillis() - start);
+						complete(file, attemptScanner, null);
+						return file;
+					}
+				} catch (Exception e) {
+					// Stopped by the winning hedge. The .part file will never be resumed.
+					if (!isHedge && client != null && hasLost())
+						client.discardPartFile();
+					fail(e);
+					throw e;
+				} finally {
+					if (client != null) {
+						configure(client);
+						releaseClient(client);
+					}
+					if (permits != null)
+						permits.release();
+					if (hedgeDir != null) {
+						File left[] = hedgeDir.listFiles();
+						if (left != null)
+							for (File f : left)
+								f.delete();
+						hedgeDir.delete();
+					}
+				}
+			}
+		}
+	}
+}
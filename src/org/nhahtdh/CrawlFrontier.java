@@ -0,0 +1,213 @@
+package org.nhahtdh;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Multi-level queue of the links to be crawled, which can be filled and
+ * drained by several threads at the same time. Level 0 has the highest
+ * priority: an element of a higher level is only returned when all lower
+ * levels are empty.
+ * <p>
+ * Each level is a lock-free queue with its own size counter. Adding and
+ * polling never block. Consumers which run out of work can block in
+ * {@code take}, which returns null once the frontier is drained: all levels
+ * are empty and no element returned by {@code take} is still being processed.
+ * A consumer must call {@code done} after processing an element returned by
+ * {@code take}, after adding the links it discovered.
+ * 
+ * @author Hong Dai Thanh
+ *
+ */
+class CrawlFrontier<T> {
+	//----------------
+	// Data members
+	//----------------
+	private final ArrayList<ConcurrentLinkedQueue<T>> levels;
+	/** Number of elements in each level */
+	private final AtomicInteger sizes[];
+	/** Lowest level which may be non-empty. Only a hint to skip empty levels. */
+	private final AtomicInteger nextLevel;
+	/** Number of elements returned by take which are not done */
+	private final AtomicInteger active;
+	/** Number of consumers blocked in take */
+	private final AtomicInteger waiting;
+	/** Monitor for blocked consumers. Not used when adding or polling. */
+	private final Object monitor;
+	private volatile boolean closed;
+	
+	//----------------
+	// Constructors
+	//----------------
+	/**
+	 * Create a frontier with the given number of levels.
+	 * @param numLevels
+	 *        Number of levels in the frontier.
+	 */
+	public CrawlFrontier(int numLevels) {
+		if (numLevels < 1)
+			throw new IllegalArgumentException("Invalid number of levels: " + numLevels);
+		this.levels = new ArrayList<ConcurrentLinkedQueue<T>>(numLevels);
+		this.sizes = new AtomicInteger[numLevels];
+		for (int i = 0; i < numLevels; i++) {
+			this.levels.add(new ConcurrentLinkedQueue<T>());
+			this.sizes[i] = new AtomicInteger();
+		}
+		this.nextLevel = new AtomicInteger(numLevels);
+		this.active = new AtomicInteger();
+		this.waiting = new AtomicInteger();
+		this.monitor = new Object();
+	}
+	
+	//----------------
+	// Mutators
+	//----------------
+	public void add(T element, int level) {
+		checkLevel(level);
+		// Count first, so that the size is never negative.
+		sizes[level].incrementAndGet();
+		levels.get(level).offer(element);
+		lowerNextLevel(level);
+		signal();
+	}
+	
+	public void addAll(Collection<? extends T> elements, int level) {
+		checkLevel(level);
+		if (elements.isEmpty())
+			return;
+		sizes[level].addAndGet(elements.size());
+		levels.get(level).addAll(elements);
+		lowerNextLevel(level);
+		signal();
+	}
+	
+	/**
+	 * Remove the element with the highest priority, without waiting.
+	 * @return the element, or null if the frontier is empty.
+	 */
+	public T poll() {
+		int level;
+		while ((level = nextLevel.get()) < levels.size()) {
+			T element = levels.get(level).poll();
+			if (element != null) {
+				sizes[level].decrementAndGet();
+				return element;
+			}
+			// The level is empty. Move the hint past it.
+			if (nextLevel.compareAndSet(level, level + 1) && !levels.get(level).isEmpty())
+				// An element has been added since the check. Do not skip it.
+				lowerNextLevel(level);
+		}
+		return null;
+	}
+	
+	/**
+	 * Remove the first element of the given level, without waiting.
+	 * @return the element, or null if the level is empty.
+	 */
+	public T poll(int level) {
+		checkLevel(level);
+		T element = levels.get(level).poll();
+		if (element != null)
+			sizes[level].decrementAndGet();
+		return element;
+	}
+	
+	/**
+	 * Remove the element with the highest priority, waiting for other consumers
+	 * to add one if the frontier is empty. The caller must call {@code done} 
+	 * when it has processed the element.
+	 * @return the element, or null if the frontier is drained or closed.
+	 * @throws InterruptedException
+	 */
+	public T take() throws InterruptedException {
+		T element;
+		if ((element = pollActive()) != null)
+			return element;
+		synchronized (monitor) {
+			waiting.incrementAndGet();
+			try {
+				while (true) {
+					// Check again after announcing that we are waiting, so that an add is not missed.
+					if ((element = pollActive()) != null)
+						return element;
+					if (closed || active.get() == 0) {
+						// Nothing left, and nobody is going to add more. Wake up the others.
+						monitor.notifyAll();
+						return null;
+					}
+					monitor.wait();
+				}
+			} finally {
+				waiting.decrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * Mark an element returned by {@code take} as processed.
+	 */
+	public void done() {
+		if (active.decrementAndGet() == 0)
+			signal();
+	}
+	
+	/**
+	 * Make all blocked and future calls to {@code take} return null once the
+	 * frontier is empty, whether or not the taken elements are done.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+	
+	private T pollActive() {
+		// Count before polling, so that the frontier never looks drained while an element is in hand.
+		active.incrementAndGet();
+		T element = poll();
+		if (element == null)
+			active.decrementAndGet();
+		return element;
+	}
+	
+	private void lowerNextLevel(int level) {
+		int current;
+		while ((current = nextLevel.get()) > level && !nextLevel.compareAndSet(current, level));
+	}
+	
+	private void signal() {
+		if (waiting.get() > 0) {
+			synchronized (monitor) {
+				monitor.notifyAll();
+			}
+		}
+	}
+	
+	private void checkLevel(int level) {
+		if (level >= levels.size() || level < 0)
+			throw new IndexOutOfBoundsException("Index out of bounds: " + level);
+	}
+	
+	//----------------
+	// Accessors
+	//----------------
+	public int size(int level) {
+		checkLevel(level);
+		return sizes[level].get();
+	}
+	
+	public boolean isEmpty() {
+		for (int i = 0; i < levels.size(); i++)
+			if (sizes[i].get() > 0)
+				return false;
+		return true;
+	}
+	
+	public String toString(int level) {
+		checkLevel(level);
+		return levels.get(level).toString();
+	}
+}
@@ -0,0 +1,220 @@
+package org.nhahtdh;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * Append-only log of the crawl of a forum, kept in the forum folder, so that
+ * a crawl interrupted by a crash can continue where it stopped.
+ * <p>
+ * Every link put on the frontier is logged with its kind (e.g. frame page, 
+ * post, extra) before it is processed, and logged again when it is done. A
+ * restarted crawl replays the log: the links which are not done are put back
+ * on the frontier, and the links which are done are not queued again. Only the
+ * work which was in flight is lost.
+ * <p>
+ * Each line of the journal is one record, with tab-separated fields:
+ * <br> Q kind link : The link is queued.
+ * <br> D kind link : The link is done.
+ * <br> A done link has two records (Q, then D). Once enough records repeat a
+ * link, the journal is compacted to one record per link: D for the links which
+ * are done, and Q for the pending ones. The journal is deleted when the crawl
+ * of the forum completes. The journal is safe for multithreaded access.
+ * 
+ * @author Hong Dai Thanh
+ *
+ */
+class CrawlJournal {
+	//---------
+	// Debug
+	//---------
+	/*
+	 * 0 - Replay and compaction
+	 */
+	private static final boolean debug[] = {false};
+	
+	//--------------
+	// Constants
+	//--------------
+	public static final String JOURNAL_FILE_NAME = "journal.txt";
+	private static final String JOURNAL_CHARSET = "UTF-8";
+	private static final String QUEUED = "Q";
+	private static final String DONE = "D";
+	/** Number of records repeating a link (one per done link) after which the journal is compacted */
+	private static final int COMPACTION_THRESHOLD = 1024;
+	
+	//----------------
+	// Data members
+	//----------------
+	private final File file;
+	/** Kind and link to whether the link is done, in the order the links are queued */
+	private final LinkedHashMap<String, Boolean> links;
+	private Writer out;
+	/** Number of records in the journal file */
+	private int numRecords;
+	/** Whether the journal has been replayed from an interrupted crawl */
+	private final boolean resumed;
+	
+	//----------------
+	// Constructors
+	//----------------
+	/**
+	 * Open the journal of the forum, and replay it if the last crawl of the
+	 * forum has been interrupted.
+	 * @param forumDir
+	 *        The forum folder, ending with slash /
+	 * @throws IOException
+	 */
+	public CrawlJournal(String forumDir) throws IOException {
+		this.file = new File(forumDir + JOURNAL_FILE_NAME);
+		this.links = new LinkedHashMap<String, Boolean>();
+		if (file.exists()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), JOURNAL_CHARSET));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String fields[] = line.split("\t", 3);
+					// Ignore malformed lines, e.g. the last line cut by the crash.
+					if (fields.length != 3)
+						continue;
+					String key = fields[1] + "\t" + fields[2];
+					if (fields[0].equals(QUEUED) && !links.containsKey(key))
+						links.put(key, Boolean.FALSE);
+					else if (fields[0].equals(DONE))
+						links.put(key, Boolean.TRUE);
+					numRecords++;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		this.resumed = !links.isEmpty();
+		if (debug[0] && resumed)
+			System.out.println("Replayed " + numRecords + " records from " + file.getPath());
+		this.out = openAppend();
+	}
+	
+	//----------------
+	// Mutators
+	//----------------
+	/**
+	 * Log that a link is put on the frontier.
+	 * @param kind
+	 *        Kind of the link.
+	 * @param link
+	 *        The link.
+	 * @return {@code true} if the link has not been queued before, by this crawl
+	 * or by the interrupted one. The caller should only queue it in that case.
+	 * @throws IOException
+	 */
+	public synchronized boolean queue(int kind, String link) throws IOException {
+		String key = kind + "\t" + normalize(link);
+		if (links.containsKey(key))
+			return false;
+		links.put(key, Boolean.FALSE);
+		append(QUEUED, key);
+		return true;
+	}
+	
+	/**
+	 * Log that a link has been processed, and all links found while processing
+	 * it have been queued.
+	 * @param kind
+	 *        Kind of the link.
+	 * @param link
+	 *        The link.
+	 * @throws IOException
+	 */
+	public synchronized void done(int kind, String link) throws IOException {
+		String key = kind + "\t" + normalize(link);
+		links.put(key, Boolean.TRUE);
+		append(DONE, key);
+		
+		// Each link has one record after compaction, and each done link adds one more.
+		if (numRecords - links.size() >= COMPACTION_THRESHOLD)
+			compact();
+	}
+	
+	/**
+	 * Delete the journal once the crawl of the forum has completed.
+	 */
+	public synchronized void finish() throws IOException {
+		out.close();
+		file.delete();
+		links.clear();
+		numRecords = 0;
+	}
+	
+	/**
+	 * Close the journal, keeping it for the next run.
+	 */
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+	
+	private void append(String type, String key) throws IOException {
+		out.write(type + "\t" + key + "\n");
+		// Hand the record to the operating system, so that it survives a crash of the JVM.
+		out.flush();
+		numRecords++;
+	}
+	
+	/**
+	 * Rewrite the journal with one record per link. The journal is written to a
+	 * temporary file first, so that a crash will not leave a truncated journal.
+	 */
+	private void compact() throws IOException {
+		out.close();
+		File tempFile = new File(file.getPath() + ".tmp");
+		Writer tempOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), JOURNAL_CHARSET));
+		try {
+			for (Map.Entry<String, Boolean> entry : links.entrySet())
+				tempOut.write((entry.getValue() ? DONE : QUEUED) + "\t" + entry.getKey() + "\n");
+		} finally {
+			tempOut.close();
+		}
+		// renameTo does not replace an existing file on all platforms.
+		if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+			throw new IOException("Cannot write " + file.getPath());
+		if (debug[0])
+			System.out.println("Compacted " + file.getPath() + " from " + numRecords + " to " + links.size() + " records.");
+		numRecords = links.size();
+		out = openAppend();
+	}
+	
+	private Writer openAppend() throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), JOURNAL_CHARSET));
+	}
+	
+	//----------------
+	// Accessors
+	//----------------
+	/**
+	 * Whether the journal has been left by an interrupted crawl of the forum.
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+	
+	/**
+	 * Get the links of the given kind which are queued but not done.
+	 * @param kind
+	 *        Kind of the links.
+	 * @return the links, in the order they were queued.
+	 */
+	public synchronized LinkedList<String> getPending(int kind) {
+		LinkedList<String> pending = new LinkedList<String>();
+		String prefix = kind + "\t";
+		for (Map.Entry<String, Boolean> entry : links.entrySet())
+			if (!entry.getValue() && entry.getKey().startsWith(prefix))
+				pending.add(entry.getKey().substring(prefix.length()));
+		return pending;
+	}
+	
+	/**
+	 * Replace the characters used as separators in the journal file.
+	 */
+	private static String normalize(String link) {
+		return link.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+	}
+}
@@ -2,16 +2,15 @@ package org.nhahtdh;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.util.regex.*;
 
-import org.htmlparser.*;
-import org.htmlparser.util.*;
-import org.htmlparser.nodes.*;
 import org.htmlparser.filters.*;
 
 public class ForumLeecher {
-	// TODO: Run multiple connections (multiple threads) to speed up download.
-	
 	//---------
 	// Debug
 	//---------
@@ -20,30 +19,82 @@ public class ForumLeecher {
 	 * 1 - parse
 	 * 2 - set folder
 	 * 3 - download
+	 * 4 - TLS handshakes
 	 */
-	private static final boolean debug[] = {false, false, false, false};
+	private static final boolean debug[] = {false, false, false, false, false};
 
 	//--------------
 	// Constants
 	//--------------
 	private static final String DISPLAY_POST_REGEX = "displayPost\\('[-0-9a-f]+'.*\\).*";
-	private static final String FORUM_ID_REGEX = "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}";
-	private static final String HEADING_ID_REGEX = FORUM_ID_REGEX;
-	private static final String POST_ID_REGEX = FORUM_ID_REGEX;
 	private static final String ATTACHMENT_REGEX = "/forum/download_file\\.aspx.*";
+	private static final Pattern NUM_PAGES_PATTERN = Pattern.compile("\\(\\d+\\)");
 	
 	private static final String IVLE_ADDRESS = "https://ivle.nus.edu.sg/";
 	private static final String FORUM_ADDRESS = "http://ivle.nus.edu.sg/forum/";
 	
 	private static final String DEFAULT_LOCAL_FOLDER = "forum/";
+	private static final String VALIDATION_CACHE_FILE_NAME = "validation_cache.txt";
+	private static final String BLOB_STORE_FOLDER = "blobs/";
+	/** Default number of crawl workers in thread-per-task mode */
+	private static final int DEFAULT_MAX_TASKS = 64;
+	
+	// Names of the extractors registered by createScanner.
+	private static final String FRAME_LINKS = "frame";
+	private static final String IMAGE_LINKS = "image";
+	private static final String ATTACHMENT_LINKS = "attachment";
+	private static final String POST_LINKS = "post";
+	private static final String TOPIC_LINKS = "topic";
+	private static final String READ_LINKS = "read";
+	private static final String ARCHIVE_LINKS = "archive";
+	private static final String NUM_PAGES_TEXT = "numPages";
+	
+	// Kinds of links in the crawl journal.
+	private static final int JOURNAL_FRAME = 0;
+	private static final int JOURNAL_POST = 1;
+	private static final int JOURNAL_EXTRA = 2;
+	
+	// Levels of the frontier. The images and attachments go first, so that they do not pile up.
+	private static final int EXTRA_LEVEL = 0;
+	private static final int POST_LEVEL = 1;
 	
 	private static String currentWorkingDir;
+	
+	//----------------
+	// Options
+	//----------------
+	/** Number of concurrent connections used to download posts and extras */
+	private static int numWorkers = CrawlEngine.DEFAULT_NUM_WORKERS;
+	/** Number of requests pipelined on one connection when downloading posts */
+	private static int pipelineDepth = 1;
+	/** Whether to keep compressed pages and files on disk as-is */
+	private static boolean keepCompressed = false;
+	/** Only download the images and attachments of the posts which are new or changed since the last run */
+	private static boolean incremental = false;
+	/** Revalidate files downloaded by earlier runs with conditional requests */
+	private static boolean useValidationCache = true;
+	/** Keep images and attachments once per content in the blob store */
+	private static boolean useBlobStore = false;
+	/** Run each download on its own (virtual) thread, with -workers downloads per host */
+	private static boolean threadPerTask = false;
+	/** Number of crawl workers taking the posts, images and attachments from the frontier in thread-per-task mode */
+	private static int maxTasks = DEFAULT_MAX_TASKS;
+	/** Maximum number of requests per second, or 0 for no limit */
+	private static int maxRate = 0;
+	/** Send a second request for the downloads which take unusually long */
+	private static boolean hedging = true;
+	
+	private static BlobStore blobStore;
 
 	public static void main(String args[]) throws Exception {
 		final URI FORUM_URI = new URI("http://ivle.nus.edu.sg/forum/");
+		if (!parseOptions(args))
+			return;
 		Scanner sc = new Scanner(System.in);
 		HttpClient client = new HttpClient();
-		boolean tb0; // Temporary variables
+		client.setKeepCompressed(keepCompressed);
+		// The frame pages and lists are downloaded again in every run of incremental mode.
+		client.setOverwrite(incremental);
 		// _TODO: Let user configure the working directory.
 		setCurrentWorkingDir(DEFAULT_LOCAL_FOLDER, client, true);
 		
@@ -51,6 +102,107 @@ public class ForumLeecher {
 		if (!login(sc, client))
 			return;
 		
+		// The workers share the session established by the login routine.
+		CrawlEngine engine = new CrawlEngine(numWorkers, pipelineDepth, client.getCookieStore(), threadPerTask);
+		engine.setKeepCompressed(keepCompressed);
+		// The list pages and the posts replace the files of the last run.
+		engine.setOverwrite(incremental);
+		// The limit of concurrent requests to each host adapts to the load of the server, up to the
+		// number of workers. In thread-per-task mode, this is the same cap as the permits of the host.
+		Throttle throttle = new Throttle(maxRate, numWorkers);
+		client.setThrottle(throttle);
+		engine.setThrottle(throttle);
+		// A dropped connection or a transient error does not abort the crawl.
+		RetryPolicy retryPolicy = new RetryPolicy();
+		client.setRetryPolicy(retryPolicy);
+		engine.setRetryPolicy(retryPolicy);
+		engine.setHedging(hedging);
+		// Large attachments interrupted by a dropped connection are resumed by the next run.
+		engine.setResumable(true);
+		// The validators are shared by all clients and all forums. Each forum folder has its own entries.
+		ValidationCache validationCache = useValidationCache ? new ValidationCache(DEFAULT_LOCAL_FOLDER + VALIDATION_CACHE_FILE_NAME) : null;
+		client.setValidationCache(validationCache);
+		engine.setValidationCache(validationCache);
+		// Posts are scanned, so only images and attachments go into the blob store.
+		if (useBlobStore)
+			engine.setBlobStore(blobStore = new BlobStore(DEFAULT_LOCAL_FOLDER + BLOB_STORE_FOLDER));
+		try {
+			crawl(sc, client, engine, FORUM_URI);
+		} finally {
+			engine.shutdown();
+			if (validationCache != null)
+				validationCache.save();
+			client.close();
+			ConnectionPool.getSharedPool().closeIdle();
+			if (debug[4] && TlsContext.getDefault().getHandshakeCount() > 0)
+				System.out.println(TlsContext.getDefault());
+		}
+	}
+	
+	/**
+	 * Parse the command line options.
+	 * <p> -workers n : Number of concurrent connections used for downloading.
+	 * <p> -pipeline n : Number of requests pipelined on one connection when downloading posts.
+	 * <p> -keepcompressed : Keep gzip/deflate encoded files on disk as-is.
+	 * <p> -incremental : Only download the images and attachments of posts which are new or changed since the last run.
+	 * <p> -nocache : Do not revalidate files downloaded by earlier runs.
+	 * <p> -blobstore : Keep identical images and attachments once on disk.
+	 * <p> -threadpertask : Run each download on its own thread.
+	 * <p> -tasks n : Number of crawl workers in thread-per-task mode.
+	 * <p> -rate n : Maximum number of requests per second.
+	 * <p> -nohedge : Do not send a second request for slow downloads.
+	 * @param args
+	 *        Command line arguments.
+	 * @return {@code true} if the options are valid; otherwise, {@code false} is
+	 * returned and the usage is printed.
+	 */
+	private static boolean parseOptions(String args[]) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-workers") && i + 1 < args.length && args[i + 1].matches("[1-9]\\d{0,2}"))
+				numWorkers = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-pipeline") && i + 1 < args.length && args[i + 1].matches("[1-9]\\d{0,2}"))
+				pipelineDepth = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-keepcompressed"))
+				keepCompressed = true;
+			else if (args[i].equals("-incremental"))
+				incremental = true;
+			else if (args[i].equals("-nocache"))
+				useValidationCache = false;
+			else if (args[i].equals("-blobstore"))
+				useBlobStore = true;
+			else if (args[i].equals("-rate") && i + 1 < args.length && args[i + 1].matches("[1-9]\\d{0,3}"))
+				maxRate = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-nohedge"))
+				hedging = false;
+			else if (args[i].equals("-threadpertask"))
+				threadPerTask = true;
+			else if (args[i].equals("-tasks") && i + 1 < args.length && args[i + 1].matches("[1-9]\\d{0,3}"))
+				maxTasks = Integer.parseInt(args[++i]);
+			else {
+				System.out.println("Unknown option: " + args[i]);
+				System.out.println("Usage: ForumLeecher [-workers n] [-pipeline n] [-keepcompressed] [-incremental] [-nocache] [-blobstore] [-threadpertask] [-tasks n] [-rate n] [-nohedge]");
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Loop for user to choose forum to archive, and archive the chosen forum.
+	 * @param sc
+	 *        Scanner to get user input.
+	 * @param client
+	 *        The HTTP client used to download the frame pages and the lists.
+	 * @param engine
+	 *        The crawl engine used to download posts, images and attachments.
+	 * @param FORUM_URI
+	 *        Base URI to resolve relative links against.
+	 * @throws Exception
+	 */
+	private static void crawl(Scanner sc, HttpClient client, CrawlEngine engine, final URI FORUM_URI) throws Exception {
+		boolean tb0; // Temporary variables
+		// Images and attachments downloaded in this session, by canonical URL.
+		ConcurrentHashMap<String, File> downloadedExtras = new ConcurrentHashMap<String, File>();
 		//--------------------------------
 		// Loop for user to choose forum to archive
 		while (true) {
@@ -64,102 +216,138 @@ public class ForumLeecher {
 			// Set current working directory
 			setCurrentWorkingDir(DEFAULT_LOCAL_FOLDER + forumId + "/", client, false);
 			
-			// Download the main forum page
-			client.setURL(FORUM_ADDRESS + "forum.aspx?forumId=" + forumId, true);
-			receivedFile = client.download(null);
-			// Check for error page returned by server.
-			if (receivedFile.getName().matches("error\\.aspx.*")) {
-				System.out.println("Your action caused an error to occur on IVLE.");
-				receivedFile.delete();
-				tb0 = new File(currentWorkingDir).delete();
-				if (debug[2])
-					System.out.println("Folder " + currentWorkingDir + (tb0 ? "" : " not") + " deleted.");
-				setCurrentWorkingDir(DEFAULT_LOCAL_FOLDER, client, false);
-				
-				continue; // Loop back to get new forum ID
-			}
-			// Assume that no error will returned by the server from this point onwards.
-			// _TODO: Error checking.
+			// The links in the frame pages and lists are extracted while the pages are downloaded.
+			PageScanner scanner = createScanner();
+			// Links queued and done are logged, so that an interrupted crawl can be resumed.
+			CrawlJournal journal = new CrawlJournal(currentWorkingDir);
 			
 			/*
-			 * 0 - Links to forum postings.
-			 * 1 - Links to images and attachments.
+			 * EXTRA_LEVEL - Links to images and attachments.
+			 * POST_LEVEL - Links to forum postings.
 			 */
-			HeapList<String> listLinks = new HeapList<String>(2);
+			CrawlFrontier<String> listLinks = new CrawlFrontier<String>(2);
+			// Images and attachments already in listLinks. Each of them is added once per forum.
+			SeenUrlSet seenExtras = new SeenUrlSet();
 			String link; // Temporary variable
+			LinkedList<String> frameLinks;
+			if (journal.isResumed()) {
+				// Continue with the links which were not done when the last crawl was interrupted.
+				System.out.println("Resuming the interrupted crawl of the forum.");
+				frameLinks = journal.getPending(JOURNAL_FRAME);
+				listLinks.addAll(journal.getPending(JOURNAL_POST), POST_LEVEL);
+				for (String extraLink : journal.getPending(JOURNAL_EXTRA)) {
+					seenExtras.add(extraLink);
+					listLinks.add(extraLink, EXTRA_LEVEL);
+				}
+			} else {
+				// Download the main forum page
+				client.setURL(FORUM_ADDRESS + "forum.aspx?forumId=" + forumId, true);
+				receivedFile = client.download(null, scanner);
+				// Check for error page returned by server. The redirection is followed, so the URL is that of the page received.
+				// The name of the file is not used: it may carry .gz or .zz, or a number if the name is taken.
+				if (LinkRouter.classify(client.getURL(), false) == LinkRouter.Route.ERROR) {
+					System.out.println("Your action caused an error to occur on IVLE.");
+					receivedFile.delete();
+					journal.finish();
+					tb0 = new File(currentWorkingDir).delete();
+					if (debug[2])
+						System.out.println("Folder " + currentWorkingDir + (tb0 ? "" : " not") + " deleted.");
+					setCurrentWorkingDir(DEFAULT_LOCAL_FOLDER, client, false);
+					
+					continue; // Loop back to get new forum ID
+				}
+				// Assume that no error will returned by the server from this point onwards.
+				// _TODO: Error checking.
+				
+				frameLinks = queueLinks(journal, JOURNAL_FRAME, getLinks(scanner, FRAME_LINKS));
+			}
+			
 			// Download the major frame pages of the forum.
-			LinkedList<String> frameLinks = parseLinks(receivedFile, new TagNameFilter("frame"), "src", null);
 			while (!frameLinks.isEmpty()) {
 				link = frameLinks.remove();
 				client.setURL(FORUM_URI.resolve(link).toString(), true);
+				LinkRouter.Route route = LinkRouter.classify(link, false);
 				
-				if (link.matches(".*board_topic\\.aspx.*")) {
-					if (debug[3] && !link.contains("headingid")) {
+				if (route == LinkRouter.Route.BOARD_TOPIC) {
+					String headingId = LinkRouter.getHeadingId(link);
+					if (debug[3] && headingId == null) {
 						System.err.println("Bad board_topic link: " + link);
 					}
-					String headingId = link.replaceFirst(".*headingid=(" + HEADING_ID_REGEX + ").*", "$1");
-					receivedFile = client.download("H" + headingId + ".html");
-				} else if (link.matches(".*board_read\\.aspx.*")) {
-					if (debug[3] && !link.contains("postid")) {
+					receivedFile = client.download(headingId == null ? null : "H" + headingId + ".html", scanner);
+				} else if (route == LinkRouter.Route.BOARD_READ) {
+					String postId = LinkRouter.getPostId(link);
+					if (debug[3] && postId == null) {
 						System.err.println("Bad board_read link: " + link);
 					}
-					String postId = link.replaceFirst(".*postid=(" + POST_ID_REGEX + ").*", "$1");
-					receivedFile = client.download("P" + postId + ".html");
+					receivedFile = client.download(postId == null ? null : "P" + postId + ".html", scanner);
 				} else {
-					receivedFile = client.download(null);
+					receivedFile = client.download(null, scanner);
 				}
 				
-				if (link.matches(".*menu\\.aspx.*")) {
-					// If the links points to menu.aspx
+				switch (route) {
+				case MENU:
 					// Check for the existence of forum archive.
-					if (parseLinks(receivedFile, new HasAttributeFilter("id", "ibtnArchive"), "onclick", ".*forum_archive\\.aspx.*").size() != 0) {
+					if (!scanner.get(ARCHIVE_LINKS).isEmpty()) {
 						if (debug[3])
 							System.out.println("Found forum archive.");
 						// Download main page of forum archive
 						client.setURL(FORUM_ADDRESS + "forum_archive.aspx?forumId=" + forumId, true);
-						receivedFile = client.download(null);
+						receivedFile = client.download(null, scanner);
 						// Parse and add the links of major frame pages of archive forum  
-						frameLinks.addAll(parseLinks(receivedFile, new TagNameFilter("frame"), "src", null));
+						frameLinks.addAll(queueLinks(journal, JOURNAL_FRAME, getLinks(scanner, FRAME_LINKS)));
 					}
-				} else if (link.matches(".*list(_archive)?\\.aspx.*")) {
+					break;
+				case LIST:
 					// Parse for number of pages of list of forum postings.
-					int numPages = parseNumPages(receivedFile);
-					String pageName = receivedFile.getName();
+					int numPages = parseNumPages(scanner, receivedFile);
+					// The received file may have been renamed. Take the page name from the link.
+					String pageName = new File(FORUM_URI.resolve(link).getPath()).getName();
 					if (debug[3])
 						System.out.println("There are " + numPages + " pages of forum post listing.");
 					
-					int i = 0;
-					while (true) {
-						// Parse the list for links to posts.
+					// Parse the first page of the list for links to posts.
+					listLinks.addAll(queueLinks(journal, JOURNAL_POST, getLinks(scanner, POST_LINKS)), POST_LEVEL);
+					
+					// Download other pages of forum post listing all at once.
+					LinkedList<String> pageAddresses = new LinkedList<String>();
+					LinkedList<PageScanner> pageScanners = new LinkedList<PageScanner>();
+					for (int i = 1; i < numPages; i++) {
+						pageAddresses.add(FORUM_ADDRESS + pageName + "?forumid=" + forumId + "&currpage=" + i);
+						pageScanners.add(createScanner());
+					}
+					LinkedList<Future<File>> pageFiles = new LinkedList<Future<File>>(engine.submitAll(pageAddresses, currentWorkingDir, null, pageScanners));
+					
+					// Merge the links to posts in page order.
+					while (!pageFiles.isEmpty()) {
+						PageScanner pageScanner = pageScanners.remove();
+						if ((receivedFile = CrawlEngine.await(pageFiles.remove())) == null)
+							continue;
 						if (debug[3])
 							System.out.println("Parsing the list " + receivedFile.getPath());
-						listLinks.addAll(parseLinks(receivedFile, new TagNameFilter("a"), "onclick", DISPLAY_POST_REGEX), 0);
-						if (++i >= numPages)
-							break;
-						// Download other pages of forum post listing.
-						client.setURL(FORUM_ADDRESS + pageName + "?forumid=" + forumId + "&currpage=" + i, true);
-						receivedFile = client.download(null);
+						listLinks.addAll(queueLinks(journal, JOURNAL_POST, getLinks(pageScanner, POST_LINKS)), POST_LEVEL);
 					}
-				} else if (link.matches(".*board_heading\\.aspx.*")) {
+					break;
+				case BOARD_HEADING:
 					// TODO: How about many pages?
 					
 					// Download the tree structure and individual postings
-					frameLinks.add("list.aspx?forumid=" + forumId);
+					frameLinks.addAll(queueLinks(journal, JOURNAL_FRAME, Collections.singletonList("list.aspx?forumid=" + forumId)));
 					
-					frameLinks.addAll(parseLinks(receivedFile, new TagNameFilter("a"), "href", ".*board_topic\\.aspx.*"));
-				} else if (link.matches(".*board_topic\\.aspx.*")) {
+					frameLinks.addAll(queueLinks(journal, JOURNAL_FRAME, getLinks(scanner, TOPIC_LINKS)));
+					break;
+				case BOARD_TOPIC:
 					// TODO: Multiple pages of topics 
 					
-					frameLinks.addAll(parseLinks(receivedFile, new TagNameFilter("a"), "href", ".*board_read\\.aspx.*"));
-				} else if (link.matches(".*board_read\\.aspx.*")) {
+					frameLinks.addAll(queueLinks(journal, JOURNAL_FRAME, getLinks(scanner, READ_LINKS)));
+					break;
+				case BOARD_READ:
 					// TODO: Multiple pages of messages
 					
 					/*
 					LinkedList<String> tll0;
 					
 					// Add image links.
-					// TODO: Prevent images from the same source to be re-downloaded
-					listLinks.addAll(tll0 = parseLinks(receivedFile, new TagNameFilter("img"), "src", null), 1);
+					addNewLinks(listLinks, tll0 = getLinks(scanner, IMAGE_LINKS), EXTRA_LEVEL, seenExtras, journal, FORUM_URI);
 					if (debug[3]) {
 						if (tll0.size() > 0) {
 							System.out.println("Found " + tll0.size() + " image(s).");
@@ -168,7 +356,7 @@ public class ForumLeecher {
 					}
 					
 					// Add attachment link.
-					listLinks.addAll(tll0 = parseLinks(receivedFile, new TagNameFilter("a"), "href", ATTACHMENT_REGEX), 1);
+					addNewLinks(listLinks, tll0 = getLinks(scanner, ATTACHMENT_LINKS), EXTRA_LEVEL, seenExtras, journal, FORUM_URI);
 					if (debug[3]) {
 						if (tll0.size() > 0) {
 							System.out.println("Found " + tll0.size() + " attachment(s).");
@@ -176,85 +364,247 @@ public class ForumLeecher {
 						}
 					}
 					*/
+					break;
+				default:
+					// If the link points to menu_archive.aspx or main(_archive).aspx, just download the page.
+					break;
 				}
-				// If the link points to menu_archive.aspx or main(_archive).aspx, just download the page. 
+				
+				// All the links found in the page have been queued.
+				journal.done(JOURNAL_FRAME, link);
 			}
 			//--------------------------------
 			
 			/*
-			 * Download the forum postings and extract extra links (images and attachments)
-			 * to be downloaded.
+			 * Download the forum postings, and the images and attachments found in them.
+			 * The crawl workers take the links from the frontier, and add the links they
+			 * find in the posts to it, until it is drained.
 			 */
 			if (debug[3])
-				System.out.println("Downloading " + listLinks.size(0) + " forum posts.");
-			int numAttach = 0, numImage = 0;
-			while (listLinks.getNextPollIndex() == 0) { // Only download the posts in this round.
-				int ti0; // Temporary variable 
-				link = listLinks.poll();
-				String postId = link.substring(ti0 = link.indexOf("'") + 1, ti0 = link.indexOf("'", ti0 + 1));
+				System.out.println("Downloading " + listLinks.size(POST_LEVEL) + " forum posts.");
+			// In incremental mode, the manifest tells which posts have changed since the earlier runs.
+			ForumManifest manifest = incremental ? new ForumManifest(currentWorkingDir) : null;
+			PostCrawl postCrawl = new PostCrawl(listLinks, engine, forumId, manifest, journal, seenExtras, downloadedExtras, FORUM_URI);
+			// The posts all come from the forum, so at most numWorkers of them are downloaded at once in
+			// either mode. In thread-per-task mode, the images and attachments on other hosts are not.
+			postCrawl.run(threadPerTask ? maxTasks : numWorkers);
+			
+			if (manifest != null)
+				manifest.save();
+			if (incremental)
+				System.out.println(postCrawl.numSkipped + " post(s) unchanged since the last run.");
+			if (debug[3])
+				System.out.println("There are " + postCrawl.numImage + " images and " + postCrawl.numAttach + " attachments in " + postCrawl.numPosts + " posts.");
+			
+			// The crawl of the forum has completed. There is nothing to resume.
+			journal.finish();
+		}
+	}
+	
+	/**
+	 * The download of the posts of a forum, and of the images and attachments
+	 * found in them, by several crawl workers. Each worker takes a link from the
+	 * frontier, downloads it, and adds the images and attachments found in a post
+	 * to the frontier before it is done with the link. The crawl is over when the
+	 * frontier is drained. The state shared by the workers is safe for
+	 * multithreaded access.
+	 */
+	private static class PostCrawl {
+		private final CrawlFrontier<String> frontier;
+		private final CrawlEngine engine;
+		private final String forumId;
+		/** Manifest of the posts downloaded by earlier runs, or null */
+		private final ForumManifest manifest;
+		private final CrawlJournal journal;
+		/** Images and attachments already in the frontier */
+		private final SeenUrlSet seenExtras;
+		/** Images and attachments downloaded in this session, by canonical URL */
+		private final ConcurrentHashMap<String, File> downloadedExtras;
+		private final String extraDir;
+		private final URI baseURI;
+		// Statistics
+		final AtomicInteger numPosts, numSkipped, numImage, numAttach;
+		
+		PostCrawl(CrawlFrontier<String> frontier, CrawlEngine engine, String forumId, ForumManifest manifest, CrawlJournal journal, SeenUrlSet seenExtras, ConcurrentHashMap<String, File> downloadedExtras, URI baseURI) {
+			this.frontier = frontier;
+			this.engine = engine;
+			this.forumId = forumId;
+			this.manifest = manifest;
+			this.journal = journal;
+			this.seenExtras = seenExtras;
+			this.downloadedExtras = downloadedExtras;
+			this.extraDir = currentWorkingDir + "extra/";
+			this.baseURI = baseURI;
+			this.numPosts = new AtomicInteger();
+			this.numSkipped = new AtomicInteger();
+			this.numImage = new AtomicInteger();
+			this.numAttach = new AtomicInteger();
+		}
+		
+		/**
+		 * Run the crawl workers, and wait until the frontier is drained. If a worker
+		 * fails, the others stop after their current link, and the failure is thrown.
+		 * @param numCrawlWorkers
+		 *        Number of crawl workers.
+		 * @throws Exception
+		 */
+		void run(int numCrawlWorkers) throws Exception {
+			ExecutorService crawlWorkers = Executors.newFixedThreadPool(numCrawlWorkers);
+			List<Future<Void>> results = new ArrayList<Future<Void>>(numCrawlWorkers);
+			for (int i = 0; i < numCrawlWorkers; i++) {
+				results.add(crawlWorkers.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						work();
+						return null;
+					}
+				}));
+			}
+			crawlWorkers.shutdown();
+			try {
+				for (Future<Void> result : results)
+					result.get();
+			} catch (ExecutionException e) {
+				frontier.close();
+				crawlWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		
+		/**
+		 * Loop of a crawl worker.
+		 */
+		private void work() throws Exception {
+			try {
+				String link;
+				while ((link = frontier.take()) != null) {
+					try {
+						if (LinkRouter.classify(link, false) == LinkRouter.Route.POST) {
+							// Pipeline the posts queued after this one.
+							ArrayList<String> posts = new ArrayList<String>(pipelineDepth);
+							posts.add(link);
+							while (posts.size() < pipelineDepth && (link = frontier.poll(POST_LEVEL)) != null)
+								posts.add(link);
+							downloadPosts(posts);
+						} else
+							downloadExtra(link);
+					} finally {
+						frontier.done();
+					}
+				}
+			} catch (Exception e) {
+				// Stop the other workers. The links not done are still pending in the journal.
+				frontier.close();
+				throw e;
+			}
+		}
+		
+		/**
+		 * Download the posts, in one batch of pipelined requests, and add the images
+		 * and attachments found in them to the frontier.
+		 * @param posts
+		 *        The displayPost calls of the posts, on the list pages.
+		 */
+		private void downloadPosts(List<String> posts) throws Exception {
+			ArrayList<String> postAddresses = new ArrayList<String>(), postFileNames = new ArrayList<String>();
+			ArrayList<String> postIds = new ArrayList<String>();
+			// The images and attachments in each post are extracted while the post is downloaded.
+			ArrayList<PageScanner> postScanners = new ArrayList<PageScanner>();
+			for (String link : posts) {
+				String postId = LinkRouter.getPostId(link);
+				// The post may have been written by the interrupted crawl just before the crash. Download it again.
+				if (journal.isResumed())
+					deletePostFile(postId);
 				// We will download the archive version of the post by default.
-				client.setURL(FORUM_ADDRESS + "read_archive.aspx?forumid=" + forumId + "&postid=" + postId, true);
-				receivedFile = client.download(postId + ".html");
+				postAddresses.add(FORUM_ADDRESS + "read_archive.aspx?forumid=" + forumId + "&postid=" + postId);
+				postFileNames.add(postId + ".html");
+				postIds.add(postId);
+				postScanners.add(createScanner());
+			}
+			
+			List<Future<File>> postFiles = engine.submitAll(postAddresses, currentWorkingDir, postFileNames, postScanners);
+			for (int i = 0; i < postFiles.size(); i++) {
+				File receivedFile;
+				if ((receivedFile = CrawlEngine.await(postFiles.get(i))) == null)
+					continue;
+				numPosts.incrementAndGet();
+				if (manifest != null) {
+					// The list pages show nothing of edits and replies. The content of the post tells whether it has changed.
+					String digest = ForumManifest.digest(receivedFile);
+					if (manifest.isUnchanged(postIds.get(i), digest)) {
+						// Its images and attachments have been downloaded by the earlier run.
+						numSkipped.incrementAndGet();
+						journal.done(JOURNAL_POST, posts.get(i));
+						continue;
+					}
+					manifest.record(postIds.get(i), digest);
+				}
 				if (debug[3])
 					System.out.println("Downloaded file: " + receivedFile.getName());
 				
 				LinkedList<String> tll0;
-				// Add image links.
-				// TODO: Prevent images from the same source to be re-downloaded
-				listLinks.addAll(tll0 = parseLinks(receivedFile, new TagNameFilter("img"), "src", null), 1);
-				if (debug[3]) {
-					if (tll0.size() > 0) {
-						numImage += tll0.size();
-						System.out.println("Found " + tll0.size() + " image(s).");
-						System.out.println(tll0);
-					}
-					/* else
-						System.out.println("Image not found.");
-					*/
+				// Add image links. Images from the same source are only downloaded once.
+				addNewLinks(frontier, tll0 = getLinks(postScanners.get(i), IMAGE_LINKS), EXTRA_LEVEL, seenExtras, journal, baseURI);
+				if (debug[3] && tll0.size() > 0) {
+					numImage.addAndGet(tll0.size());
+					System.out.println("Found " + tll0.size() + " image(s).");
+					System.out.println(tll0);
 				}
 				
 				// Add attachment link.
-				listLinks.addAll(tll0 = parseLinks(receivedFile, new TagNameFilter("a"), "href", ATTACHMENT_REGEX), 1);
-				if (debug[3]) {
-					if (tll0.size() > 0) {
-						numAttach += tll0.size();
-						System.out.println("Found " + tll0.size() + " attachment(s).");
-						System.out.println(tll0);
-					}
-					/* else
-						System.out.println("Attachment not found.");
-					*/
+				addNewLinks(frontier, tll0 = getLinks(postScanners.get(i), ATTACHMENT_LINKS), EXTRA_LEVEL, seenExtras, journal, baseURI);
+				if (debug[3] && tll0.size() > 0) {
+					numAttach.addAndGet(tll0.size());
+					System.out.println("Found " + tll0.size() + " attachment(s).");
+					System.out.println(tll0);
 				}
+				
+				// All the links found in the post have been queued.
+				journal.done(JOURNAL_POST, posts.get(i));
 			}
-			
-			//--------------------------------
-			// Download images and attachments, if any.
-			
-			if (debug[3]) {
-				System.out.println("There are " + numImage + " images and " + numAttach + " attachments in the list of " + listLinks.size(1) + " links.");
-				System.out.println(listLinks.toString(1));
+		}
+		
+		/**
+		 * Download an image or attachment to the folder of extras. The folder is
+		 * created if it does not exist. If the file has been downloaded for an
+		 * earlier forum, it is copied instead.
+		 * @param link
+		 *        Absolute URL of the image or attachment.
+		 */
+		private void downloadExtra(String link) throws Exception {
+			boolean tb0; // Temporary variable
+			// Create a new directory for images and attachments
+			File folder = new File(extraDir);
+			if (!folder.exists()) {
+				tb0 = folder.mkdir();
+				if (debug[2])
+					System.out.println("Folder " + extraDir + (tb0 ? "" : " not") + " created.");
 			}
 			
-			// getNextPollIndex: always >= 1 because nothing is added to level 0 queue.
-			if (listLinks.getNextPollIndex() == 1) {
-				// Create a new directory for images and attachments
-				setCurrentWorkingDir(currentWorkingDir + "extra/", client, false);
-				while ((link = listLinks.poll()) != null) {
-					// resolve: If ts0 is absolute, return ts0; otherwise return ts0 after resolve against FORUM_URI
-					try {
-						client.setURL(FORUM_URI.resolve(link).toString(), true);
-					} catch (Exception e) {
-						e.printStackTrace();
-						continue;
-					}
-					receivedFile = client.download(null);
-					if (receivedFile == null) {
-						continue;
-					}
-					if (debug[3])
-						System.out.println("Downloaded file: " + receivedFile.getName());
+			// The links are absolute. See addNewLinks.
+			String canonicalURL = SeenUrlSet.canonicalize(link);
+			// Copy the file downloaded for an earlier forum instead of downloading it again.
+			File earlierFile = downloadedExtras.get(canonicalURL);
+			if (earlierFile != null && earlierFile.exists()) {
+				String name = earlierFile.getName();
+				if (blobStore == null)
+					copyFile(earlierFile, new File(extraDir + name));
+				else {
+					// Refer to the same blob. A pointer entry is named after the file.
+					if (name.endsWith(BlobStore.POINTER_FILE_EXTENSION))
+						name = name.substring(0, name.length() - BlobStore.POINTER_FILE_EXTENSION.length());
+					blobStore.duplicate(earlierFile, new File(extraDir + name));
 				}
+				journal.done(JOURNAL_EXTRA, link);
+				return;
 			}
+			
+			File receivedFile;
+			if ((receivedFile = CrawlEngine.await(engine.submit(link, extraDir, null))) == null)
+				return;
+			downloadedExtras.put(canonicalURL, receivedFile);
+			journal.done(JOURNAL_EXTRA, link);
+			if (debug[3])
+				System.out.println("Downloaded file: " + receivedFile.getName());
 		}
 	}
 	
@@ -342,51 +692,131 @@ public class ForumLeecher {
 	}
 
 	/**
-	 * Parse the HTML file.
-	 * @param htmlFile
-	 *        The HTML file to be parsed.
-	 * @param nodeFilter
-	 *        The node filter for selecting the useful nodes.
-	 * @param attribName
-	 *        The name of the attribute in the tag containing the data.
-	 * @param regexAttribValue
-	 *        Regular expression to match against the value of the specified
-	 *        attribute field.
+	 * Create a scanner which extracts all the links the crawler follows, and the
+	 * number of pages of a list, in one pass over the page.
+	 * @return a new scanner.
+	 */
+	private static PageScanner createScanner() {
+		PageScanner scanner = new PageScanner();
+		scanner.addAttributeExtractor(FRAME_LINKS, new TagNameFilter("frame"), "src", null);
+		scanner.addAttributeExtractor(IMAGE_LINKS, new TagNameFilter("img"), "src", null);
+		scanner.addAttributeExtractor(ATTACHMENT_LINKS, new TagNameFilter("a"), "href", ATTACHMENT_REGEX);
+		scanner.addAttributeExtractor(POST_LINKS, new TagNameFilter("a"), "onclick", DISPLAY_POST_REGEX);
+		scanner.addAttributeExtractor(TOPIC_LINKS, new TagNameFilter("a"), "href", ".*board_topic\\.aspx.*");
+		scanner.addAttributeExtractor(READ_LINKS, new TagNameFilter("a"), "href", ".*board_read\\.aspx.*");
+		scanner.addAttributeExtractor(ARCHIVE_LINKS, new HasAttributeFilter("id", "ibtnArchive"), "onclick", ".*forum_archive\\.aspx.*");
+		scanner.addTextExtractor(NUM_PAGES_TEXT, new HasAttributeFilter("id", "lblNoPages"));
+		return scanner;
+	}
+	
+	/**
+	 * Get the links found by an extractor of the scanner.
+	 * @param scanner
+	 *        The scanner which has scanned the page.
+	 * @param name
+	 *        Name of the extractor.
 	 * @return a list of String that contains our data.
 	 */
-	private static LinkedList<String> parseLinks(File htmlFile, NodeFilter nodeFilter, String attribName, String regexAttribValue) throws ParserException {
-		Parser parser = new Parser(htmlFile.getPath());
-		// Get node list satisfying node filter.
-		NodeList nodeList = parser.parse(nodeFilter);
-		if (debug[1])
-			System.out.println(nodeList.toHtml());
-		// List of relative URIs
-		LinkedList<String> links = new LinkedList<String>();
-		if (debug[1])
-			System.out.println("There are " + nodeList.size() + " nodes satisfying the node filter " + nodeFilter.getClass());
-		for (int i = 0; i < nodeList.size(); i++) {
-			TagNode elem = (TagNode) nodeList.elementAt(i);
-			String ts0; // Temporary variable
+	private static LinkedList<String> getLinks(PageScanner scanner, String name) {
+		// We will prevent the same link to appear twice
+		LinkedHashSet<String> links = new LinkedHashSet<String>();
+		for (String ts0 : scanner.get(name)) {
+			// Decode HTML coding of the URL and add the URL to the list.
+			String decodedURL = TextDecoder.decodeLink(ts0);
 			if (debug[1])
-				System.out.println(elem);
-			// Filter nodes with necessary attributes
-			if ((ts0 = elem.getAttribute(attribName)) != null) {
-				if (debug[1])
-					System.out.println("Node " + i + " has " + attribName + " attribute: " + ts0);
-				// If there is a regexFilter then we must match the entry against it.
-				if (regexAttribValue == null || ts0.matches(regexAttribValue)) {
-					if (debug[1])
-						System.out.println(decodeHtml(ts0));
-					
-					// Decode HTML coding of the URL and add the URL to the list.
-					// We will prevent the same link to appear twice
-					String decodedURL = decodeHtml(ts0);
-					if (!links.contains(decodedURL))
-						links.offer(decodedURL);
-				}
+				System.out.println(name + ": " + decodedURL);
+			links.add(decodedURL);
+		}
+		return new LinkedList<String>(links);
+	}
+	
+	/**
+	 * Add the links which have not been seen before to the frontier.
+	 * @param frontier
+	 *        The frontier to add the links to.
+	 * @param links
+	 *        The links found in a page.
+	 * @param level
+	 *        The level of the frontier.
+	 * @param seenLinks
+	 *        The links seen before. The new links are added to it.
+	 * @param journal
+	 *        The crawl journal. The new links are logged, and the links done by
+	 *        an interrupted crawl are not added.
+	 * @param baseURI
+	 *        Base URI to resolve relative links against. The links are added
+	 *        to the frontier as absolute URIs.
+	 */
+	private static void addNewLinks(CrawlFrontier<String> frontier, List<String> links, int level, SeenUrlSet seenLinks, CrawlJournal journal, URI baseURI) throws IOException {
+		for (String link : links) {
+			// resolve: If link is absolute, return link; otherwise return link after resolve against baseURI
+			try {
+				link = baseURI.resolve(link).toString();
+			} catch (IllegalArgumentException e) {
+				e.printStackTrace();
+				continue;
 			}
+			if (seenLinks.add(link) && journal.queue(JOURNAL_EXTRA, link))
+				frontier.add(link, level);
 		}
-		return links;
+	}
+	
+	/**
+	 * Log the links in the crawl journal.
+	 * @param journal
+	 *        The crawl journal.
+	 * @param kind
+	 *        Kind of the links.
+	 * @param links
+	 *        The links found in a page.
+	 * @return the links which have not been queued before, and should be queued.
+	 * @throws IOException
+	 */
+	private static LinkedList<String> queueLinks(CrawlJournal journal, int kind, List<String> links) throws IOException {
+		LinkedList<String> newLinks = new LinkedList<String>();
+		for (String link : links)
+			if (journal.queue(kind, link))
+				newLinks.add(link);
+		return newLinks;
+	}
+	
+	/**
+	 * Copy the file, unless the destination already exists.
+	 * @param from
+	 *        The file to be copied.
+	 * @param to
+	 *        The copy.
+	 * @throws IOException
+	 */
+	private static void copyFile(File from, File to) throws IOException {
+		if (!to.createNewFile())
+			return;
+		FileChannel in = new FileInputStream(from).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(to).getChannel();
+			try {
+				long position = 0, size = in.size();
+				while (position < size)
+					position += in.transferTo(position, size - position, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		if (debug[3])
+			System.out.println("Copied " + from.getPath() + " to " + to.getPath());
+	}
+	
+	/**
+	 * Delete the file of the post in the current working directory, in any of
+	 * the forms written by the HTTP client.
+	 */
+	private static void deletePostFile(String postId) {
+		String name = currentWorkingDir + postId + ".html";
+		new File(name).delete();
+		new File(name + ".gz").delete();
+		new File(name + ".zz").delete();
 	}
 	
 	private static String getForumId(Scanner sc) {
@@ -404,7 +834,7 @@ public class ForumLeecher {
 				System.out.println("Forum ID: " + forumId);
 			
 			// Check the input forum ID against regular expression
-			if (!forumId.matches(FORUM_ID_REGEX)) {
+			if (!LinkRouter.isGuid(forumId)) {
 				System.out.println("Invalid forum ID.");
 				continue;
 			} else 
@@ -428,34 +858,24 @@ public class ForumLeecher {
 	/*
 	private static String getFileNameFromQuery(String link) {
 		// If this is a link to an attachment, path parameter must present.
-		link = HttpClient.decodeURL(link.substring(link.lastIndexOf("path=") + "path=".length()));
+		link = TextDecoder.decodeURL(link.substring(link.lastIndexOf("path=") + "path=".length()));
 		// Assume the path does not end with '\'
 		return link.substring(link.lastIndexOf("\\") + 1); // lastIndexOf: When not found (-1), start from 0; when found ([0..length-1]), start from [1..length].
 	}*/
 	
-	private static int parseNumPages(File menuFile) throws Exception {
-		Parser parser = new Parser(menuFile.getPath());
-		NodeList nodeList = parser.parse(new HasAttributeFilter("id", "lblNoPages"));
+	private static int parseNumPages(PageScanner scanner, File menuFile) throws Exception {
+		LinkedList<String> texts = scanner.get(NUM_PAGES_TEXT);
 		if (debug[1])
-			System.out.println(nodeList.toHtml());
+			System.out.println(texts);
 		/*
 		 * We will assume there is always exactly one node satisfying the filter above.
 		 * Assume that only node is text node and it satisfies the format: "\\(\\d+\\)".
 		 */
-		String ts0 = ((TagNode) nodeList.elementAt(0)).getFirstChild().getText();
+		String ts0 = texts.isEmpty() ? "" : texts.getFirst();
 		int ti0; // Temporary variable
-		if (!ts0.matches("\\(\\d+\\)") || (ti0 = Integer.parseInt(ts0.substring(1, ts0.length() - 1))) < 1)
+		if (!NUM_PAGES_PATTERN.matcher(ts0).matches() || (ti0 = Integer.parseInt(ts0.substring(1, ts0.length() - 1))) < 1)
 			throw new Exception(menuFile.getPath() + " does not seem to be a valid menu.aspx");
 		else
 			return ti0;
 	}
-	
-	private static final String REPLACEMENT_PAIRS[][] = {{"(&quot;|&#34;)", "\""}, {"(&apos;|&#39;)", "'"}, {"(&amp;|&#38;)", "&"}, {"(&lt;|&#60;)", "<"}, {"(&gt;|&#62;)", ">"}, {"\\+", "%20"}}; 
-	
-	private static String decodeHtml(String link) {
-		for (String[] pair : REPLACEMENT_PAIRS)
-			link = link.replaceAll(pair[0], pair[1]);
-		
-		return link;
-	}
 }
\ No newline at end of file
@@ -0,0 +1,163 @@
+package org.nhahtdh;
+
+import java.util.*;
+import java.io.*;
+import java.security.*;
+
+/**
+ * Record of the posts archived from a forum, kept in the forum folder. It is used
+ * by incremental mode to skip the images and attachments of the posts which have
+ * not changed since an earlier run.
+ * <p>
+ * Each line of the manifest file is a post ID and the SHA-256 digest of the page of
+ * the post last downloaded, separated by a tab. A post is considered unchanged if
+ * the digest is the same. The list pages cannot tell: the displayPost call of a post
+ * stays the same when the post is edited or replied to, and the server may send
+ * no validators for the posts. So the posts are requested again in every run
+ * (conditionally, if the validation cache is on and the server gave validators),
+ * and only their images and attachments are skipped.
+ * 
+ * @author Hong Dai Thanh
+ *
+ */
+class ForumManifest {
+	//--------------
+	// Constants
+	//--------------
+	public static final String MANIFEST_FILE_NAME = "manifest.txt";
+	private static final String MANIFEST_CHARSET = "UTF-8";
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final int BUFFER_SIZE = 8192;
+	
+	//----------------
+	// Data members
+	//----------------
+	private final File file;
+	/** Post ID to digest, in the order the posts are recorded */
+	private final LinkedHashMap<String, String> posts;
+	private boolean modified;
+	
+	//----------------
+	// Constructors
+	//----------------
+	/**
+	 * Load the manifest of the forum. An empty manifest is created if the 
+	 * forum has not been archived before.
+	 * @param forumDir
+	 *        The forum folder, ending with slash /
+	 * @throws IOException
+	 */
+	public ForumManifest(String forumDir) throws IOException {
+		this.file = new File(forumDir + MANIFEST_FILE_NAME);
+		this.posts = new LinkedHashMap<String, String>();
+		if (!file.exists())
+			return;
+		
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), MANIFEST_CHARSET));
+		try {
+			String line; int ti0;
+			while ((line = in.readLine()) != null) {
+				// Ignore malformed lines. The post will be downloaded again.
+				if ((ti0 = line.indexOf('\t')) > 0)
+					posts.put(line.substring(0, ti0), line.substring(ti0 + 1));
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	//----------------
+	// Mutators
+	//----------------
+	/**
+	 * Record the digest of a post which has been downloaded.
+	 * @param postId
+	 *        ID of the post.
+	 * @param digest
+	 *        Digest of the page of the post (see {@link #digest(File)}).
+	 */
+	public synchronized void record(String postId, String digest) {
+		digest = normalize(digest);
+		String old = posts.put(postId, digest);
+		if (!digest.equals(old))
+			modified = true;
+	}
+	
+	/**
+	 * Write the manifest to disk, if modified. The manifest is written to a
+	 * temporary file first, so that a crash will not leave a truncated manifest.
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (!modified)
+			return;
+		File tempFile = new File(file.getPath() + ".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), MANIFEST_CHARSET));
+		try {
+			for (Map.Entry<String, String> entry : posts.entrySet())
+				out.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+		} finally {
+			out.close();
+		}
+		// renameTo does not replace an existing file on all platforms.
+		if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+			throw new IOException("Cannot write " + file.getPath());
+		modified = false;
+	}
+	
+	//----------------
+	// Accessors
+	//----------------
+	/**
+	 * Check whether a post has been downloaded and has not changed since.
+	 * @param postId
+	 *        ID of the post.
+	 * @param digest
+	 *        Digest of the page of the post just downloaded.
+	 * @return {@code true} if the post has been recorded with the same digest.
+	 */
+	public synchronized boolean isUnchanged(String postId, String digest) {
+		return normalize(digest).equals(posts.get(postId));
+	}
+	
+	/**
+	 * Compute the digest of the page of a post, as recorded in the manifest.
+	 * @param file
+	 *        The file of the post.
+	 * @return the SHA-256 digest of the file, in hexadecimal digits.
+	 * @throws IOException
+	 */
+	public static String digest(File file) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is always available.
+			throw new IllegalStateException(e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte data[] = new byte[BUFFER_SIZE];
+			int ti0; // Temporary variable
+			while ((ti0 = in.read(data)) >= 0)
+				messageDigest.update(data, 0, ti0);
+		} finally {
+			in.close();
+		}
+		StringBuilder digest = new StringBuilder();
+		for (byte b : messageDigest.digest())
+			digest.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return digest.toString();
+	}
+	
+	/**
+	 * Replace the characters used as separators in the manifest file.
+	 */
+	private static String normalize(String value) {
+		return value.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+	}
+	
+	public synchronized int size() {
+		return posts.size();
+	}
+}
@@ -3,14 +3,25 @@ package org.nhahtdh;
 import java.util.*;
 import java.io.*;
 import java.net.*;
-
-import javax.net.ssl.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.regex.*;
+import java.util.zip.*;
+import java.security.*;
 
 /**
  * - Support HTTP and HTTPS protocol.
  * - Does NOT check the certificate in HTTPS protocol.
  * - Basic chunk-encoding is implemented.
- * - Pipelining is NOT implemented.
+ * - gzip and deflate content-encoding are negotiated and decoded on the fly.
+ * - GET requests are revalidated with ETag/Last-Modified if a ValidationCache is set.
+ * - Interrupted downloads can be resumed with Range requests (see setResumable).
+ * - Pipelining is implemented for GET requests (opt-in, see downloadAll).
+ * - Links can be extracted from the page while it is downloaded (see PageScanner).
+ * - Received files can be de-duplicated by content in a BlobStore.
+ * - Keep-alive connections are shared through a ConnectionPool.
+ * - Requests can be paced by a Throttle shared by several clients.
+ * - Failed GET requests can be retried with backoff (see setRetryPolicy).
  * - Cookie is fully (?) supported.
  * - Most status code other than 200 will return an error.
  * 
@@ -40,7 +51,22 @@ class HttpClient {
 	private static final int MAX_REDIRECTION = 5;
 	private static final String DEFAULT_FILE_NAME = "default_named.html";
 	private static final String INVALID_WINDOWS_FILE_NAME_CHARACTER_SET = "/\\\\:\\*\\?\"<>"; 
-	private static final int DEFAULT_RECEIVE_BUFFER_SIZE = 1024;
+	private static final Pattern INVALID_WINDOWS_FILE_NAME_CHARACTER = Pattern.compile("[" + INVALID_WINDOWS_FILE_NAME_CHARACTER_SET + "]");
+	private static final String GZIP_ENCODING = "gzip";
+	private static final String DEFLATE_ENCODING = "deflate";
+	private static final String GZIP_FILE_EXTENSION = ".gz";
+	private static final String DEFLATE_FILE_EXTENSION = ".zz";
+	private static final String PART_FILE_EXTENSION = ".part";
+	private static final String PART_META_FILE_EXTENSION = ".part.meta";
+	private static final String BODY_CHARSET = "UTF-8";
+	// Header lines which do not change between requests
+	private static final byte USER_AGENT_LINE[] = RequestEncoder.encode("User-Agent: " + DEFAULT_USER_AGENT + "\r\n");
+	private static final byte ACCEPT_ENCODING_LINE[] = RequestEncoder.encode("Accept-Encoding: " + GZIP_ENCODING + ", " + DEFLATE_ENCODING + "\r\n");
+	private static final byte FORM_CONTENT_TYPE_LINE[] = RequestEncoder.encode("Content-Type: application/x-www-form-urlencoded\r\n");
+	private static final byte KEEP_ALIVE_LINE[] = RequestEncoder.encode("Connection: Keep-Alive\r\n");
+	private static final byte CLOSE_LINE[] = RequestEncoder.encode("Connection: close\r\n");
+	private static final int MIN_RECEIVE_BUFFER_SIZE = 8192;
+	private static final int MAX_RECEIVE_BUFFER_SIZE = 262144;
 
 	//----------------
 	// Data members
@@ -61,11 +87,45 @@ class HttpClient {
 	// HTTP 1.1 entries
 	private CookieStore cookieStore;
 	private boolean keepAlive;
+	/** Validators of the files downloaded earlier. Null if conditional requests are not used. */
+	private ValidationCache validationCache;
+	/** Store of received files by content, or null to keep every file as-is */
+	private BlobStore blobStore;
+	/** Whether to write the body to a .part file first, so that it can be resumed if interrupted */
+	private boolean resumable;
+	/** Whether the received file is left under its .part name, until moved to its name by commitFile */
+	private boolean commitDeferred;
+	/** Whether to overwrite an existing file with the same name as the received file */
+	private boolean overwrite;
+	/** Limiter of the requests, or null to send requests without limit */
+	private Throttle throttle;
+	/** Policy of retrying failed downloads, or null to fail on the first error */
+	private RetryPolicy retryPolicy;
+	/** Whether to ask the server for gzip or deflate content-encoding */
+	private boolean acceptCompression;
+	/** Whether to write compressed message body to disk as-is instead of decoding it */
+	private boolean keepCompressed;
+	/** Maximum number of requests sent back-to-back on one connection. 1 disables pipelining. */
+	private int pipelineDepth;
 
 	// IO interfaces
-	private Socket socket;
-	private OutputStreamWriter send;
+	private ConnectionPool pool;
+	/** Connection checked out from the pool for the current request */
+	private ConnectionPool.Connection connection;
+	private OutputStream send;
 	private RawStreamReader receive;
+	/** Reusable buffer for the requests to be sent */
+	private RequestEncoder requestEncoder;
+	/** Reusable buffer for chunk-size lines and trailers */
+	private StringBuilder lineBuilder;
+	/** Reusable buffer for message body which cannot be transferred by the channel */
+	private byte[] receiveBuffer;
+	/** Port number of the target address of the last connection */
+	private int remotePort;
+	/** Scanner of the page being downloaded, if any */
+	private PageScanner scanner;
+	/** Copy of the message body for the scanner, while the body is being read */
+	private OutputStream tee;
 
 	// HTTP response header parser
 	private HttpResponseHeader responseHeaderParser;
@@ -76,8 +136,37 @@ class HttpClient {
 
 	// Default constructor.
 	public HttpClient() {
+		this(new VersionedCookieStore(new CookieManager().getCookieStore()));
+	}
+
+	/**
+	 * Create a client which shares the given cookie store with other clients.
+	 * @param cookieStore
+	 *        The cookie store to be used. It must be safe for multithreaded access
+	 *        if shared between threads. The Cookie field is only kept encoded
+	 *        between requests if the store is a {@code VersionedCookieStore}.
+	 */
+	public HttpClient(CookieStore cookieStore) {
+		this(cookieStore, ConnectionPool.getSharedPool());
+	}
+
+	/**
+	 * Create a client which shares the given cookie store and connection pool
+	 * with other clients.
+	 * @param cookieStore
+	 *        The cookie store to be used. It must be safe for multithreaded access
+	 *        if shared between threads.
+	 * @param pool
+	 *        The pool of keep-alive connections.
+	 */
+	public HttpClient(CookieStore cookieStore, ConnectionPool pool) {
 		this.workingDir = "";
-		this.cookieStore = new CookieManager().getCookieStore();
+		this.cookieStore = cookieStore;
+		this.pool = pool;
+		this.pipelineDepth = 1;
+		this.acceptCompression = true;
+		this.lineBuilder = new StringBuilder();
+		this.requestEncoder = new RequestEncoder();
 		this.responseHeaderParser = new HttpResponseHeader();
 	}
 
@@ -95,8 +184,8 @@ class HttpClient {
 				System.out.println("Current URL: " + URL);
 			System.out.println("Input address: " + address);
 		}
-		// Resolve the relative address if fail to match the pattern of absolute path.
-		if (!address.matches(".*://.*"))
+		// Resolve the relative address if it is not an absolute URL.
+		if (address.indexOf("://") < 0)
 			address = URL.resolve(address).toString();
 		// Set the full URL
 		this.URL = new URI(address);
@@ -150,26 +239,6 @@ class HttpClient {
 			System.out.println("** End URL Information **");
 		}
 	}
-
-	/**
-	 * Helper method for setURL method. This method decode the given URL.
-	 * <p> A URL encoder must parse the URL and encode them separately before
-	 * putting the fragments together.
-	 * @param URL
-	 *        The URL to be decoded.
-	 * @return the corresponding decoded URL.
-	 */
-	private static String decodeURL(String URL) {
-		StringBuilder name = new StringBuilder(URL);
-		int index = -1, charCode;
-
-		while ((index = name.indexOf("%", index + 1)) >= 0) { // indexOf() will work for any starting index
-			charCode = Short.parseShort(name.substring(index + 1, index + 3), 16); // char type is 16-bit so we use parseShort
-			name.replace(index, index + 3, Character.toString((char) charCode));
-		}
-
-		return name.toString();
-	}
 	
 	/**
 	 * Set the current working directory on the local system.
@@ -180,7 +249,8 @@ class HttpClient {
 	 */
 	// TODO: Check whether the directory exist before setting the directory.
 	public String setWorkingDir(String relPath) {
-		if (!relPath.matches("[^/].*/")) {
+		// The path must be relative, and end with a slash.
+		if (relPath.length() < 2 || relPath.charAt(0) == '/' || relPath.charAt(relPath.length() - 1) != '/') {
 			if (debug[1])
 				System.out.println("Working directory not set.");
 			return null;
@@ -192,6 +262,129 @@ class HttpClient {
 		return ts0;
 	}
 
+	/**
+	 * Get the cookie store of this client, so that it can be shared with other clients.
+	 * @return the cookie store.
+	 */
+	public CookieStore getCookieStore() {
+		return cookieStore;
+	}
+
+	/**
+	 * Set the maximum number of requests sent back-to-back on one connection by
+	 * downloadAll method.
+	 * @param pipelineDepth
+	 *        The depth of the pipeline. 1 disables pipelining.
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		if (pipelineDepth < 1)
+			throw new IllegalArgumentException("Invalid pipeline depth: " + pipelineDepth);
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	/**
+	 * Set the cache of validators used for conditional GET requests. The file
+	 * downloaded earlier is returned when the server answers 304 Not Modified.
+	 * @param validationCache
+	 *        The cache, which may be shared with other clients. Null disables
+	 *        conditional requests.
+	 */
+	public void setValidationCache(ValidationCache validationCache) {
+		this.validationCache = validationCache;
+	}
+
+	/**
+	 * Set whether downloads can be resumed. The message body is written to a
+	 * .part file in the working directory, named after the URL, and moved to the
+	 * received file when complete. If the download is interrupted, the .part file
+	 * is kept, and the next request of the same URL asks only for the missing bytes
+	 * with Range and If-Range header fields.
+	 * @param resumable
+	 *        Whether downloads can be resumed.
+	 */
+	public void setResumable(boolean resumable) {
+		this.resumable = resumable;
+	}
+
+	/**
+	 * Set whether the received file is left in the .part file of the URL, whether
+	 * or not downloads can be resumed, instead of taking its name in the working
+	 * directory. Its validators are not kept and it is not stored in the blob store
+	 * until it is moved to its name by commitFile. Used by hedged downloads, so that
+	 * only the request which wins takes a name.
+	 * @param commitDeferred
+	 *        Whether the received file is left under its .part name.
+	 */
+	void setCommitDeferred(boolean commitDeferred) {
+		this.commitDeferred = commitDeferred;
+	}
+
+	/**
+	 * Set the store where received files are kept by content. The SHA-256 digest
+	 * of the body is computed as the body is written to disk, and the file is
+	 * replaced by a reference to the blob with the same content (see BlobStore).
+	 * Pages downloaded with a PageScanner are not stored, since they are read
+	 * back by the crawler.
+	 * @param blobStore
+	 *        The store, or null to keep every file as-is.
+	 */
+	public void setBlobStore(BlobStore blobStore) {
+		this.blobStore = blobStore;
+	}
+
+	/**
+	 * Set whether to overwrite an existing file with the same name as the received
+	 * file. By default, the received file is renamed to "name (n).ext" instead.
+	 * @param overwrite
+	 *        Whether to overwrite existing files.
+	 */
+	public void setOverwrite(boolean overwrite) {
+		this.overwrite = overwrite;
+	}
+
+	/**
+	 * Set the limiter of the requests. A permit is taken from the throttle before
+	 * each request (or each pipelined batch), and the status code and the time to
+	 * the response header are reported back, so that the throttle can adapt.
+	 * @param throttle
+	 *        The throttle, or null to send requests without limit.
+	 */
+	public void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+
+	/**
+	 * Set the policy of retrying downloads. GET requests which fail with an
+	 * exception or a transient status code (see RetryPolicy) are sent again after
+	 * a backoff. POST requests are never retried, since they are not idempotent.
+	 * @param retryPolicy
+	 *        The policy, or null to fail on the first error.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Set whether to ask the server for gzip or deflate content-encoding. 
+	 * Compressed message bodies are decoded before being written to disk,
+	 * unless keepCompressed is set.
+	 * @param acceptCompression
+	 *        Whether to send Accept-Encoding header field.
+	 */
+	public void setAcceptCompression(boolean acceptCompression) {
+		this.acceptCompression = acceptCompression;
+	}
+
+	/**
+	 * Set whether to write compressed message bodies to disk as-is for archival.
+	 * The extension .gz (gzip) or .zz (deflate) is appended to the file name.
+	 * @param keepCompressed
+	 *        Whether to keep the compressed bytes.
+	 */
+	public void setKeepCompressed(boolean keepCompressed) {
+		this.keepCompressed = keepCompressed;
+	}
+
 	/**
 	 * Remove all cookies from cookie store.
 	 */
@@ -208,7 +401,180 @@ class HttpClient {
 	 * @throws URISyntaxException
 	 */
 	public File download(String fileName) throws UnknownHostException, IOException, URISyntaxException {
-		return this.request(GET_METHOD, null, fileName);
+		return download(fileName, null);
+	}
+
+	/**
+	 * Start downloading the file as specified by earlier call of setURL method,
+	 * and run the scanner on the page as it is received.
+	 * 
+	 * @param scanner
+	 *        The scanner to run on the received page, or null.
+	 * @return a {@code java.io.File} object pointing to the received file.
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 * @throws URISyntaxException
+	 */
+	public File download(String fileName, PageScanner scanner) throws UnknownHostException, IOException, URISyntaxException {
+		if (retryPolicy == null)
+			return this.request(GET_METHOD, null, fileName, scanner);
+		
+		for (int attempt = 1; ; attempt++) {
+			try {
+				File outFile = this.request(GET_METHOD, null, fileName, scanner);
+				if (attempt >= retryPolicy.getMaxAttempts() || !retryPolicy.isRetryable(getStatusCode()))
+					return outFile;
+				if (debug[0])
+					System.out.println(this.URL + ": " + getStatusCode() + ". Retrying...");
+			} catch (IOException e) {
+				if (attempt >= retryPolicy.getMaxAttempts() || !retryPolicy.isRetryable(e))
+					throw e;
+				if (debug[0])
+					System.out.println(this.URL + ": " + e + ". Retrying...");
+			}
+			retryPolicy.backoff(attempt);
+		}
+	}
+
+	/**
+	 * Download the files with GET requests. When pipelining is enabled, up to 
+	 * pipelineDepth requests to the same host are written back-to-back on one
+	 * connection, then the responses are read in order.
+	 * <p> If the server closes the connection in the middle of a batch, the
+	 * requests without response are sent again on a new connection, and the
+	 * depth is reduced to the number of responses the server gave on the closed
+	 * connection. Redirected requests (and resumed requests whose range is not
+	 * satisfiable) are sent again after the batch.
+	 * 
+	 * @param addresses
+	 *        The URIs to the files.
+	 * @param fileNames
+	 *        The names of the files, or null to name all files automatically. An
+	 *        entry set to null will be named automatically.
+	 * @return the received files, in the order of the URIs. An entry is null if
+	 * the server returned a status code other than 200.
+	 * @throws IOException
+	 * @throws URISyntaxException
+	 */
+	public List<File> downloadAll(List<String> addresses, List<String> fileNames) throws IOException, URISyntaxException {
+		return downloadAll(addresses, fileNames, null);
+	}
+	
+	/**
+	 * Download the files with GET requests, and run a scanner on each received
+	 * page. See {@link #downloadAll(List, List)}.
+	 * 
+	 * @param scanners
+	 *        The scanners to run on the pages, or null to scan none of the pages.
+	 *        An entry set to null will not be scanned.
+	 * @throws IOException
+	 * @throws URISyntaxException
+	 */
+	public List<File> downloadAll(List<String> addresses, List<String> fileNames, List<PageScanner> scanners) throws IOException, URISyntaxException {
+		int n = addresses.size();
+		File received[] = new File[n];
+		// Absolute URI of redirection target of each request, if any.
+		String redirections[] = new String[n];
+		int depth = this.pipelineDepth;
+		int pos = 0;
+		
+		while (pos < n) {
+			//-----------------------------
+			// Build the batch from the requests to the same host as the first one.
+			requestEncoder.clear();
+			boolean batchHttps = false; String batchHost = null; int batchPort = -1;
+			int end;
+			for (end = pos; end < n && end - pos < depth; end++) {
+				setURL(addresses.get(end), true);
+				if (end == pos) {
+					batchHttps = this.isHttps; batchHost = this.host; batchPort = this.port;
+				} else if (this.isHttps != batchHttps || !this.host.equalsIgnoreCase(batchHost) || this.port != batchPort)
+					break;
+				encodeRequest(GET_METHOD, null);
+			}
+			
+			if (end - pos == 1) {
+				// Nothing to pipeline.
+				setURL(addresses.get(pos), true);
+				received[pos] = this.download(fileNames == null ? null : fileNames.get(pos), scanners == null ? null : scanners.get(pos));
+				pos++;
+				continue;
+			}
+			
+			//-----------------------------
+			// Send the whole batch, then read the responses in order.
+			setURL(addresses.get(pos), true);
+			Throttle.Permit permit = acquirePermit();
+			int i = pos;
+			try {
+				this.connect();
+			} catch (IOException e) {
+				failPermit(permit);
+				throw e;
+			}
+			boolean reused = this.connection.reused;
+			try {
+				if (debug[1])
+					System.out.println("\n" + requestEncoder);
+				requestEncoder.writeTo(send);
+				
+				for ( ; i < end; i++) {
+					setURL(addresses.get(i), true);
+					this.responseHeaderParser.parse(receive);
+					reportPermit(permit);
+					this.scanner = scanners == null ? null : scanners.get(i);
+					File outFile = processResponse(fileNames == null ? null : fileNames.get(i));
+					if (isRedirection(responseHeaderParser.getStatusCode()))
+						redirections[i] = this.URL.resolve(getFirstValue("Location")).toString();
+					else if (responseHeaderParser.getStatusCode() == 416 && resumable)
+						// The .part file has been discarded. Download the whole file again.
+						redirections[i] = this.URL.toString();
+					else if (retryPolicy != null && retryPolicy.isRetryable(responseHeaderParser.getStatusCode()))
+						// Download it again alone, with retries.
+						redirections[i] = this.URL.toString();
+					else
+						received[i] = outFile;
+					
+					// The server will not answer the rest of the batch on this connection.
+					if (!this.keepAlive) {
+						i++;
+						break;
+					}
+				}
+				this.releaseConnection(this.keepAlive);
+				this.scanner = null;
+			} catch (IOException e) {
+				this.releaseConnection(false);
+				this.scanner = null;
+				// A stale connection closed before the first response is not a sign of load. A timeout is.
+				boolean timedOut = e instanceof SocketTimeoutException;
+				if (i > pos || !reused || timedOut)
+					failPermit(permit);
+				// Give up if a new connection fails, or the server does not answer, before any response is read.
+				if (i == pos && (!reused || timedOut))
+					throw e;
+				if (debug[0])
+					System.out.println("Connection closed after " + (i - pos) + " of " + (end - pos) + " pipelined responses.");
+			} finally {
+				releasePermit(permit);
+			}
+			
+			// Fall back to a shallower pipeline if the server closed the connection early.
+			if (i < end && i > pos)
+				depth = i - pos;
+			pos = i;
+		}
+		
+		//-----------------------------
+		// Follow the redirections one by one.
+		for (int i = 0; i < n; i++) {
+			if (redirections[i] != null) {
+				setURL(redirections[i], true);
+				received[i] = this.download(fileNames == null ? null : fileNames.get(i), scanners == null ? null : scanners.get(i));
+			}
+		}
+		
+		return Arrays.asList(received);
 	}
 
 	/**
@@ -225,65 +591,92 @@ class HttpClient {
 	 * @throws URISyntaxException
 	 */
 	public File request(String method, String postData, String fileName) throws UnknownHostException, IOException, URISyntaxException {
+		return request(method, postData, fileName, null);
+	}
+	
+	/**
+	 * Send request to the server and receive response from the server, and run
+	 * the scanner on the received page. See {@link #request(String, String, String)}.
+	 * 
+	 * @param scanner
+	 *        The scanner to run on the received page, or null.
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 * @throws URISyntaxException
+	 */
+	public File request(String method, String postData, String fileName, PageScanner scanner) throws UnknownHostException, IOException, URISyntaxException {
+		this.scanner = scanner;
+		try {
+			return doRequest(method, postData, fileName);
+		} finally {
+			this.scanner = null;
+		}
+	}
+	
+	private File doRequest(String method, String postData, String fileName) throws UnknownHostException, IOException, URISyntaxException {
 		int i = 0;
 		while (i < MAX_REDIRECTION) {
-			// Connect to the host. Get input and output streams.
-			if (socket == null || socket.isClosed())
-				this.connect();
-			else if (!socket.getInetAddress().getHostName().equals(host) || socket.getPort() != port) {
-				// Close the unused open connection.
-				this.close();
-				// Connect to new address or new port of the same address
-				this.connect();
-			}
-			//-----------------------------
-			// Send request to server
-			String request = getRequestString(method, postData);
-			if (debug[1])
-				System.out.println("\n" + request);
-			send.write(request);
-			send.flush();
-			//-----------------------------
-			// Process response from server
-			List<String> tl0; // Temporary variables
-			// Parse the HTTP response header
-			this.responseHeaderParser.parse(receive);
-
-			// Add cookies to the cookie store. Set-Cookie2 is ignored de facto.
-			if ((tl0 = this.responseHeaderParser.getValue("Set-Cookie")) != null) {
-				if (debug[1])
-					System.out.println("** Start Set-Cookie **");
-				for (String s : tl0)
-					setCookie(s);
-				if (debug[1])
-					System.out.println("** End Set-Cookie **");
+			File outFile;
+			Throttle.Permit permit = acquirePermit();
+			try {
+				// Check out a connection to the host. Get input and output streams.
+				try {
+					this.connect();
+				} catch (IOException e) {
+					failPermit(permit);
+					throw e;
+				}
+				try {
+					//-----------------------------
+					// Send request to server
+					requestEncoder.clear();
+					encodeRequest(method, postData);
+					if (debug[1])
+						System.out.println("\n" + requestEncoder);
+					requestEncoder.writeTo(send);
+					//-----------------------------
+					// Parse the HTTP response header
+					this.responseHeaderParser.parse(receive);
+				} catch (IOException e) {
+					/*
+					 * The server may have closed the idle connection before we reuse it.
+					 * In that case, retry with another connection. Give up if the
+					 * connection is a new one, or if the server is too slow to answer.
+					 */
+					boolean reused = this.connection.reused;
+					this.releaseConnection(false);
+					if (!reused || e instanceof SocketTimeoutException) {
+						failPermit(permit);
+						throw e;
+					}
+					if (debug[0])
+						System.out.println("Stale connection discarded. Retrying...");
+					continue;
+				}
+				reportPermit(permit);
+				
+				try {
+					outFile = processResponse(fileName);
+					// Return the connection to the pool if the server keeps it alive.
+					this.releaseConnection(this.keepAlive);
+				} catch (IOException e) {
+					// The response is not fully read, so the connection cannot be reused.
+					this.releaseConnection(false);
+					failPermit(permit);
+					throw e;
+				}
+			} finally {
+				releasePermit(permit);
 			}
-
-			/* 
-			 * Set keep alive flag. We will close the connection for any HTTP 1.0 server
-			 * and assume any HTTP 1.1 server will keep the connection alive unless 
-			 * "Connection: close" is specified in the header.
-			 * We will ignore Keep-Alive header since it is not a standard HTTP header.
-			 */
-			if (responseHeaderParser.getVersion().equals("1.0")
-					|| ((tl0 = this.responseHeaderParser.getValue("Connection")) != null && tl0.get(0).toLowerCase().equals("close")))
-				this.keepAlive = false;
-			if (debug[1])
-				System.out.println("Keep-Alive: " + this.keepAlive);
 			
-			// Get status code.
 			int statusCode = responseHeaderParser.getStatusCode();
-
-			// Check the status code and take action against it.
-			switch (statusCode) {
-			case 100: // Continue
-			case 101: // Switching Protocols
-			case 204: // No Content
-			case 304: // Not Modified
-				// _TODO: Implement the correct reaction when receiving these status codes.
-				// These status codes do not expect message body.
-				return null;
-			case 302: // Found
+			if (statusCode == 416 && resumable) {
+				// The .part file has been discarded. Download the whole file.
+				i++;
+				continue;
+			}
+			if (isRedirection(statusCode)) {
+				i++; // Increment the number of redirection done.
 				/*
 				 * Getting 302 Found for POST means our request has reached the
 				 * destination and has been processed. Therefore, we can reset
@@ -291,59 +684,185 @@ class HttpClient {
 				 * 
 				 * The same request method should be kept for code 301 and 307.
 				 */
-				if (method.equals(POST_METHOD)) {
+				if (statusCode == 302 && method.equals(POST_METHOD)) {
 					method = GET_METHOD;
 					postData = null;
 				}
-				// Continue.
-			case 301: // Moved permanently
-			case 307: // Temporary Redirect
-				i++; // Increment the number of redirection done.
-				if (debug[0])
-					System.out.println("Redirecting... ");
-				// Continue.
-			case 200: // OK
-				// Only status code 200, 301, 302, 307 can enter this portion of the code.
-				
-				// Set the file name for the response body. A file is yet to be created at this stage.
-				setFileName(fileName);
-				if (debug[1])
-					System.out.println("File name: " + this.fileName);
-				
-				// Get body of the response.
-				File outFile = getBody(statusCode == 200); // Write to file only if status code is 200
+				/* 
+				 * Assume Location field is always present in the header
+				 * for these 3 status codes.
+				 * 
+				 * The file received will be automatically named, regardless
+				 * of the file name supplied.
+				 */
+				setURL(getFirstValue("Location"), true);
+				continue;
+			}
+			
+			return outFile;
+		}
+		
+		throw new SocketException("Maximum number of redirections reached");
+	}
+	
+	/**
+	 * Private helper method for request. Wait for a permit of the throttle to send
+	 * a request to the current host.
+	 * @return the permit, or null if there is no throttle.
+	 */
+	private Throttle.Permit acquirePermit() throws InterruptedIOException {
+		return throttle == null ? null : throttle.acquire(this.host);
+	}
+	
+	private void reportPermit(Throttle.Permit permit) {
+		if (permit != null)
+			permit.received(responseHeaderParser.getStatusCode(), getFirstValue("Retry-After"));
+	}
+	
+	private static void failPermit(Throttle.Permit permit) {
+		if (permit != null)
+			permit.failed();
+	}
+	
+	private static void releasePermit(Throttle.Permit permit) {
+		if (permit != null)
+			permit.release();
+	}
+	
+	private String getFirstValue(String fieldName) {
+		return this.responseHeaderParser.getFirstValue(fieldName);
+	}
+	
+	private static boolean isRedirection(int statusCode) {
+		return statusCode == 301 || statusCode == 302 || statusCode == 307;
+	}
+	
+	/**
+	 * Private helper method for request. Process the response whose header has been
+	 * parsed, and read the message body, if any.
+	 * @param fileName
+	 *        The name of the file to write the body to. The file will be automatically 
+	 *        named if set to null.
+	 * @return the received file if the status code is 200; otherwise, null.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("fallthrough") // The redirections and 416 without a .part file continue into the next cases.
+	private File processResponse(String fileName) throws IOException {
+		//-----------------------------
+		// Process response from server
 
-				// Close the connection if needed.
-				if (!this.keepAlive)
-					this.close();
+		// Do not leave the results of the last page in the scanner if this response has no page.
+		if (scanner != null)
+			scanner.reset(null, null);
 
-				if (statusCode == 200)
-					// Return the File object.
-					return outFile;
-				else {
-					/* 
-					 * If the status code is 301, 302 or 307, do redirection.
-					 * Assume Location field is always present in the header
-					 * for these 3 status codes.
-					 * 
-					 * The file received will be automatically named, regardless
-					 * of the file name supplied.
-					 */
-					setURL(this.responseHeaderParser.getValue("Location").get(0), true);
-					continue;
+		processHeader();
+		
+		// Get status code.
+		int statusCode = responseHeaderParser.getStatusCode();
+
+		// Check the status code and take action against it.
+		switch (statusCode) {
+		case 304: // Not Modified
+			// Our copy is still valid. The status code does not expect message body.
+			ValidationCache.Entry cached;
+			if (validationCache != null && (cached = validationCache.get(this.URL.toString(), workingDir)) != null) {
+				if (debug[0])
+					System.out.println("\n" + this.URL + " not modified. Using " + cached.file.getPath());
+				if (scanner != null)
+					scanner.scan(cached.file);
+				return cached.file;
+			}
+			return null;
+		case 100: // Continue
+		case 101: // Switching Protocols
+		case 204: // No Content
+			// _TODO: Implement the correct reaction when receiving these status codes.
+			// These status codes do not expect message body.
+			return null;
+		case 302: // Found
+		case 301: // Moved permanently
+		case 307: // Temporary Redirect
+			if (debug[0])
+				System.out.println("Redirecting... ");
+			// Continue.
+		case 206: // Partial Content
+			// Only sent by the server when we resume a download.
+		case 200: // OK
+			// Only status code 200, 206, 301, 302, 307 can enter this portion of the code.
+			
+			// Set the file name for the response body. A file is yet to be created at this stage.
+			setFileName(fileName);
+			if (debug[1])
+				System.out.println("File name: " + this.fileName);
+			
+			// Get body of the response.
+			File outFile = getBody(statusCode == 200 || statusCode == 206); // Write to file only if status code is 200 or 206
+
+			if (statusCode == 200 || statusCode == 206) {
+				// Keep the validators for the next request of the same URL. A deferred file is not there yet.
+				if (validationCache != null && !commitDeferred)
+					validationCache.put(this.URL.toString(), getFirstValue("ETag"), getFirstValue("Last-Modified"), outFile);
+				if (scanner != null) {
+					if (statusCode == 200)
+						scanner.scan();
+					else
+						// Only the rest of the file has been received. Scan the whole file.
+						scanner.scan(outFile);
 				}
-				// BREAK.
-			default:
-				// Throw exception for the rest of the statuses.
-				// Unimplemented statuses are listed under
-				// _UNIMPLEMENTED_STATUSES comment
-				System.err.println(this.URL + ": " + statusCode + " " + this.responseHeaderParser.getReason());
+				// Return the File object.
+				return outFile;
+			}
+			else
+				// Redirection is done by the caller.
+				return null;
+			// BREAK.
+		case 416: // Requested Range Not Satisfiable
+			if (resumable) {
+				// The part we have does not match the file on the server. Start over.
+				deletePartFile();
+				getBody(false);
 				return null;
-				// throw new SocketException(statusCode + " " + this.responseHeaderParser.getReason());
 			}
+			// Continue.
+		default:
+			// Throw exception for the rest of the statuses.
+			// Unimplemented statuses are listed under
+			// _UNIMPLEMENTED_STATUSES comment
+			System.err.println(this.URL + ": " + statusCode + " " + this.responseHeaderParser.getReason());
+			// Discard the body, so that the connection can be reused.
+			getBody(false);
+			return null;
+			// throw new SocketException(statusCode + " " + this.responseHeaderParser.getReason());
 		}
-		
-		throw new SocketException("Maximum number of redirections reached");
+	}
+
+	/**
+	 * Private helper method for processResponse. Take the cookies and the
+	 * keep-alive flag from the parsed header.
+	 */
+	private void processHeader() {
+		List<String> tl0; // Temporary variables
+
+		// Add cookies to the cookie store. Set-Cookie2 is ignored de facto.
+		if ((tl0 = this.responseHeaderParser.getValue("Set-Cookie")) != null) {
+			if (debug[1])
+				System.out.println("** Start Set-Cookie **");
+			for (String s : tl0)
+				setCookie(s);
+			if (debug[1])
+				System.out.println("** End Set-Cookie **");
+		}
+
+		/* 
+		 * Set keep alive flag. We will close the connection for any HTTP 1.0 server
+		 * and assume any HTTP 1.1 server will keep the connection alive unless 
+		 * "Connection: close" is specified in the header.
+		 * We will ignore Keep-Alive header since it is not a standard HTTP header.
+		 */
+		if (responseHeaderParser.getVersion().equals("1.0") || responseHeaderParser.connectionClose())
+			this.keepAlive = false;
+		if (debug[1])
+			System.out.println("Keep-Alive: " + this.keepAlive);
 	}
 
 	/**
@@ -353,65 +872,100 @@ class HttpClient {
 	 * @throws SocketException
 	 */
 	private void connect() throws IOException, SocketException {
-		if (this.isHttps)
-			socket = ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(this.host, this.port);
-		else
-			socket = new Socket(host, port);
-		this.send = new OutputStreamWriter(socket.getOutputStream(), HTTP_HEADER_CHARSET); // By standard, the HTTP header should not contain non-US-ASCII characters.
-		this.receive = new RawStreamReader(socket.getInputStream());
+		this.connection = pool.checkout(this.isHttps, this.host, this.port);
+		this.send = connection.send;
+		this.receive = connection.receive;
+		this.remotePort = connection.socket.getPort();
 		if (debug[1]) {
 			System.out.println("Connection successfully established");
-			System.out.println("InetAddress: " + socket.getInetAddress() + ":" + socket.getPort());
+			System.out.println("InetAddress: " + connection.socket.getInetAddress() + ":" + connection.socket.getPort());
 		}
 	}
 	
 	/**
-	 * Private helper method for request. Generates the request message to be sent to
-	 * the server with the given method and message body, if applicable.
+	 * Private helper method for request. Returns the connection checked out by
+	 * connect method to the pool.
+	 * @param reusable
+	 *        Whether the connection can be used for another request.
+	 */
+	private void releaseConnection(boolean reusable) {
+		if (this.connection == null)
+			return;
+		if (debug[1] && !reusable)
+			System.out.println("Connection to " + connection.socket.getInetAddress() + ":" + connection.socket.getPort() + " closed.");
+		pool.release(this.connection, reusable);
+		this.connection = null;
+		this.send = null;
+		this.receive = null;
+	}
+	
+	/**
+	 * Private helper method for request. Encodes the request message to be sent to
+	 * the server with the given method and message body, if applicable, after the
+	 * requests already in the request encoder.
 	 * <p> This method currently partially support GET and POST method. Other methods
 	 * are considered invalid when passed to this method and will generate an Exception.
 	 * @param method
 	 *        The method of the request. Currently only GET and POST are valid method.
 	 * @param upData
 	 *        The data to be sent. Only used in POST method.
-	 * @return
 	 */
-	private String getRequestString(String method, String upData) {
-		String request;
-		if (method.equals(GET_METHOD) || method.equals(POST_METHOD)) {
-			request =
-				method + " " + path + " HTTP/1.1\r\n" + 
-				"Host: " + host + "\r\n" +
-				// Use User-Agent of Mozilla Firefox on Windows 7.
-				"User-Agent: " + DEFAULT_USER_AGENT + "\r\n";
-
-			// Cookie field.
-			List<HttpCookie> cookieList = cookieStore.get(this.URL);
-			if (cookieList.size() > 0) {
-				request += "Cookie: ";
-				for (int j = 0; j < cookieList.size(); j++)
-					request += cookieList.get(j) + (j == cookieList.size() - 1 ? "\r\n" : "; ");
-			}
+	private void encodeRequest(String method, String upData) {
+		if (!method.equals(GET_METHOD) && !method.equals(POST_METHOD))
+			throw new IllegalArgumentException("Unsupported or invalid method: " + method);
 
-			if (method.equals(POST_METHOD)) {
-				request += 
-					"Content-Type: application/x-www-form-urlencoded\r\n" +
-					// Length of the body
-					"Content-Length: " + upData.length() + "\r\n";
-			}
+		requestEncoder.requestLine(method, path);
+		requestEncoder.hostLine(host);
+		// Use User-Agent of Mozilla Firefox on Windows 7.
+		requestEncoder.line(USER_AGENT_LINE);
 
-			request +=
-				(keepAlive ? "Connection: Keep-Alive\r\n" : "Connection: close\r\n") +
-				// Empty line
-				"\r\n";
+		// Range of the partial download to resume, if any.
+		String resume[] = method.equals(GET_METHOD) && resumable ? getResumeInfo() : null;
+		if (resume != null) {
+			requestEncoder.field("Range", "bytes=" + getPartFile().length() + "-");
+			requestEncoder.field("If-Range", resume[0]);
+			// The rest of the body must have the same content-coding as the part we have.
+			if (!resume[1].isEmpty())
+				requestEncoder.field("Accept-Encoding", resume[1]);
+		} else if (acceptCompression)
+			requestEncoder.line(ACCEPT_ENCODING_LINE);
 
-			// Include body if the method is POST
-			if (method.equals(POST_METHOD))
-				request += upData;
-		} else
-			throw new IllegalArgumentException("Unsupported or invalid method: " + method);
+		// Validators of the copy we have, if any.
+		ValidationCache.Entry cached;
+		if (method.equals(GET_METHOD) && validationCache != null && (cached = validationCache.get(this.URL.toString(), workingDir)) != null) {
+			if (cached.eTag != null)
+				requestEncoder.field("If-None-Match", cached.eTag);
+			if (cached.lastModified != null)
+				requestEncoder.field("If-Modified-Since", cached.lastModified);
+		}
+
+		// Cookie field.
+		byte cookieLine[] = cookieStore instanceof VersionedCookieStore
+			? ((VersionedCookieStore) cookieStore).getCookieLine(this.URL)
+			: VersionedCookieStore.encode(cookieStore.get(this.URL));
+		if (cookieLine != null)
+			requestEncoder.line(cookieLine);
+
+		byte body[] = null;
+		if (method.equals(POST_METHOD)) {
+			try {
+				body = upData.getBytes(BODY_CHARSET);
+			} catch (UnsupportedEncodingException e) {
+				// UTF-8 is always available.
+				throw new IllegalStateException(e);
+			}
+			requestEncoder.line(FORM_CONTENT_TYPE_LINE);
+			// Length of the body, in bytes
+			requestEncoder.field("Content-Length", body.length);
+		}
+
+		requestEncoder.line(keepAlive ? KEEP_ALIVE_LINE : CLOSE_LINE);
+		// Empty line
+		requestEncoder.endHeader();
 
-		return request;
+		// Include body if the method is POST
+		if (body != null)
+			requestEncoder.body(body);
 	}
 
 	private void setCookie(String line) {
@@ -434,7 +988,7 @@ class HttpClient {
 		 * Otherwise, we will name the file with fileName.
 		 * _TODO: Support valid file name on OS's other than Windows.
 		 */
-		if (fileName == null || !fileName.matches("[^" + INVALID_WINDOWS_FILE_NAME_CHARACTER_SET + "]+")) {
+		if (fileName == null || fileName.isEmpty() || INVALID_WINDOWS_FILE_NAME_CHARACTER.matcher(fileName).find()) {
 			// If the file name is not specified.
 			List<String> tl0; String ts0; int ti0; // Temporary variables
 			/*
@@ -448,17 +1002,17 @@ class HttpClient {
 				if (ts0.charAt(ti0 += "filename=".length()) == '"') {
 					// If value of filename parameter is quoted-string
 					// Assume the file name does not contain double-quotation mark "
-					this.fileName = 
+					this.fileName = INVALID_WINDOWS_FILE_NAME_CHARACTER.matcher(
 						ts0.substring(ti0 += 1, ts0.indexOf("\"", ti0))
 						// Replace all invalid characters with underscore _
-						.trim().replaceAll("[" + INVALID_WINDOWS_FILE_NAME_CHARACTER_SET + "]", "_");
+						.trim()).replaceAll("_");
 				} else {
 					// If value of filename parameter is token
 					// A token should not contain semicolon ;
-					this.fileName = 
+					this.fileName = INVALID_WINDOWS_FILE_NAME_CHARACTER.matcher(
 						ts0.substring(ti0, (ti0 = ts0.indexOf(";", ti0)) < 0 ? ts0.length() : ti0)
 						// Replace all invalid characters with underscore _
-						.trim().replaceAll("[" + INVALID_WINDOWS_FILE_NAME_CHARACTER_SET + "]", "_");
+						.trim()).replaceAll("_");
 				}
 				
 				if (!this.fileName.isEmpty())
@@ -472,7 +1026,7 @@ class HttpClient {
 			else {
 				this.fileName =
 					// Decode according to percentage-coding scheme.
-					decodeURL(
+					TextDecoder.decodeURL(
 							/* 
 							 * Extract the part between the last "/" before the last "?" 
 							 * and the last "?" in the link.
@@ -501,7 +1055,7 @@ class HttpClient {
 	 * This method supports basic chunk encoding and normal encoding.
 	 * <p>
 	 * This method will never overwrite an existing file with the same name as
-	 * the receiving file.
+	 * the receiving file, unless overwrite flag is set.
 	 * 
 	 * @param writeToDisk
 	 *            Write the received message body to file or not.
@@ -510,23 +1064,31 @@ class HttpClient {
 	 * @throws IOException
 	 */
 	private File getBody(boolean writeToDisk) throws IOException {
-		List<String> tl0; // Temporary variable
+		String ts0; // Temporary variable
 	
 		// Get length of message body.
-		long contentLength = -1;
-		if ((tl0 = this.responseHeaderParser.getValue("Content-Length")) != null)
-			contentLength = Long.parseLong(tl0.get(0));
+		long contentLength = this.responseHeaderParser.contentLength();
 	
 		// Get transfer encoding
-		boolean chunkEncoding = false;
-		if ((tl0 = this.responseHeaderParser.getValue("Transfer-Encoding")) != null && !(chunkEncoding = tl0.get(0).toLowerCase().equals("chunked")))
-			throw new IOException("Unsupported transfer encoding: " + tl0.get(0));
+		boolean chunkEncoding = this.responseHeaderParser.isChunked();
+		if (this.responseHeaderParser.hasTransferEncoding() && !chunkEncoding)
+			throw new IOException("Unsupported transfer encoding: " + getFirstValue("Transfer-Encoding"));
+	
+		// Get content encoding. Unknown encodings are written to disk as-is.
+		String contentEncoding = null;
+		if ((ts0 = getFirstValue("Content-Encoding")) != null)
+			contentEncoding = ts0.toLowerCase();
+		boolean compressed = GZIP_ENCODING.equals(contentEncoding) || DEFLATE_ENCODING.equals(contentEncoding);
+		if (writeToDisk && compressed && keepCompressed)
+			this.fileName += GZIP_ENCODING.equals(contentEncoding) ? GZIP_FILE_EXTENSION : DEFLATE_FILE_EXTENSION;
 	
 		if (debug[1]) {
 			System.out.println("** Start Message Body **");
 			System.out.println("Content-Length: " + contentLength);
 			if (chunkEncoding)
 				System.out.println("Transfer-Encoding: chunked");
+			if (contentEncoding != null)
+				System.out.println("Content-Encoding: " + contentEncoding);
 			System.out.println("** End Message Body **");
 		}
 	
@@ -534,44 +1096,257 @@ class HttpClient {
 		if (debug[0] && writeToDisk)
 			System.out.println("\n" + this.URL + " is being downloaded to " + this.fileName + ". Please wait.");
 	
-		File outFile = null;
-		FileOutputStream toFile = null;
+		// Copy a complete page to the scanner as it is received.
+		BlobStore.Digester digester = null;
+		if (writeToDisk && scanner != null && responseHeaderParser.getStatusCode() == 200) {
+			scanner.reset(getCharset(), compressed && keepCompressed ? contentEncoding : null);
+			this.tee = scanner.getSink();
+		} else if (writeToDisk && blobStore != null && !commitDeferred && responseHeaderParser.getStatusCode() == 200)
+			// Hash a complete file for the blob store as it is received.
+			this.tee = digester = blobStore.newDigester();
+	
+		File outFile = null, partFile = null;
+		FileChannel toFile = null;
 		if (writeToDisk) {
-			// Set file name
-			outFile = resolveFileNameConflict(workingDir, fileName);
+			if (resumable || commitDeferred) {
+				// Write to the .part file. The file name is resolved when the download completes.
+				partFile = getPartFile();
+				toFile = openPartFile(partFile, contentEncoding, compressed && !keepCompressed);
+			} else {
+				// Set file name
+				outFile = resolveFileNameConflict(workingDir, fileName);
+				
+				// Set output stream
+				toFile = new FileOutputStream(outFile).getChannel();
+			}
+		}
 	
-			// Set output stream
-			toFile = new FileOutputStream(outFile);
+		try {
+			if (writeToDisk && compressed && !keepCompressed)
+				decodeBody(toFile, contentLength, chunkEncoding, contentEncoding);
+			else
+				readBody(toFile, contentLength, chunkEncoding);
+		} catch (IOException e) {
+			if (writeToDisk) {
+				toFile.close();
+				// Do not leave a truncated file behind. A .part file is kept to be resumed.
+				if (partFile == null)
+					outFile.delete();
+				else if (!resumable)
+					deletePartFile();
+			}
+			throw e;
+		} finally {
+			this.tee = null;
 		}
 	
-		byte[] data = new byte[DEFAULT_RECEIVE_BUFFER_SIZE];
-		int ti0; // Temporary variable
+		// Close the file.
+		if (writeToDisk)
+			toFile.close();
+		// Move the completed .part file to the received file, unless the caller does.
+		if (partFile != null)
+			outFile = commitDeferred ? partFile : commitPartFile(partFile);
+		// Keep the content in the blob store. The digest of a resumed file is computed from the file.
+		if (writeToDisk && blobStore != null && scanner == null && !commitDeferred)
+			outFile = blobStore.store(outFile, digester == null ? null : digester.digest());
+		if (debug[0] && writeToDisk)
+			System.out.println("File written to disk.");
+	
+		return outFile;
+	}
+	
+	/**
+	 * Private helper method for resolveFileNameConflict. Create the file if the
+	 * name is not taken by another file, or by a pointer entry of the blob store.
+	 * @return whether the file is created.
+	 */
+	private boolean reserveFileName(File outFile) throws IOException {
+		if (!outFile.createNewFile())
+			return false;
+		if (blobStore != null && new File(outFile.getPath() + BlobStore.POINTER_FILE_EXTENSION).exists()) {
+			outFile.delete();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Private helper method for getBody. Get the character set from the
+	 * Content-Type header field.
+	 * @return the character set, or null if not specified.
+	 */
+	private String getCharset() {
+		String contentType = getFirstValue("Content-Type");
+		if (contentType == null)
+			return null;
+		for (String param : contentType.split(";")) {
+			param = param.trim();
+			if (param.regionMatches(true, 0, "charset=", 0, 8))
+				return param.substring(8).replace("\"", "").trim();
+		}
+		return null;
+	}
+	
+	/**
+	 * Private helper method for getBody and encodeRequest. The .part file of
+	 * the current URL in the working directory, named after the MD5 digest of the URL.
+	 */
+	private File getPartFile() {
+		try {
+			byte digest[] = MessageDigest.getInstance("MD5").digest(this.URL.toString().getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder(this.workingDir);
+			for (byte b : digest)
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return new File(name.append(PART_FILE_EXTENSION).toString());
+		} catch (NoSuchAlgorithmException e) {
+			// MD5 is always available.
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always available.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private File getPartMetaFile() {
+		return getPartMetaFile(getPartFile());
+	}
+	
+	private static File getPartMetaFile(File partFile) {
+		String path = partFile.getPath();
+		return new File(path.substring(0, path.length() - PART_FILE_EXTENSION.length()) + PART_META_FILE_EXTENSION);
+	}
+	
+	private void deletePartFile() {
+		getPartFile().delete();
+		getPartMetaFile().delete();
+	}
+	
+	/**
+	 * Private helper method for encodeRequest. Find out whether there is a
+	 * partial download of the current URL which can be resumed.
+	 * <p> The meta file next to the .part file holds the validator used in If-Range
+	 * header field on the first line, and the content-coding of the part on the 
+	 * second line (empty for identity). A .part file without meta file cannot be
+	 * resumed and is deleted.
+	 * @return the validator and the content-coding, or null if there is nothing to resume.
+	 */
+	private String[] getResumeInfo() {
+		File partFile = getPartFile(), metaFile = getPartMetaFile();
+		if (!partFile.exists() || partFile.length() == 0 || !metaFile.exists()) {
+			deletePartFile();
+			return null;
+		}
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(metaFile), HTTP_HEADER_CHARSET));
+			try {
+				String validator = in.readLine(), encoding = in.readLine();
+				if (validator != null && !validator.isEmpty()) {
+					if (debug[0])
+						System.out.println("\nResuming " + this.URL + " from byte " + partFile.length());
+					return new String[] {validator, encoding == null ? "" : encoding};
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Fall through. The download is started over.
+		}
+		deletePartFile();
+		return null;
+	}
+	
+	/**
+	 * Private helper method for getBody. Open the .part file for the body of the
+	 * response, appending to it if the response is 206 Partial Content.
+	 * @param partFile
+	 *        The .part file of the current URL.
+	 * @param contentEncoding
+	 *        The content-coding of the body, or null for identity.
+	 * @param decoded
+	 *        Whether the body is decoded before written to disk. A decoded body
+	 *        cannot be resumed, since the ranges are of the encoded body.
+	 * @return the channel to write the body to.
+	 * @throws IOException
+	 *         If the range returned by the server does not follow the part we have.
+	 */
+	private FileChannel openPartFile(File partFile, String contentEncoding, boolean decoded) throws IOException {
+		File metaFile = getPartMetaFile();
+		boolean append = this.responseHeaderParser.getStatusCode() == 206;
+		if (append) {
+			// Content-Range: bytes first-last/length
+			String range = getFirstValue("Content-Range"); int ti0;
+			long first = -1;
+			if (range != null && range.startsWith("bytes ") && (ti0 = range.indexOf('-')) > 0) {
+				try {
+					first = Long.parseLong(range.substring("bytes ".length(), ti0).trim());
+				} catch (NumberFormatException e) {
+					// Checked below.
+				}
+			}
+			if (first != partFile.length() || decoded) {
+				deletePartFile();
+				throw new IOException("Partial content " + range + " does not follow " + partFile.getPath() + ". Download will be restarted.");
+			}
+		} else {
+			// Keep the validator, so that the download can be resumed if interrupted.
+			String eTag = getFirstValue("ETag");
+			String validator = eTag != null && !eTag.startsWith("W/") ? eTag : getFirstValue("Last-Modified"); // If-Range requires a strong validator.
+			if (validator != null && !decoded && resumable) {
+				Writer out = new OutputStreamWriter(new FileOutputStream(metaFile), HTTP_HEADER_CHARSET);
+				try {
+					out.write(validator + "\n" + (contentEncoding == null ? "" : contentEncoding) + "\n");
+				} finally {
+					out.close();
+				}
+			} else
+				metaFile.delete();
+		}
+		return new FileOutputStream(partFile, append).getChannel();
+	}
+	
+	/**
+	 * Private helper method for getBody. Move the completed .part file to the
+	 * received file, named as the file name resolved from the response.
+	 * @return the received file.
+	 * @throws IOException
+	 */
+	private File commitPartFile(File partFile) throws IOException {
+		File outFile = resolveFileNameConflict(workingDir, fileName);
+		// The received file has been reserved by resolveFileNameConflict. renameTo does not replace an existing file on all platforms.
+		if (!partFile.renameTo(outFile) && !(outFile.delete() && partFile.renameTo(outFile)))
+			throw new IOException("Cannot move " + partFile.getPath() + " to " + outFile.getPath());
+		getPartMetaFile().delete();
+		return outFile;
+	}
+	
+	/**
+	 * Private helper method for getBody. Read the message body from the connection.
+	 * @param toFile
+	 *        The channel to write the body to, or null to discard the body.
+	 * @param contentLength
+	 *        Value of Content-Length header field, or -1 if absent.
+	 * @param chunkEncoding
+	 *        Whether the body is chunk-encoded.
+	 * @throws IOException
+	 */
+	private void readBody(FileChannel toFile, long contentLength, boolean chunkEncoding) throws IOException {
 		if (chunkEncoding) {
 			// If Transfer-Encoding field is present, ignore Content-Length field.
 			long chunkLength;
-			String ts0; // Temporary variable
 			while (true) {
 				// Extract length of the chunk data
-				ts0 = new String(receive.readLine(), HTTP_HEADER_CHARSET).trim();
-				chunkLength = Long.parseLong(ts0.substring(0, (ti0 = ts0.indexOf(";")) < 0 ? ts0.length() : ti0).trim(), 16);
+				chunkLength = parseChunkSize(readLine());
 				if (chunkLength == 0) {
 					// Last chunk (zero chunk) encountered.
 					break;
 				}
 	
-				while (chunkLength > 0) {
-					// Read data into the buffer.
-					// read: If the function returns, the number of bytes read is always > 0.
-					// Math.min: The result is always in int range so the conversion is safe. Result of this function is always > 0 because chunkLength > 0.
-					chunkLength -= ti0 = receive.read(data, 0, (int) Math.min(DEFAULT_RECEIVE_BUFFER_SIZE, chunkLength));
-					if (writeToDisk)
-						toFile.write(data, 0, ti0);
-				}
-				receive.readLine(); // Discard CRLF that terminates chunk data.
+				transfer(toFile, chunkLength, false);
+				readLine(); // Discard CRLF that terminates chunk data.
 			}
 
 			// Discard all trailers and the CRLF that terminates the whole chunk body.
-			while (!new String(receive.readLine(), HTTP_HEADER_CHARSET).trim().isEmpty());
+			while (!isBlank(readLine()));
 		} else if (contentLength > 0) { // Transfer-Encoding field is not present in the header
 			/*
 			 * Assume that when the server does not specify to close the
@@ -579,14 +1354,7 @@ class HttpClient {
 			 * field is not included, the server always includes Content-Length
 			 * header field in the response.
 			 */
-			// Read data into the buffer.
-			// read: If the function returns, the number of bytes read is always > 0.
-			// Math.min: The result is always in int range so the conversion is safe. Result of this function is always > 0 because chunkLength > 0.
-			while (contentLength > 0) {
-				contentLength -= ti0 = receive.read(data, 0, (int) Math.min(DEFAULT_RECEIVE_BUFFER_SIZE, contentLength));
-				if (writeToDisk)
-					toFile.write(data, 0, ti0);
-			}
+			transfer(toFile, contentLength, false);
 		} else { // Both Content-Length and Transfer-Encoding fields are missing.
 			/*
 			 * Assume there is no message body if both of them are missing and
@@ -594,33 +1362,312 @@ class HttpClient {
 			 */
 			if (!this.keepAlive) {
 				// Read until EOF is encountered.
-				while ((ti0 = receive.read(data, 0, DEFAULT_RECEIVE_BUFFER_SIZE)) != -1)
-					if (writeToDisk)
-						toFile.write(data, 0, ti0);
+				transfer(toFile, Long.MAX_VALUE, true);
 			}
 		}
+	}
 	
-		// Close the file.
-		if (writeToDisk)
-			toFile.close();
-		if (debug[0] && writeToDisk)
-			System.out.println("File written to disk.");
+	/**
+	 * Private helper method for getBody. Read the compressed message body from the
+	 * connection, and write the decompressed data to disk as it arrives.
+	 * @param toFile
+	 *        The channel to write the decompressed body to.
+	 * @param contentLength
+	 *        Value of Content-Length header field, or -1 if absent.
+	 * @param chunkEncoding
+	 *        Whether the body is chunk-encoded.
+	 * @param contentEncoding
+	 *        gzip or deflate.
+	 * @throws IOException
+	 */
+	private void decodeBody(FileChannel toFile, long contentLength, boolean chunkEncoding, String contentEncoding) throws IOException {
+		InputStream body = new BodyInputStream(contentLength, chunkEncoding);
+		Inflater inflater = null;
+		InputStream decoded;
+		if (GZIP_ENCODING.equals(contentEncoding))
+			decoded = new GZIPInputStream(body, MIN_RECEIVE_BUFFER_SIZE);
+		else {
+			/*
+			 * deflate should be zlib-wrapped, but some servers send raw deflate data.
+			 * Look at the first two bytes to tell them apart.
+			 */
+			PushbackInputStream peek = new PushbackInputStream(body, 2);
+			int b0 = peek.read(), b1 = b0 < 0 ? -1 : peek.read();
+			if (b1 >= 0)
+				peek.unread(b1);
+			if (b0 >= 0)
+				peek.unread(b0);
+			boolean zlibWrapped = b1 >= 0 && (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+			decoded = new InflaterInputStream(peek, inflater = new Inflater(!zlibWrapped), MIN_RECEIVE_BUFFER_SIZE);
+		}
+		
+		try {
+			byte[] data = getReceiveBuffer(contentLength);
+			int ti0; // Temporary variable
+			while ((ti0 = decoded.read(data, 0, data.length)) >= 0) {
+				writeFully(toFile, ByteBuffer.wrap(data, 0, ti0));
+				if (tee != null)
+					tee.write(data, 0, ti0);
+			}
+			// Consume what is left of the body (e.g. padding after the compressed data), so that the connection can be reused.
+			while (body.read(data, 0, data.length) >= 0);
+		} finally {
+			// Closing the decoding stream does not close the connection.
+			decoded.close();
+			if (inflater != null)
+				inflater.end();
+		}
+	}
 	
-		return outFile;
+	/**
+	 * Private helper method for decodeBody. Reads the message body from the
+	 * connection, removing the chunk-encoding, if any. The end of stream is the
+	 * end of the body. Closing the stream does not close the connection.
+	 */
+	private class BodyInputStream extends InputStream {
+		private final boolean chunkEncoding;
+		/** Whether the body ends when the connection is closed */
+		private final boolean untilEof;
+		/** Bytes left in the current chunk, or in the whole body if not chunk-encoded */
+		private long remaining;
+		private boolean firstChunk;
+		private boolean done;
+		private byte single[];
+		
+		BodyInputStream(long contentLength, boolean chunkEncoding) {
+			this.chunkEncoding = chunkEncoding;
+			// See readBody for the assumption when both Content-Length and Transfer-Encoding are missing.
+			this.untilEof = !chunkEncoding && contentLength < 0 && !keepAlive;
+			this.remaining = chunkEncoding ? 0 : untilEof ? Long.MAX_VALUE : Math.max(contentLength, 0);
+			this.firstChunk = true;
+			this.single = new byte[1];
+		}
+		
+		public int read() throws IOException {
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+		}
+		
+		public int read(byte b[], int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!hasData())
+				return -1;
+			// Math.min: The result is always in int range so the conversion is safe.
+			int n = receive.read(b, off, (int) Math.min(len, remaining));
+			if (n < 0) {
+				if (untilEof) {
+					done = true;
+					return -1;
+				}
+				throw new EOFException("Connection closed before the end of the message body");
+			}
+			remaining -= n;
+			return n;
+		}
+		
+		/**
+		 * Move to the next chunk if the current one is consumed.
+		 * @return whether there is data left in the body.
+		 */
+		private boolean hasData() throws IOException {
+			if (done)
+				return false;
+			if (remaining > 0)
+				return true;
+			if (!chunkEncoding) {
+				done = true;
+				return false;
+			}
+			if (!firstChunk)
+				readLine(); // Discard CRLF that terminates chunk data.
+			firstChunk = false;
+			if ((remaining = parseChunkSize(readLine())) == 0) {
+				// Discard all trailers and the CRLF that terminates the whole chunk body.
+				while (!isBlank(readLine()));
+				done = true;
+				return false;
+			}
+			return true;
+		}
+		
+		public void close() {
+			// The connection stays open.
+		}
+	}
+	
+	/**
+	 * Private helper method for readBody. Move the given number of bytes of the
+	 * message body from the connection to the file.
+	 * <p> The bytes already in the read buffer of the connection are written
+	 * first. On a plain HTTP connection, the rest is transferred from the socket
+	 * channel to the file channel with {@code FileChannel.transferFrom}, without
+	 * passing through a Java array. The channel does not block during the
+	 * transfer, so that a stalled server times out as the streams of the socket
+	 * do. On a secured connection, the bytes are read
+	 * through the SSL socket into a reusable buffer sized after the length. The
+	 * same buffer is used on a plain HTTP connection when the page is copied to
+	 * a scanner.
+	 * @param toFile
+	 *        The channel to write the body to, or null to discard the body.
+	 * @param length
+	 *        Number of bytes to move.
+	 * @param untilEof
+	 *        Whether the body ends when the connection is closed. If false,
+	 *        an EOFException is thrown when the connection is closed early.
+	 * @throws IOException
+	 */
+	private void transfer(FileChannel toFile, long length, boolean untilEof) throws IOException {
+		byte[] data = getReceiveBuffer(length);
+		int ti0; // Temporary variable
+		
+		// Drain the read buffer of the connection first.
+		while (length > 0 && receive.buffered() > 0) {
+			// Math.min: The result is always in int range so the conversion is safe.
+			ti0 = receive.read(data, 0, (int) Math.min(Math.min(data.length, receive.buffered()), length));
+			if (toFile != null)
+				writeFully(toFile, ByteBuffer.wrap(data, 0, ti0));
+			if (tee != null)
+				tee.write(data, 0, ti0);
+			length -= ti0;
+		}
+		
+		SocketChannel channel = this.connection.channel;
+		// The bytes do not pass through a Java array, so they cannot be copied to the scanner.
+		if (toFile != null && channel != null && tee == null && length > 0) {
+			long position = toFile.position(), transferred;
+			ByteBuffer probe = ByteBuffer.wrap(data, 0, 1);
+			channel.configureBlocking(false);
+			try {
+				while (length > 0) {
+					if ((transferred = toFile.transferFrom(channel, position, length)) == 0) {
+						/*
+						 * transferFrom does not tell apart end of stream from no data.
+						 * Read one byte to find out, and wait for data if there is none.
+						 */
+						probe.clear();
+						if ((ti0 = channel.read(probe)) < 0) {
+							if (untilEof)
+								break;
+							throw new EOFException("Connection closed before the end of the message body");
+						}
+						if (ti0 == 0) {
+							this.connection.awaitReadable();
+							continue;
+						}
+						probe.flip();
+						writeFully(toFile, probe);
+						transferred = 1;
+					}
+					position += transferred;
+					length -= transferred;
+					toFile.position(position);
+				}
+			} finally {
+				this.connection.restoreBlocking();
+			}
+		} else {
+			while (length > 0) {
+				// Read data into the buffer.
+				// read: If the function returns, the number of bytes read is always > 0.
+				// Math.min: The result is always in int range so the conversion is safe.
+				if ((ti0 = receive.read(data, 0, (int) Math.min(data.length, length))) < 0) {
+					if (untilEof)
+						break;
+					throw new EOFException("Connection closed before the end of the message body");
+				}
+				length -= ti0;
+				if (toFile != null)
+					writeFully(toFile, ByteBuffer.wrap(data, 0, ti0));
+				if (tee != null)
+					tee.write(data, 0, ti0);
+			}
+		}
+	}
+	
+	/**
+	 * Private helper method for transfer. Get the reusable receive buffer, grown
+	 * to fit a body of the given length within the minimum and maximum buffer size.
+	 */
+	private byte[] getReceiveBuffer(long length) {
+		int size = MIN_RECEIVE_BUFFER_SIZE;
+		while (size < length && size < MAX_RECEIVE_BUFFER_SIZE)
+			size <<= 1;
+		if (receiveBuffer == null || receiveBuffer.length < size)
+			receiveBuffer = new byte[size];
+		return receiveBuffer;
+	}
+	
+	private static void writeFully(FileChannel toFile, ByteBuffer data) throws IOException {
+		while (data.hasRemaining())
+			toFile.write(data);
+	}
+	
+	/**
+	 * Private helper method for readBody. Read a line from the connection into
+	 * the reusable line buffer.
+	 * @return the line without the line terminator. Only valid until the next call.
+	 * @throws EOFException
+	 *         If the connection is closed.
+	 */
+	private CharSequence readLine() throws IOException {
+		if (!receive.readLine(lineBuilder))
+			throw new EOFException("Connection closed before the end of the message body");
+		return lineBuilder;
+	}
+	
+	/**
+	 * Private helper method for readBody. Parse the hexadecimal chunk size at the 
+	 * start of the line, ignoring chunk extensions.
+	 * @throws IOException
+	 *         If the chunk size is malformed.
+	 */
+	static long parseChunkSize(CharSequence line) throws IOException {
+		int i = 0, length = line.length();
+		while (i < length && Character.isWhitespace(line.charAt(i)))
+			i++;
+		int start = i, digit;
+		long chunkLength = 0;
+		for ( ; i < length && (digit = Character.digit(line.charAt(i), 16)) >= 0; i++) {
+			if (chunkLength >>> 59 != 0)
+				throw new IOException("Chunk size too large: " + line);
+			chunkLength = (chunkLength << 4) | digit;
+		}
+		if (i == start)
+			throw new IOException("Invalid chunk size: " + line);
+		return chunkLength;
 	}
 	
-	private File resolveFileNameConflict(String path, String fileName) {
+	static boolean isBlank(CharSequence line) {
+		for (int i = 0; i < line.length(); i++)
+			if (!Character.isWhitespace(line.charAt(i)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Private helper method for getBody. Reserve a file with the given name, or 
+	 * a numbered variant of it if the name is taken.
+	 * <p> The file is created by this method, so that clients in other threads
+	 * will not pick the same name.
+	 */
+	private File resolveFileNameConflict(String path, String fileName) throws IOException {
 		File outFile = new File(path + fileName);
 		
-		if (!outFile.exists())
+		if (reserveFileName(outFile))
+			return outFile;
+		if (this.overwrite) {
+			// The existing file may be a hard link to a blob, which must not be written to.
+			if (blobStore != null)
+				outFile.delete();
 			return outFile;
+		}
 		
 		// Resolve conflict to prevent overwriting existing file.
 		int ti0;
 		String name = fileName.substring(0, (ti0 = fileName.lastIndexOf(".")) < 0 ? fileName.length() : ti0);
 		String ext = fileName.substring(ti0 < 0 ? fileName.length() : ti0);
 		
-		for (int i = 2; outFile.exists(); i++)
+		for (int i = 2; !reserveFileName(outFile); i++)
 			outFile = new File(path + name + " (" + i + ")" + ext);
 		
 		if (debug[0])
@@ -629,23 +1676,158 @@ class HttpClient {
 		return outFile;
 	}
 
+	/**
+	 * Close the connection held by this client, if any. Connections returned to
+	 * the pool are not affected.
+	 * @throws IOException
+	 */
 	public void close() throws IOException {
-		this.send.close();
-		this.receive.close();
-		this.socket.close();
-		if (debug[1])
-			System.out.println("Connection to " + socket.getInetAddress() + ":" + socket.getPort() + " closed.");
+		releaseConnection(false);
 	}
 
 	/**
-	 * Get the port number of the target address of the previous connection if
-	 * the socket is closed; get the port number of the target address of the
-	 * current connection if the socket is open.
+	 * Get the port number of the target address of the last connection used
+	 * by this client.
 	 * 
 	 * @return port number of the target address.
 	 */
 	public int getRemotePort() {
-		return this.socket.getPort();
+		return this.remotePort;
+	}
+
+	/**
+	 * Get the status code of the last response received by this client. Status
+	 * codes other than 200 are not errors for the request methods, which return
+	 * null instead of a file; the caller can tell them apart with this method.
+	 * 
+	 * @return status code of the last response, or 0 if no response is received.
+	 */
+	public int getStatusCode() {
+		return this.responseHeaderParser.getStatusCode();
+	}
+
+	/**
+	 * Move the file received by the last request, left under its .part name (see
+	 * setCommitDeferred), to its name in the working directory, as if getBody had
+	 * written it there: the name conflict is resolved, the validators of the last
+	 * response are kept and the file is stored in the blob store. The working
+	 * directory may have been changed since the request.
+	 * @param file
+	 *        The file returned by the last request of this client. The copy of
+	 *        the URL returned for 304 Not Modified is already in place, and is
+	 *        returned as-is.
+	 * @param scanned
+	 *        Whether the file has been scanned. Scanned pages are not stored in
+	 *        the blob store.
+	 * @return the received file.
+	 * @throws IOException
+	 */
+	File commitFile(File file, boolean scanned) throws IOException {
+		if (getStatusCode() == 304)
+			return file;
+		File outFile = resolveFileNameConflict(workingDir, this.fileName);
+		// The file has been reserved by resolveFileNameConflict. renameTo does not replace an existing file on all platforms.
+		if (!file.renameTo(outFile) && !(outFile.delete() && file.renameTo(outFile)))
+			throw new IOException("Cannot move " + file.getPath() + " to " + outFile.getPath());
+		// The part is complete. It will not be resumed.
+		getPartMetaFile(file).delete();
+		if (validationCache != null)
+			validationCache.put(this.URL.toString(), getFirstValue("ETag"), getFirstValue("Last-Modified"), outFile);
+		if (blobStore != null && !scanned)
+			outFile = blobStore.store(outFile, null);
+		return outFile;
+	}
+
+	/**
+	 * Delete the file received by the last request, left under its .part name
+	 * (see setCommitDeferred), when the file has been received by another request.
+	 * The copy of the URL returned for 304 Not Modified is kept.
+	 * @param file
+	 *        The file returned by the last request of this client.
+	 */
+	void discardFile(File file) {
+		if (getStatusCode() == 304)
+			return;
+		file.delete();
+		getPartMetaFile(file).delete();
+	}
+
+	/**
+	 * Delete the .part file of the current URL and its meta file, when the file
+	 * has been received by another request and the download will not be resumed.
+	 */
+	void discardPartFile() {
+		deletePartFile();
+	}
+
+	//------------------------------------------------------------------
+	// Exchange state for AsyncHttpClient, which moves the bytes itself.
+	// These methods apply the same rules as request and processResponse.
+	//------------------------------------------------------------------
+	boolean isHttps() {
+		return this.isHttps;
+	}
+
+	String getHost() {
+		return this.host;
+	}
+
+	int getPort() {
+		return this.port;
+	}
+
+	boolean isKeepAlive() {
+		return this.keepAlive;
+	}
+
+	String getURL() {
+		return this.URL.toString();
+	}
+
+	/**
+	 * The request for the URL as specified by setURL method. The buffer is only
+	 * valid until the next request of this client.
+	 */
+	ByteBuffer getRequest(String method, String postData) {
+		requestEncoder.clear();
+		encodeRequest(method, postData);
+		return requestEncoder.getBuffer();
+	}
+
+	/**
+	 * Take the cookies and the keep-alive flag from a response header parsed
+	 * by the caller.
+	 */
+	void acceptHeader(HttpResponseHeader header) {
+		this.responseHeaderParser = header;
+		processHeader();
+	}
+
+	/**
+	 * Create the file for the body of the accepted response, named as download
+	 * would name it.
+	 * @param fileName
+	 *        The name of the file. The file will be automatically named if set to null.
+	 */
+	File createBodyFile(String fileName) throws IOException {
+		setFileName(fileName);
+		return resolveFileNameConflict(workingDir, this.fileName);
+	}
+
+	/**
+	 * Record the validators of the accepted response for the received file.
+	 */
+	void completeBody(File outFile) {
+		if (validationCache != null)
+			validationCache.put(this.URL.toString(), getFirstValue("ETag"), getFirstValue("Last-Modified"), outFile);
+	}
+
+	/**
+	 * The copy of the URL which is still valid after 304 Not Modified, if any.
+	 */
+	File getNotModifiedFile() {
+		ValidationCache.Entry cached;
+		return validationCache != null && (cached = validationCache.get(this.URL.toString(), workingDir)) != null ? cached.file : null;
 	}
 
 	// Debug code
@@ -669,7 +1851,6 @@ case 201: // Created
 case 202: // Accepted
 case 203: // Non-Authoritative Information
 case 205: // Reset Content
-case 206: // Partial Content
 case 300: // Multiple Choices
 case 303: // See Other
 case 305: // Use Proxy
@@ -688,7 +1869,6 @@ case 412: // Precondition Failed
 case 413: // Request Entity Too Large
 case 414: // Request-URI Too Long
 case 415: // Unsupported Media Type
-case 416: // Requested Range Not Satisfiable
 case 417: // Expectation Failed
 case 500: // Internal Server Error
 case 501: // Not Implemented
@@ -3,6 +3,22 @@ package org.nhahtdh;
 import java.util.*;
 import java.io.*;
 
+/**
+ * Parser of the status line and the header fields of an HTTP response.
+ * <p>
+ * The header is parsed at the byte level, from the line buffer of the
+ * RawStreamReader or from a byte array. The bytes of the header are copied
+ * into a buffer owned by the parser (reused by the next parse), and the fields
+ * are kept as offsets into it:
+ * - The well-known field names are matched without case against a table of
+ *   constants, and a field with a well-known name is identified by its index.
+ * - Strings are only created when a value is asked for.
+ * - The framing fields (Content-Length, Transfer-Encoding, Connection) are
+ *   decoded once, and are read with the typed accessors.
+ *
+ * @author Hong Dai Thanh
+ *
+ */
 public class HttpResponseHeader {
 	//---------
 	// Debug
@@ -10,107 +26,451 @@ public class HttpResponseHeader {
 	/*
 	 * 0 - Raw input
 	 * 1 - Processed data
-	 * 2 - HashMap
+	 * 2 - Fields
 	 */
 	private static final boolean debug[] = {false, false, false};
-	
+
 	//--------------
 	// Constants
 	//--------------
-	private static final String HTTP_RESPONSE_STATUS_LINE_REGEX = "HTTP/1\\.(0|1) [1-5]\\d{2} .*";
-	
-	private static final int DEFAULT_CAPACITY = 23;
-	private static final float DEFAULT_LOAD_FACTOR = 0.75f;
-	
+	private static final byte HTTP_VERSION_PREFIX[] = {'H', 'T', 'T', 'P', '/', '1', '.'};
+	private static final String HTTP_1_0 = "1.0";
+	private static final String HTTP_1_1 = "1.1";
+
+	/** Well-known field names. The index in this table identifies the field. */
+	private static final String KNOWN_FIELD_NAMES[] = {
+		"Content-Length", "Transfer-Encoding", "Connection", "Content-Encoding",
+		"Content-Type", "Content-Disposition", "Content-Range", "Location",
+		"Set-Cookie", "Retry-After", "ETag", "Last-Modified", "Date", "Server",
+		"Cache-Control", "Expires", "Keep-Alive", "Accept-Ranges", "Vary",
+		"Pragma", "X-Powered-By", "X-AspNet-Version"
+	};
+	private static final int CONTENT_LENGTH = 0;
+	private static final int TRANSFER_ENCODING = 1;
+	private static final int CONNECTION = 2;
+	private static final int UNKNOWN_FIELD = -1;
+
+	/*
+	 * Layout of a field in the fields array: ID (index of the well-known name,
+	 * or UNKNOWN_FIELD), then start and end of the name and of the value in data.
+	 */
+	private static final int FIELD_ID = 0;
+	private static final int NAME_START = 1;
+	private static final int NAME_END = 2;
+	private static final int VALUE_START = 3;
+	private static final int VALUE_END = 4;
+	private static final int FIELD_SIZE = 5;
+
+	private static final int DEFAULT_DATA_SIZE = 1024;
+	private static final int DEFAULT_FIELD_COUNT = 16;
+
 	//----------------
 	// Data members
 	//----------------
-	private HashMap<String, List<String>> entries;
+	/** Bytes of the reason phrase and of the fields */
+	private byte data[];
+	private int dataLength;
+	private int fields[];
+	private int fieldCount;
+
 	private String version;
 	private int statusCode;
-	private String reason;
-	
+	private int reasonStart;
+	private int reasonEnd;
+	private long contentLength;
+	private boolean hasTransferEncoding;
+	private boolean chunked;
+	private boolean connectionClose;
+
 	//----------------
 	// Constructors
 	//----------------
 	public HttpResponseHeader() {
-		this.entries = new HashMap<String, List<String>>(DEFAULT_CAPACITY, DEFAULT_LOAD_FACTOR);
+		this.data = new byte[DEFAULT_DATA_SIZE];
+		this.fields = new int[DEFAULT_FIELD_COUNT * FIELD_SIZE];
 		// this.version = null;
 		this.statusCode = -1;
-		// this.reason = null;
+		this.contentLength = -1;
 	}
-	
+
 	//----------------
 	// Mutators
 	//----------------
-	
+
+	/**
+	 * Read and parse the response header. Lines before the status line are skipped.
+	 * @throws EOFException
+	 *         If the connection is closed before the header is complete.
+	 * @throws IOException
+	 *         If the framing fields are invalid.
+	 */
 	public void parse(RawStreamReader receive) throws IOException {
-		String line; int ti0;
-		// Loop until response status line is found.
-		while (!(line = new String(receive.readLine(), HttpClient.HTTP_HEADER_CHARSET).trim()).matches(HTTP_RESPONSE_STATUS_LINE_REGEX));
+		reset();
+		int length;
+		while ((length = receive.readLineInPlace()) >= 0)
+			if (!addLine(receive.getLineBuffer(), 0, length))
+				return;
+		throw new EOFException("Connection closed before the response header is complete");
+	}
+
+	/**
+	 * Parse the response header in the byte array. Lines before the status line are skipped.
+	 * @param b
+	 *        The bytes of the header, up to and including the empty line.
+	 * @throws EOFException
+	 *         If the header is not complete.
+	 * @throws IOException
+	 *         If the framing fields are invalid.
+	 */
+	public void parse(byte b[], int off, int len) throws IOException {
+		reset();
+		int end = off + len;
+		while (off < end) {
+			int eol = off;
+			while (eol < end && b[eol] != '\n')
+				eol++;
+			if (eol < end)
+				eol++; // Include LF.
+			if (!addLine(b, off, eol - off))
+				return;
+			off = eol;
+		}
+		throw new EOFException("Response header is not complete");
+	}
+
+	private void reset() {
+		this.version = null;
+		this.statusCode = -1;
+		this.dataLength = 0;
+		this.fieldCount = 0;
+		this.reasonStart = this.reasonEnd = 0;
+		this.contentLength = -1;
+		this.hasTransferEncoding = false;
+		this.chunked = false;
+		this.connectionClose = false;
+	}
+
+	/**
+	 * Parse a line of the header.
+	 * @return false if the line ends the header; otherwise, true.
+	 */
+	private boolean addLine(byte b[], int start, int end) throws IOException {
+		end += start;
+		// Trim, including the line terminator.
+		while (start < end && isSpace(b[start]))
+			start++;
+		while (end > start && isSpace(b[end - 1]))
+			end--;
 		if (debug[0])
-			System.out.println(line);
-		// Set HTTP version
-		this.version = line.substring(line.indexOf("/") + 1, ti0 = line.indexOf(" "));
-		// Set status code
-		this.statusCode = Integer.parseInt(line.substring(ti0 + 1, ti0 + 4));
-		// Set reason
-		this.reason = line.substring(ti0 + 5);
+			System.out.println(new String(b, start, end - start, "ISO-8859-1"));
+
+		if (this.version == null) {
+			// Loop until response status line is found.
+			if (isStatusLine(b, start, end))
+				parseStatusLine(b, start, end);
+			return true;
+		}
+
+		if (start == end) {
+			if (debug[2])
+				for (int i = 0; i < fieldCount; i++)
+					System.out.println("|Field: " + getFieldName(i) + "|Value: " + getFieldValue(i) + "|");
+			return false;
+		}
+
+		int colon = start;
+		while (colon < end && b[colon] != ':')
+			colon++;
+		if (colon == end)
+			return true; // Not a header field. Ignore it.
+		int nameEnd = colon, valueStart = colon + 1;
+		while (nameEnd > start && isSpace(b[nameEnd - 1]))
+			nameEnd--;
+		while (valueStart < end && isSpace(b[valueStart]))
+			valueStart++;
+
+		int id = findKnownField(b, start, nameEnd);
+		switch (id) {
+		case CONTENT_LENGTH:
+			long length = parseLength(b, valueStart, end);
+			if (length < 0 || this.contentLength >= 0 && this.contentLength != length)
+				throw new IOException("Invalid Content-Length: " + new String(b, valueStart, end - valueStart, "ISO-8859-1"));
+			this.contentLength = length;
+			break;
+		case TRANSFER_ENCODING:
+			// The last transfer coding applied must be chunked, if any.
+			this.hasTransferEncoding = true;
+			this.chunked = endsWithToken(b, valueStart, end, "chunked");
+			break;
+		case CONNECTION:
+			this.connectionClose |= hasToken(b, valueStart, end, "close");
+			break;
+		}
+
+		// Store the field.
+		int offset = append(b, start, end);
+		if ((fieldCount + 1) * FIELD_SIZE > fields.length)
+			fields = Arrays.copyOf(fields, fields.length << 1);
+		int f = fieldCount++ * FIELD_SIZE;
+		fields[f + FIELD_ID] = id;
+		fields[f + NAME_START] = offset;
+		fields[f + NAME_END] = offset + nameEnd - start;
+		fields[f + VALUE_START] = offset + valueStart - start;
+		fields[f + VALUE_END] = offset + end - start;
+		return true;
+	}
+
+	/**
+	 * @return whether the line starts with HTTP/1.x followed by a 3-digit status code.
+	 */
+	private static boolean isStatusLine(byte b[], int start, int end) {
+		int i = start + HTTP_VERSION_PREFIX.length;
+		if (end - start < HTTP_VERSION_PREFIX.length + 5)
+			return false;
+		for (int j = 0; j < HTTP_VERSION_PREFIX.length; j++)
+			if (b[start + j] != HTTP_VERSION_PREFIX[j])
+				return false;
+		return isDigit(b[i]) && b[i + 1] == ' '
+			&& b[i + 2] >= '1' && b[i + 2] <= '5' && isDigit(b[i + 3]) && isDigit(b[i + 4])
+			&& (i + 5 == end || b[i + 5] == ' ');
+	}
+
+	private void parseStatusLine(byte b[], int start, int end) {
+		int i = start + HTTP_VERSION_PREFIX.length;
+		switch (b[i]) {
+		case '0':
+			this.version = HTTP_1_0;
+			break;
+		case '1':
+			this.version = HTTP_1_1;
+			break;
+		default:
+			this.version = "1." + (char) b[i];
+		}
+		this.statusCode = (b[i + 2] - '0') * 100 + (b[i + 3] - '0') * 10 + (b[i + 4] - '0');
+		this.reasonStart = append(b, Math.min(i + 6, end), end);
+		this.reasonEnd = dataLength;
 		if (debug[1]) {
 			System.out.println("Version: " + this.version) ;
 			System.out.println("Status code: " + this.statusCode);
-			System.out.println("Reason: " + this.reason);
-		}
-		
-		// Clear all entries for new data.
-		this.entries.clear();
-		
-		// Read the rest of the HTTP header and store the attributes.
-		while (!(line = new String(receive.readLine(), HttpClient.HTTP_HEADER_CHARSET).trim()).isEmpty()) {
-			if (debug[0])
-				System.out.println(line);
-			// Extract field name
-			String field = line.substring(0, ti0 = line.indexOf(":")).trim().toLowerCase();
-			// Extract value
-			String value = line.substring(ti0 + 1).trim();
-			
-			if (debug[1])
-				System.out.println("|Field: " + field + "|Value: " + value + "|");
-			
-			// Store the attributes
-			List<String> tl0;
-			if ((tl0 = this.entries.get(field)) != null) {
-				tl0.add(value);
-				if (debug[2])
-					System.out.println(value + " added to " + field);
-			}
-			else {
-				(tl0 = new LinkedList<String>()).add(value);
-				this.entries.put(field, tl0);
-				if (debug[2])
-					System.out.println(field + " added and associated with " + value);
-			}
+			System.out.println("Reason: " + getReason());
 		}
 	}
-	
+
+	/**
+	 * Copy the bytes to the data buffer.
+	 * @return the offset of the bytes in the data buffer.
+	 */
+	private int append(byte b[], int start, int end) {
+		int n = end - start, offset = dataLength;
+		if (offset + n > data.length)
+			data = Arrays.copyOf(data, Math.max(data.length << 1, offset + n));
+		System.arraycopy(b, start, data, offset, n);
+		dataLength += n;
+		return offset;
+	}
+
 	//----------------
 	// Accessors
 	//----------------
-	
+
+	/**
+	 * @return the values of all fields with the name (matched without case), in
+	 * the order they appear, or null if there is no such field.
+	 */
 	public List<String> getValue(String fieldName) {
-		fieldName = fieldName.trim().toLowerCase();
-		return this.entries.get(fieldName);
+		fieldName = fieldName.trim();
+		int id = findKnownField(fieldName);
+		List<String> values = null;
+		for (int i = 0; i < fieldCount; i++)
+			if (isField(i, id, fieldName)) {
+				if (values == null)
+					values = new ArrayList<String>(1);
+				values.add(getFieldValue(i));
+			}
+		return values;
+	}
+
+	/**
+	 * @return the value of the first field with the name (matched without case),
+	 * or null if there is no such field.
+	 */
+	public String getFirstValue(String fieldName) {
+		fieldName = fieldName.trim();
+		int id = findKnownField(fieldName);
+		for (int i = 0; i < fieldCount; i++)
+			if (isField(i, id, fieldName))
+				return getFieldValue(i);
+		return null;
+	}
+
+	/**
+	 * @return the value of the Content-Length field, or -1 if it is absent.
+	 */
+	public long contentLength() {
+		return this.contentLength;
 	}
-	
+
+	/**
+	 * @return whether a Transfer-Encoding field is present.
+	 */
+	public boolean hasTransferEncoding() {
+		return this.hasTransferEncoding;
+	}
+
+	/**
+	 * @return whether the message body is chunk-encoded.
+	 */
+	public boolean isChunked() {
+		return this.chunked;
+	}
+
+	/**
+	 * @return whether the Connection field has the close option.
+	 */
+	public boolean connectionClose() {
+		return this.connectionClose;
+	}
+
 	public int getStatusCode() {
 		return this.statusCode;
 	}
-	
+
 	public String getVersion() {
 		return this.version;
 	}
-	
+
 	public String getReason() {
-		return this.reason;
+		return latin1(this.reasonStart, this.reasonEnd);
+	}
+
+	private boolean isField(int i, int id, String fieldName) {
+		int f = i * FIELD_SIZE;
+		if (id != UNKNOWN_FIELD)
+			return fields[f + FIELD_ID] == id;
+		return fields[f + FIELD_ID] == UNKNOWN_FIELD
+			&& equalsIgnoreCase(data, fields[f + NAME_START], fields[f + NAME_END], fieldName);
+	}
+
+	private String getFieldName(int i) {
+		int f = i * FIELD_SIZE;
+		return fields[f + FIELD_ID] != UNKNOWN_FIELD ? KNOWN_FIELD_NAMES[fields[f + FIELD_ID]]
+			: latin1(fields[f + NAME_START], fields[f + NAME_END]);
+	}
+
+	private String getFieldValue(int i) {
+		int f = i * FIELD_SIZE;
+		return latin1(fields[f + VALUE_START], fields[f + VALUE_END]);
+	}
+
+	/**
+	 * Decode the bytes in the data buffer as ISO-8859-1.
+	 */
+	private String latin1(int start, int end) {
+		char chars[] = new char[end - start];
+		for (int i = start; i < end; i++)
+			chars[i - start] = (char) (data[i] & 0xff);
+		return new String(chars);
+	}
+
+	//----------------
+	// Helpers
+	//----------------
+
+	private static int findKnownField(byte b[], int start, int end) {
+		for (int i = 0; i < KNOWN_FIELD_NAMES.length; i++)
+			if (equalsIgnoreCase(b, start, end, KNOWN_FIELD_NAMES[i]))
+				return i;
+		return UNKNOWN_FIELD;
+	}
+
+	private static int findKnownField(String fieldName) {
+		for (int i = 0; i < KNOWN_FIELD_NAMES.length; i++)
+			if (KNOWN_FIELD_NAMES[i].equalsIgnoreCase(fieldName))
+				return i;
+		return UNKNOWN_FIELD;
+	}
+
+	/**
+	 * Compare the bytes with an ASCII string, without case.
+	 */
+	private static boolean equalsIgnoreCase(byte b[], int start, int end, String s) {
+		if (end - start != s.length())
+			return false;
+		for (int i = start; i < end; i++)
+			if (toLowerCase(b[i]) != toLowerCase(s.charAt(i - start)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return whether one of the comma-separated tokens of the value is the given token (without case).
+	 */
+	private static boolean hasToken(byte b[], int start, int end, String token) {
+		while (start < end) {
+			int comma = start;
+			while (comma < end && b[comma] != ',')
+				comma++;
+			if (isToken(b, start, comma, token))
+				return true;
+			start = comma + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether the last of the comma-separated tokens of the value is the given token (without case).
+	 */
+	private static boolean endsWithToken(byte b[], int start, int end, String token) {
+		int comma = end;
+		while (comma > start && b[comma - 1] != ',')
+			comma--;
+		return isToken(b, comma, end, token);
+	}
+
+	private static boolean isToken(byte b[], int start, int end, String token) {
+		while (start < end && isSpace(b[start]))
+			start++;
+		// Ignore the parameters of the token.
+		for (int i = start; i < end; i++)
+			if (b[i] == ';') {
+				end = i;
+				break;
+			}
+		while (end > start && isSpace(b[end - 1]))
+			end--;
+		return equalsIgnoreCase(b, start, end, token);
+	}
+
+	/**
+	 * @return the non-negative decimal number, or -1 if the value is not one.
+	 */
+	private static long parseLength(byte b[], int start, int end) {
+		// Long.MAX_VALUE has 19 digits.
+		if (start == end || end - start > 18)
+			return -1;
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			if (!isDigit(b[i]))
+				return -1;
+			value = value * 10 + (b[i] - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @return whether the byte is a space or a control character, as trimmed by
+	 * {@code String.trim()}. Bytes from 0x80 are not.
+	 */
+	private static boolean isSpace(byte c) {
+		return (c & 0xff) <= ' ';
+	}
+
+	private static boolean isDigit(byte c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static int toLowerCase(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
 	}
 }
@@ -0,0 +1,169 @@
+package org.nhahtdh;
+
+/**
+ * Classifies the links found in the forum pages into routes, and extracts the
+ * IDs they carry, without regular expressions.
+ * <p>
+ * The route of a link is decided by its page name (the last segment of the
+ * path, before the query), or by its javascript call for the links to posts
+ * on the list pages. Each link is classified once, then the crawler
+ * dispatches on the route.
+ *
+ * @author Hong Dai Thanh
+ *
+ */
+class LinkRouter {
+	//--------------
+	// Constants
+	//--------------
+	private static final String DISPLAY_POST_CALL = "displayPost(";
+	private static final String HEADING_ID_PARAMETER = "headingid";
+	private static final String POST_ID_PARAMETER = "postid";
+	private static final int GUID_LENGTH = 36;
+
+	/**
+	 * Kind of page a link points to.
+	 */
+	public enum Route {
+		/** menu.aspx: the menu frame, with the link to the forum archive */
+		MENU,
+		/** menu_archive.aspx, main.aspx, main_archive.aspx and other frame pages */
+		FRAME,
+		/** list.aspx or list_archive.aspx: a list of posts, in pages */
+		LIST,
+		/** board_heading.aspx: the headings of a board forum */
+		BOARD_HEADING,
+		/** board_topic.aspx: the topics under a heading */
+		BOARD_TOPIC,
+		/** board_read.aspx: the messages of a topic */
+		BOARD_READ,
+		/** displayPost('...') call on a list page */
+		POST,
+		/** download_file.aspx: an attachment */
+		ATTACHMENT,
+		/** Any other link found in an img tag */
+		IMAGE,
+		/** error.aspx: the error page of the server */
+		ERROR
+	}
+
+	private LinkRouter() {
+		// Static methods only.
+	}
+
+	//----------------
+	// Accessors
+	//----------------
+	/**
+	 * Classify a link found in an href, src or onclick attribute.
+	 * @param link
+	 *        The link, absolute or relative.
+	 * @param isImage
+	 *        Whether the link is the source of an img tag.
+	 * @return the route of the link.
+	 */
+	public static Route classify(String link, boolean isImage) {
+		if (link.startsWith(DISPLAY_POST_CALL))
+			return Route.POST;
+
+		String page = getPageName(link);
+		if (page.equals("menu.aspx"))
+			return Route.MENU;
+		if (page.equals("list.aspx") || page.equals("list_archive.aspx"))
+			return Route.LIST;
+		if (page.equals("board_heading.aspx"))
+			return Route.BOARD_HEADING;
+		if (page.equals("board_topic.aspx"))
+			return Route.BOARD_TOPIC;
+		if (page.equals("board_read.aspx"))
+			return Route.BOARD_READ;
+		if (page.equals("download_file.aspx"))
+			return Route.ATTACHMENT;
+		if (page.equals("error.aspx"))
+			return Route.ERROR;
+		return isImage ? Route.IMAGE : Route.FRAME;
+	}
+
+	/**
+	 * Get the page name of a link: the last segment of the path, in lower case.
+	 */
+	static String getPageName(String link) {
+		int end = link.length();
+		for (int i = 0; i < end; i++) {
+			char c = link.charAt(i);
+			if (c == '?' || c == '#') {
+				end = i;
+				break;
+			}
+		}
+		int start = link.lastIndexOf('/', end - 1) + 1;
+		return link.substring(start, end).toLowerCase();
+	}
+
+	/**
+	 * Get the ID of the heading of a board_topic.aspx link.
+	 * @return the ID, or null if the link has no valid heading ID.
+	 */
+	public static String getHeadingId(String link) {
+		return getGuidParameter(link, HEADING_ID_PARAMETER);
+	}
+
+	/**
+	 * Get the ID of the post of a board_read.aspx or read_archive.aspx link,
+	 * or of a displayPost('...') call.
+	 * @return the ID, or null if the link has no valid post ID.
+	 */
+	public static String getPostId(String link) {
+		if (link.startsWith(DISPLAY_POST_CALL)) {
+			// The first argument of the call, between single quotes.
+			int start = link.indexOf('\'') + 1, end;
+			if (start == 0 || (end = link.indexOf('\'', start)) < 0)
+				return null;
+			return link.substring(start, end);
+		}
+		return getGuidParameter(link, POST_ID_PARAMETER);
+	}
+
+	/**
+	 * Get the value of a query parameter which is a GUID, such as the forum ID.
+	 * The name of the parameter is matched without case.
+	 * @return the value, or null if the parameter is absent or is not a GUID.
+	 */
+	static String getGuidParameter(String link, String name) {
+		int query = link.indexOf('?');
+		if (query < 0)
+			return null;
+		int length = link.length();
+		for (int i = query + 1; i < length; ) {
+			int end = link.indexOf('&', i);
+			if (end < 0)
+				end = length;
+			if (end - i > name.length() && link.charAt(i + name.length()) == '='
+					&& link.regionMatches(true, i, name, 0, name.length())) {
+				int start = i + name.length() + 1;
+				String value = link.substring(start, Math.min(end, start + GUID_LENGTH));
+				return isGuid(value) ? value : null;
+			}
+			i = end + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * @return whether the string is a GUID in lower case hexadecimal digits
+	 * (8-4-4-4-12), as used for the forum, heading and post IDs.
+	 */
+	public static boolean isGuid(String s) {
+		if (s.length() != GUID_LENGTH)
+			return false;
+		for (int i = 0; i < GUID_LENGTH; i++) {
+			char c = s.charAt(i);
+			if (i == 8 || i == 13 || i == 18 || i == 23) {
+				if (c != '-')
+					return false;
+			} else if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f'))
+				return false;
+		}
+		return true;
+	}
+}
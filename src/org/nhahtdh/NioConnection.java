@@ -0,0 +1,315 @@
+package org.nhahtdh;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import javax.net.ssl.*;
+
+/**
+ * A non-blocking connection used by AsyncHttpClient. On a secured connection,
+ * the bytes are encrypted and decrypted with an {@code SSLEngine}, so that
+ * the caller reads and writes plain bytes in both cases.
+ * <p>
+ * None of the methods block. A method which cannot complete returns, and the
+ * caller should wait for the channel to be ready for the operation given by
+ * {@code getInterestOps}, then call it again. The connection is only used by
+ * the thread of its event loop.
+ * 
+ * @author Hong Dai Thanh
+ *
+ */
+class NioConnection {
+	//--------------
+	// Constants
+	//--------------
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	
+	//----------------
+	// Data members
+	//----------------
+	/** Key of the (scheme, host, port) of the connection */
+	final String key;
+	final SocketChannel channel;
+	/** Registration of the channel with the selector of the event loop */
+	SelectionKey selectionKey;
+	/** Whether the connection has served an earlier request */
+	boolean reused;
+	/** Time the connection has last become idle */
+	long lastUsed;
+	
+	/** Null on a plain HTTP connection */
+	private final SSLEngine engine;
+	private final TlsContext tlsContext;
+	/** Start of the TLS handshake, by System.nanoTime() and System.currentTimeMillis() */
+	private long handshakeStart;
+	private long handshakeStartTime;
+	/** Encrypted bytes received, not yet decrypted. In write mode. */
+	private ByteBuffer netIn;
+	/** Encrypted bytes to be sent. In read mode. */
+	private ByteBuffer netOut;
+	/** Decrypted bytes not yet read by the caller. In write mode. */
+	private ByteBuffer appIn;
+	/** Operation to wait for when the last call did not complete */
+	private int interestOps;
+	
+	//----------------
+	// Constructors
+	//----------------
+	/**
+	 * Start connecting to the host.
+	 * @param key
+	 *        Key of the (scheme, host, port) of the connection.
+	 * @param host
+	 *        Host name.
+	 * @param port
+	 *        Port number.
+	 * @param tlsContext
+	 *        The context of a secured connection, or null for a plain connection.
+	 * @throws IOException
+	 */
+	NioConnection(String key, String host, int port, TlsContext tlsContext) throws IOException {
+		this.key = key;
+		this.channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			// The name is resolved here. Host names are cached by the JVM after the first lookup.
+			channel.connect(new InetSocketAddress(host, port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.interestOps = SelectionKey.OP_CONNECT;
+		
+		this.tlsContext = tlsContext;
+		if (tlsContext != null) {
+			this.engine = tlsContext.createEngine(host, port);
+			SSLSession session = engine.getSession();
+			this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+			this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+			this.netOut.flip();
+			this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		} else
+			this.engine = null;
+	}
+	
+	//----------------
+	// Operations
+	//----------------
+	/**
+	 * Complete the TCP connection, and the TLS handshake on a secured connection.
+	 * @return whether the connection is ready for the request.
+	 * @throws IOException
+	 */
+	boolean connect() throws IOException {
+		if (channel.isConnectionPending()) {
+			if (!channel.finishConnect()) {
+				interestOps = SelectionKey.OP_CONNECT;
+				return false;
+			}
+			if (engine != null) {
+				handshakeStart = System.nanoTime();
+				handshakeStartTime = System.currentTimeMillis();
+				engine.beginHandshake();
+			}
+		}
+		return engine == null || handshake();
+	}
+	
+	/**
+	 * Private helper method for connect. Move the TLS handshake forward as far
+	 * as possible without blocking.
+	 * @return whether the handshake is finished.
+	 */
+	private boolean handshake() throws IOException {
+		while (true) {
+			if (!flush())
+				return false;
+			SSLEngineResult result;
+			switch (engine.getHandshakeStatus()) {
+			case NEED_TASK:
+				// The tasks are short (certificate checks). Run them on the event loop.
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null)
+					task.run();
+				break;
+			case NEED_WRAP:
+				netOut.clear();
+				result = engine.wrap(EMPTY, netOut);
+				netOut.flip();
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+					throw new SSLException("Connection closed during the TLS handshake");
+				break;
+			case NEED_UNWRAP:
+				netIn.flip();
+				result = engine.unwrap(netIn, appIn);
+				netIn.compact();
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && !fill())
+					return false;
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+					throw new SSLException("Connection closed during the TLS handshake");
+				break;
+			default:
+				// FINISHED or NOT_HANDSHAKING.
+				if (handshakeStart != 0) {
+					tlsContext.handshakeFinished(engine.getSession(), handshakeStart, handshakeStartTime);
+					handshakeStart = 0;
+				}
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Read the bytes available into the buffer.
+	 * @param dst
+	 *        The buffer to read into.
+	 * @return the number of bytes read, possibly 0, or -1 at the end of stream.
+	 * @throws IOException
+	 */
+	int read(ByteBuffer dst) throws IOException {
+		interestOps = SelectionKey.OP_READ;
+		if (engine == null)
+			return channel.read(dst);
+		
+		while (appIn.position() == 0) {
+			netIn.flip();
+			SSLEngineResult result = engine.unwrap(netIn, appIn);
+			netIn.compact();
+			// Post-handshake messages (e.g. session tickets) may need a task to be run.
+			if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null)
+					task.run();
+			}
+			switch (result.getStatus()) {
+			case BUFFER_UNDERFLOW:
+				// A whole TLS record is needed before anything can be decrypted.
+				if (netIn.remaining() == 0)
+					netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+				int n = channel.read(netIn);
+				if (n <= 0)
+					// The server may end the body by closing the connection without close_notify.
+					return n;
+				break;
+			case BUFFER_OVERFLOW:
+				appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+				break;
+			case CLOSED:
+				return -1;
+			default:
+				break;
+			}
+		}
+		
+		// Hand over the decrypted bytes.
+		appIn.flip();
+		int n = Math.min(appIn.remaining(), dst.remaining());
+		ByteBuffer slice = appIn.duplicate();
+		slice.limit(slice.position() + n);
+		dst.put(slice);
+		appIn.position(appIn.position() + n);
+		appIn.compact();
+		return n;
+	}
+	
+	/**
+	 * Write as much of the buffer as possible.
+	 * @param src
+	 *        The bytes to write.
+	 * @return whether all the bytes have been sent.
+	 * @throws IOException
+	 */
+	boolean write(ByteBuffer src) throws IOException {
+		interestOps = SelectionKey.OP_WRITE;
+		if (engine == null) {
+			channel.write(src);
+			return !src.hasRemaining();
+		}
+		
+		while (flush() && src.hasRemaining()) {
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(src, netOut);
+			netOut.flip();
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+				netOut.flip();
+			} else if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+				throw new SSLException("Connection closed");
+		}
+		return !src.hasRemaining() && !netOut.hasRemaining();
+	}
+	
+	/**
+	 * Send the encrypted bytes which are pending.
+	 * @return whether nothing is left to send.
+	 */
+	private boolean flush() throws IOException {
+		if (netOut.hasRemaining())
+			channel.write(netOut);
+		if (netOut.hasRemaining()) {
+			interestOps = SelectionKey.OP_WRITE;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Read encrypted bytes from the channel.
+	 * @return whether any byte has been read.
+	 */
+	private boolean fill() throws IOException {
+		if (netIn.remaining() == 0)
+			netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+		int n = channel.read(netIn);
+		if (n < 0)
+			throw new EOFException("Connection closed during the TLS handshake");
+		interestOps = SelectionKey.OP_READ;
+		return n > 0;
+	}
+	
+	/**
+	 * Grow the buffer, which is in write mode, keeping its content.
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minCapacity));
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+	
+	/**
+	 * Close the connection. On a secured connection, close_notify is sent if
+	 * it can be sent without blocking.
+	 */
+	void close() {
+		try {
+			if (engine != null && channel.isConnected()) {
+				engine.closeOutbound();
+				netOut.clear();
+				engine.wrap(EMPTY, netOut);
+				netOut.flip();
+				channel.write(netOut);
+			}
+		} catch (IOException e) {
+			// Ignore. The connection is closed anyway.
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore.
+		}
+	}
+	
+	//----------------
+	// Accessors
+	//----------------
+	/**
+	 * The operation to wait for, after a call which did not complete.
+	 */
+	int getInterestOps() {
+		return interestOps;
+	}
+}
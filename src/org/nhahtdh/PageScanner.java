@@ -0,0 +1,274 @@
+package org.nhahtdh;
+
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.*;
+import java.io.*;
+
+import org.htmlparser.*;
+import org.htmlparser.lexer.*;
+import org.htmlparser.util.*;
+
+/**
+ * Extracts links and values from a page while it is downloaded, so that the 
+ * page is not read back from disk and parsed once per kind of link.
+ * <p>
+ * Extractors are registered under a name before the download. The HTTP client
+ * copies the message body into the scanner as it writes the body to disk, and
+ * the copy is tokenized once when the body is complete. Every tag is matched
+ * against all extractors in the same pass. The results are kept in document
+ * order, without duplicates, and can be retrieved by name after the download.
+ * <p>
+ * A scanner is used for one page at a time, and is not safe for multithreaded
+ * access. It can be passed to another thread through a {@code Future}.
+ * 
+ * @author Hong Dai Thanh
+ *
+ */
+class PageScanner {
+	//---------
+	// Debug
+	//---------
+	/*
+	 * 0 - Extracted values
+	 */
+	private static final boolean debug[] = {false};
+	
+	//--------------
+	// Constants
+	//--------------
+	public static final String DEFAULT_CHARSET = "UTF-8";
+	private static final int DEFAULT_BUFFER_SIZE = 32768;
+	
+	//----------------
+	// Data members
+	//----------------
+	private final ArrayList<Extractor> extractors;
+	/** Results of each extractor, by name */
+	private final HashMap<String, LinkedHashSet<String>> results;
+	/** Copy of the message body */
+	private final Buffer body;
+	private String charset;
+	/** Content-coding of the copy, or null if the copy is not compressed */
+	private String contentEncoding;
+	
+	//----------------
+	// Constructors
+	//----------------
+	public PageScanner() {
+		this.extractors = new ArrayList<Extractor>();
+		this.results = new HashMap<String, LinkedHashSet<String>>();
+		this.body = new Buffer(DEFAULT_BUFFER_SIZE);
+		this.charset = DEFAULT_CHARSET;
+	}
+	
+	/**
+	 * Create a scanner with the same extractors as the given scanner, and no
+	 * results. The node filters are shared, so they must not keep state.
+	 * @param template
+	 *        The scanner to copy the extractors from.
+	 */
+	public PageScanner(PageScanner template) {
+		this();
+		for (Extractor extractor : template.extractors) {
+			extractors.add(extractor);
+			results.put(extractor.name, new LinkedHashSet<String>());
+		}
+	}
+	
+	//----------------
+	// Mutators
+	//----------------
+	/**
+	 * Register an extractor of attribute values.
+	 * @param name
+	 *        Name of the results.
+	 * @param nodeFilter
+	 *        The node filter for selecting the tags.
+	 * @param attribName
+	 *        The name of the attribute in the tag containing the data.
+	 * @param regexAttribValue
+	 *        Regular expression to match against the value of the specified
+	 *        attribute field, or null to accept all values.
+	 */
+	public void addAttributeExtractor(String name, NodeFilter nodeFilter, String attribName, String regexAttribValue) {
+		extractors.add(new Extractor(name, nodeFilter, attribName, regexAttribValue));
+		results.put(name, new LinkedHashSet<String>());
+	}
+	
+	/**
+	 * Register an extractor of the text right after the selected tags.
+	 * @param name
+	 *        Name of the results.
+	 * @param nodeFilter
+	 *        The node filter for selecting the tags.
+	 */
+	public void addTextExtractor(String name, NodeFilter nodeFilter) {
+		extractors.add(new Extractor(name, nodeFilter, null, null));
+		results.put(name, new LinkedHashSet<String>());
+	}
+	
+	/**
+	 * Clear the copy of the body and the results, before a new page is downloaded.
+	 * @param charset
+	 *        Character set of the page, or null to use the default.
+	 * @param contentEncoding
+	 *        Content-coding of the bytes which will be copied in, or null if
+	 *        they are not compressed.
+	 */
+	void reset(String charset, String contentEncoding) {
+		this.body.reset();
+		this.charset = charset == null ? DEFAULT_CHARSET : charset;
+		this.contentEncoding = contentEncoding;
+		for (LinkedHashSet<String> values : results.values())
+			values.clear();
+	}
+	
+	/**
+	 * Replace the results by the results of another scanner with the same
+	 * extractors (see {@link #PageScanner(PageScanner)}).
+	 */
+	void copyResults(PageScanner from) {
+		for (Map.Entry<String, LinkedHashSet<String>> entry : results.entrySet()) {
+			entry.getValue().clear();
+			entry.getValue().addAll(from.results.get(entry.getKey()));
+		}
+	}
+	
+	/**
+	 * The stream the HTTP client copies the message body into.
+	 */
+	OutputStream getSink() {
+		return body;
+	}
+	
+	/**
+	 * Tokenize the copy of the body and run all extractors.
+	 * @throws IOException
+	 */
+	void scan() throws IOException {
+		InputStream in = new ByteArrayInputStream(body.getBuffer(), 0, body.size());
+		if ("gzip".equals(contentEncoding))
+			in = new GZIPInputStream(in);
+		else if ("deflate".equals(contentEncoding))
+			in = new InflaterInputStream(in);
+		try {
+			scan(new Page(in, charset));
+		} catch (ParserException e) {
+			IOException ex = new IOException("Cannot scan the page");
+			ex.initCause(e);
+			throw ex;
+		} finally {
+			// The copy is no longer needed.
+			body.reset();
+		}
+	}
+	
+	/**
+	 * Run all extractors on a page which is already on disk, e.g. a cached page.
+	 * @param htmlFile
+	 *        The page.
+	 * @throws IOException
+	 */
+	void scan(File htmlFile) throws IOException {
+		reset(charset, null);
+		InputStream in = new FileInputStream(htmlFile);
+		try {
+			byte data[] = new byte[DEFAULT_BUFFER_SIZE];
+			int ti0; // Temporary variable
+			while ((ti0 = in.read(data)) >= 0)
+				body.write(data, 0, ti0);
+		} finally {
+			in.close();
+		}
+		String name = htmlFile.getName();
+		this.contentEncoding = name.endsWith(".gz") ? "gzip" : name.endsWith(".zz") ? "deflate" : null;
+		scan();
+	}
+	
+	private void scan(Page page) throws ParserException {
+		Lexer lexer = new Lexer(page);
+		Node node;
+		// Extractors waiting for the text after their tag.
+		ArrayList<Extractor> waitingText = new ArrayList<Extractor>();
+		while ((node = lexer.nextNode()) != null) {
+			if (!waitingText.isEmpty()) {
+				for (Extractor extractor : waitingText)
+					addResult(extractor, node.getText());
+				waitingText.clear();
+			}
+			if (!(node instanceof Tag))
+				continue;
+			Tag tag = (Tag) node;
+			if (tag.isEndTag())
+				continue;
+			
+			for (Extractor extractor : extractors) {
+				if (!extractor.nodeFilter.accept(tag))
+					continue;
+				if (extractor.attribName == null)
+					waitingText.add(extractor);
+				else {
+					String value = tag.getAttribute(extractor.attribName);
+					if (value != null && (extractor.pattern == null || extractor.pattern.matcher(value).matches()))
+						addResult(extractor, value);
+				}
+			}
+			
+			// The content of script and style is not HTML.
+			String tagName = tag.getTagName();
+			if (tagName.equals("SCRIPT") || tagName.equals("STYLE"))
+				lexer.parseCDATA();
+		}
+	}
+	
+	private void addResult(Extractor extractor, String value) {
+		if (debug[0])
+			System.out.println(extractor.name + ": " + value);
+		results.get(extractor.name).add(value);
+	}
+	
+	//----------------
+	// Accessors
+	//----------------
+	/**
+	 * Get the values found by the extractor registered under the name.
+	 * @param name
+	 *        Name of the results.
+	 * @return the values, in document order, without duplicates.
+	 */
+	public LinkedList<String> get(String name) {
+		LinkedHashSet<String> values = results.get(name);
+		if (values == null)
+			throw new IllegalArgumentException("No extractor registered as " + name);
+		return new LinkedList<String>(values);
+	}
+	
+	private static class Extractor {
+		final String name;
+		final NodeFilter nodeFilter;
+		/** Attribute to extract, or null to extract the text after the tag */
+		final String attribName;
+		final Pattern pattern;
+		
+		Extractor(String name, NodeFilter nodeFilter, String attribName, String regexAttribValue) {
+			this.name = name;
+			this.nodeFilter = nodeFilter;
+			this.attribName = attribName;
+			this.pattern = regexAttribValue == null ? null : Pattern.compile(regexAttribValue);
+		}
+	}
+	
+	/**
+	 * ByteArrayOutputStream which gives access to its buffer without copying it.
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+		Buffer(int size) {
+			super(size);
+		}
+		
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+}
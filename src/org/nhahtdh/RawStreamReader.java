@@ -15,6 +15,11 @@ import java.io.*;
  * RawStreamReader is originally DataInputStream. The readLine method
  * is a modified version of readLine method from BufferedReader to
  * return the newline character in the byte array.
+ * <p>
+ * The stream is buffered, so that a line can be found by scanning the
+ * buffer for LF instead of reading the contained input stream one byte
+ * at a time. Bulk reads are served from the buffer first, and go straight
+ * to the contained input stream once the buffer is drained.
  *
  * @author  Arthur van Hoff
  * @version 1.83, 05/05/07
@@ -23,6 +28,14 @@ import java.io.*;
  */
 public class RawStreamReader extends FilterInputStream {
 
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	private static final int DEFAULT_LINE_BUFFER_SIZE = 128;
+
+	/** Internal read buffer. Valid data is in buf[pos..count). */
+	private byte buf[];
+	private int pos;
+	private int count;
+
 	/**
 	 * Creates a DataInputStream that uses the specified
 	 * underlying InputStream.
@@ -30,7 +43,75 @@ public class RawStreamReader extends FilterInputStream {
 	 * @param  in   the specified input stream
 	 */
 	public RawStreamReader(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a RawStreamReader with a read buffer of the given size.
+	 *
+	 * @param  in     the specified input stream
+	 * @param  size   the size of the read buffer
+	 */
+	public RawStreamReader(InputStream in, int size) {
 		super (in);
+		if (size <= 0)
+			throw new IllegalArgumentException("Buffer size <= 0");
+		this.buf = new byte[size];
+	}
+
+	/**
+	 * Fill the buffer with at least one byte from the contained input
+	 * stream. Must only be called when the buffer is drained.
+	 *
+	 * @return     the number of bytes read, or <code>-1</code> if the end
+	 *             of the stream has been reached.
+	 * @exception  IOException  if an I/O error occurs.
+	 */
+	private int fill() throws IOException {
+		int n;
+		pos = count = 0;
+		do {
+			n = in.read(buf, 0, buf.length);
+		} while (n == 0); // Force read 1 byte or return end of stream.
+		if (n > 0)
+			count = n;
+		return n;
+	}
+
+	/**
+	 * Returns the number of bytes held in the read buffer, which can be
+	 * read without blocking.
+	 *
+	 * @return     the number of buffered bytes.
+	 */
+	public final int buffered() {
+		return count - pos;
+	}
+
+	public int read() throws IOException {
+		if (pos >= count && fill() < 0)
+			return -1;
+		return buf[pos++] & 0xff;
+	}
+
+	public int available() throws IOException {
+		return (count - pos) + in.available();
+	}
+
+	public long skip(long n) throws IOException {
+		if (n <= 0)
+			return 0;
+		int avail = count - pos;
+		if (avail > 0) {
+			long skipped = Math.min(avail, n);
+			pos += skipped;
+			return skipped;
+		}
+		return in.skip(n);
+	}
+
+	public boolean markSupported() {
+		return false;
 	}
 
 	/**
@@ -72,7 +153,7 @@ public class RawStreamReader extends FilterInputStream {
 	 * @see        java.io.InputStream#read(byte[], int, int)
 	 */
 	public final int read(byte b[]) throws IOException {
-		return in.read(b, 0, b.length);
+		return read(b, 0, b.length);
 	}
 
 	/**
@@ -122,7 +203,23 @@ public class RawStreamReader extends FilterInputStream {
 	 */
 	public final int read(byte b[], int off, int len)
 	throws IOException {
-		return in.read(b, off, len);
+		if ((off | len | (off + len) | (b.length - (off + len))) < 0)
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return 0;
+		int avail = count - pos;
+		if (avail <= 0) {
+			// Large read on a drained buffer: no point copying through the buffer.
+			if (len >= buf.length)
+				return in.read(b, off, len);
+			if (fill() < 0)
+				return -1;
+			avail = count - pos;
+		}
+		int n = Math.min(avail, len);
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		return n;
 	}
 
 	/**
@@ -143,7 +240,7 @@ public class RawStreamReader extends FilterInputStream {
 		int total = 0;
 		int cur = 0;
 
-		while ((total < n) && ((cur = (int) in.skip(n - total)) > 0)) {
+		while ((total < n) && ((cur = (int) skip(n - total)) > 0)) {
 			total += cur;
 		}
 
@@ -166,50 +263,84 @@ public class RawStreamReader extends FilterInputStream {
 	 * @see        java.io.FilterInputStream#in
 	 */
 	public final byte[] readLine() throws IOException {
-		byte buf[] = lineBuffer;
+		int length = readLineInPlace();
+		if (length < 0)
+			return null;
+		return java.util.Arrays.copyOfRange(lineBuffer, 0, length);
+	}
 
-		if (buf == null) {
-			buf = lineBuffer = new byte[128];
-		}
+	/**
+	 * Reads the next line, including the line terminator, into the internal
+	 * line buffer, which is reused by the next call. The line is found by
+	 * scanning the read buffer for LF, so the contained input stream is only
+	 * read when the buffer is drained.
+	 *
+	 * @return     the number of bytes in the line, or <code>-1</code> if the
+	 *             end of the stream has been reached before any byte is read.
+	 * @exception  IOException  if an I/O error occurs.
+	 * @see        #getLineBuffer()
+	 */
+	public final int readLineInPlace() throws IOException {
+		if (lineBuffer == null)
+			lineBuffer = new byte[DEFAULT_LINE_BUFFER_SIZE];
 
-		int room = buf.length;
 		int offset = 0;
-		int c;
-
-		loop: while (true) {
-			c = in.read();
-			if (c == -1) {
-				int n;
-				byte[] tempbuf = new byte[2];
-				do {
-					n = in.read(tempbuf, 0, tempbuf.length);
-				} while (n == 0); // Force read 1 character or return end of stream.
-
-				if (n > 0) { // Some character read.
-					// Push the array back to stream.
-					if (!(in instanceof PushbackInputStream)) {
-						this.in = new PushbackInputStream(in);
-					}
-					((PushbackInputStream) in).unread(tempbuf);
-				} else // n < 0 which is EOF
-					break loop;
-			}
-			else {
-				if (--room < 0) {
-					buf = new byte[offset + 128];
-					room = buf.length - offset - 1;
-					System.arraycopy(lineBuffer, 0, buf, 0, offset);
-					lineBuffer = buf;
-				}
-				buf[offset++] = (byte) c;
-				if (c == '\n')
-					break loop;
-			}
-		}
-		if ((c == -1) && (offset == 0)) {
-			return null;
+		while (true) {
+			if (pos >= count && fill() < 0)
+				return offset == 0 ? -1 : offset;
+
+			// Scan the buffer for the end of line.
+			int start = pos, end = pos;
+			while (end < count && buf[end] != '\n')
+				end++;
+			boolean eol = end < count;
+			if (eol)
+				end++; // Include LF.
+
+			int n = end - start;
+			if (offset + n > lineBuffer.length)
+				lineBuffer = java.util.Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length << 1, offset + n));
+			System.arraycopy(buf, start, lineBuffer, offset, n);
+			offset += n;
+			pos = end;
+
+			if (eol)
+				return offset;
 		}
-		return java.util.Arrays.copyOfRange(buf, 0, offset);
 	}
-}
 
+	/**
+	 * Returns the internal line buffer filled by the last call to
+	 * <code>readLineInPlace</code>. The content is only valid until the
+	 * next call.
+	 *
+	 * @return     the internal line buffer.
+	 */
+	public final byte[] getLineBuffer() {
+		return lineBuffer;
+	}
+
+	/**
+	 * Reads the next line into the given <code>StringBuilder</code>,
+	 * decoding each byte as an US-ASCII (ISO-8859-1) character. The line
+	 * terminator (LF or CRLF) is not included.
+	 *
+	 * @param      line   the builder to receive the line. It is cleared first.
+	 * @return     <code>false</code> if the end of the stream has been reached
+	 *             before any byte is read; otherwise, <code>true</code>.
+	 * @exception  IOException  if an I/O error occurs.
+	 */
+	public final boolean readLine(StringBuilder line) throws IOException {
+		line.setLength(0);
+		int length = readLineInPlace();
+		if (length < 0)
+			return false;
+		if (length > 0 && lineBuffer[length - 1] == '\n')
+			length--;
+		if (length > 0 && lineBuffer[length - 1] == '\r')
+			length--;
+		for (int i = 0; i < length; i++)
+			line.append((char) (lineBuffer[i] & 0xff));
+		return true;
+	}
+}
@@ -0,0 +1,184 @@
+package org.nhahtdh;
+
+import java.nio.*;
+import java.io.*;
+
+/**
+ * Encodes HTTP requests into a reusable byte buffer.
+ * <p>
+ * The request line and the header fields are written straight into the
+ * buffer, one byte per character (characters outside of ISO-8859-1 are sent
+ * as ?). Lines which do not change between requests are encoded once by the
+ * caller and copied as they are. Several requests can be encoded back to
+ * back, so that a batch of pipelined requests is sent with one write.
+ * <p>
+ * The encoder is not safe for multithreaded access.
+ *
+ * @author Hong Dai Thanh
+ *
+ */
+class RequestEncoder {
+	//--------------
+	// Constants
+	//--------------
+	private static final int DEFAULT_BUFFER_SIZE = 1024;
+	private static final byte CRLF[] = {'\r', '\n'};
+	private static final byte HTTP_VERSION_SUFFIX[] = encode(" HTTP/1.1\r\n");
+	private static final byte FIELD_SEPARATOR[] = {':', ' '};
+	private static final byte HOST_FIELD[] = encode("Host: ");
+
+	//----------------
+	// Data members
+	//----------------
+	private ByteBuffer buffer;
+	/** Host of the last Host field, and the encoded field */
+	private String host;
+	private byte hostLine[];
+
+	//----------------
+	// Constructors
+	//----------------
+	public RequestEncoder() {
+		this.buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+	}
+
+	//----------------
+	// Mutators
+	//----------------
+	/**
+	 * Discard the requests encoded so far, to start a new request or a new batch.
+	 */
+	public void clear() {
+		buffer.clear();
+	}
+
+	public void requestLine(String method, String path) {
+		put(method);
+		put((byte) ' ');
+		put(path);
+		put(HTTP_VERSION_SUFFIX);
+	}
+
+	/**
+	 * Write the Host field. The field is kept encoded until the host changes.
+	 */
+	public void hostLine(String host) {
+		if (!host.equals(this.host)) {
+			byte line[] = new byte[HOST_FIELD.length + host.length() + CRLF.length];
+			System.arraycopy(HOST_FIELD, 0, line, 0, HOST_FIELD.length);
+			encode(host, line, HOST_FIELD.length);
+			System.arraycopy(CRLF, 0, line, line.length - CRLF.length, CRLF.length);
+			this.hostLine = line;
+			this.host = host;
+		}
+		put(this.hostLine);
+	}
+
+	/**
+	 * Write a line encoded beforehand, including the line terminator.
+	 */
+	public void line(byte line[]) {
+		put(line);
+	}
+
+	public void field(String name, String value) {
+		put(name);
+		put(FIELD_SEPARATOR);
+		put(value);
+		put(CRLF);
+	}
+
+	public void field(String name, long value) {
+		field(name, Long.toString(value));
+	}
+
+	/**
+	 * Write the empty line which ends the header.
+	 */
+	public void endHeader() {
+		put(CRLF);
+	}
+
+	public void body(byte body[]) {
+		put(body);
+	}
+
+	//----------------
+	// Accessors
+	//----------------
+	/**
+	 * Send the requests encoded so far in one write, and flush the stream.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer.array(), 0, buffer.position());
+		out.flush();
+	}
+
+	/**
+	 * @return a buffer with the requests encoded so far, ready to be written.
+	 * The buffer shares the bytes of the encoder, and is only valid until the
+	 * encoder is used again.
+	 */
+	public ByteBuffer getBuffer() {
+		ByteBuffer requests = buffer.duplicate();
+		requests.flip();
+		return requests;
+	}
+
+	/**
+	 * @return the requests encoded so far, for debugging.
+	 */
+	public String toString() {
+		try {
+			return new String(buffer.array(), 0, buffer.position(), "ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			// ISO-8859-1 is always available.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	//----------------
+	// Helpers
+	//----------------
+	/**
+	 * Encode a header line (or a part of it), one byte per character.
+	 */
+	public static byte[] encode(String s) {
+		byte bytes[] = new byte[s.length()];
+		encode(s, bytes, 0);
+		return bytes;
+	}
+
+	private static void encode(String s, byte dst[], int offset) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			dst[offset + i] = c < 0x100 ? (byte) c : (byte) '?';
+		}
+	}
+
+	private void put(byte b) {
+		ensureRemaining(1);
+		buffer.put(b);
+	}
+
+	private void put(byte bytes[]) {
+		ensureRemaining(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private void put(String s) {
+		int n = s.length();
+		ensureRemaining(n);
+		encode(s, buffer.array(), buffer.position());
+		buffer.position(buffer.position() + n);
+	}
+
+	private void ensureRemaining(int n) {
+		if (buffer.remaining() < n) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() << 1, buffer.position() + n));
+			buffer.flip();
+			grown.put(buffer);
+			buffer = grown;
+		}
+	}
+}
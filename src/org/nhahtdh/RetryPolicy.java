@@ -0,0 +1,127 @@
+package org.nhahtdh;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/**
+ * When and how long to wait before an idempotent request is sent again.
+ * <p>
+ * - Broken connections, timeouts and unknown hosts are retried. Errors of the
+ *   local file system and interruption are not.
+ * - 408, 429, 500, 502, 503 and 504 responses are retried.
+ * - The wait before the n-th retry is drawn uniformly between 0 and
+ *   baseDelay * 2^(n-1), capped at maxDelay (exponential backoff with full
+ *   jitter), so that the clients which failed together do not retry together.
+ * <p>
+ * The policy has no state, and can be shared by several clients.
+ *
+ * @author Hong Dai Thanh
+ *
+ */
+class RetryPolicy {
+	//--------------
+	// Constants
+	//--------------
+	public static final int DEFAULT_MAX_ATTEMPTS = 4;
+	public static final long DEFAULT_BASE_DELAY = 500; // ms
+	public static final long DEFAULT_MAX_DELAY = 30000; // ms
+
+	//----------------
+	// Data members
+	//----------------
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final long maxDelay;
+
+	//----------------
+	// Constructors
+	//----------------
+	public RetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * Create a retry policy.
+	 * @param maxAttempts
+	 *        Maximum number of attempts, including the first one.
+	 * @param baseDelay
+	 *        Upper bound of the wait before the first retry, in milliseconds.
+	 * @param maxDelay
+	 *        Upper bound of the wait before any retry, in milliseconds.
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("Invalid number of attempts: " + maxAttempts);
+		if (baseDelay < 0 || maxDelay < baseDelay)
+			throw new IllegalArgumentException("Invalid delays: " + baseDelay + ", " + maxDelay);
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	//----------------
+	// Accessors
+	//----------------
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @return whether a request which failed with the exception can be sent again.
+	 */
+	public boolean isRetryable(IOException e) {
+		// The request has been cancelled.
+		if (e instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted())
+			return false;
+		if (e instanceof SocketTimeoutException)
+			return true;
+		// Interrupted by the caller, or the local file cannot be written.
+		return !(e instanceof InterruptedIOException) && !(e instanceof FileNotFoundException);
+	}
+
+	/**
+	 * @return whether a request answered with the status code can be sent again.
+	 */
+	public boolean isRetryable(int statusCode) {
+		switch (statusCode) {
+		case 408: // Request Timeout
+		case 429: // Too Many Requests
+		case 500: // Internal Server Error
+		case 502: // Bad Gateway
+		case 503: // Service Unavailable
+		case 504: // Gateway Timeout
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Get the wait before a retry.
+	 * @param attempt
+	 *        Number of attempts made so far (1 before the first retry).
+	 * @return the wait in milliseconds.
+	 */
+	public long getDelay(int attempt) {
+		long bound = baseDelay;
+		for (int i = 1; i < attempt && bound < maxDelay; i++)
+			bound <<= 1;
+		return (long) (Math.random() * Math.min(bound, maxDelay));
+	}
+
+	/**
+	 * Wait before a retry.
+	 * @param attempt
+	 *        Number of attempts made so far (1 before the first retry).
+	 * @throws InterruptedIOException
+	 *         If the thread is interrupted while waiting.
+	 */
+	public void backoff(int attempt) throws InterruptedIOException {
+		try {
+			Thread.sleep(getDelay(attempt));
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting to retry");
+		}
+	}
+}
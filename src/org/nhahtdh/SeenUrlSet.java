@@ -0,0 +1,191 @@
+package org.nhahtdh;
+
+import java.net.*;
+
+/**
+ * Set of the URLs seen by the crawler, which can be shared by several threads.
+ * <p>
+ * URLs are canonicalised, so that the different spellings of the same URL are
+ * counted once, and only a 64-bit fingerprint of each URL is kept. The
+ * fingerprints are stored in open-addressing tables of primitive longs, split
+ * into segments with their own lock. Two different URLs may have the same
+ * fingerprint, but this is very unlikely for the number of links in a forum.
+ * 
+ * @author Hong Dai Thanh
+ *
+ */
+class SeenUrlSet {
+	//--------------
+	// Constants
+	//--------------
+	private static final int NUM_SEGMENTS = 16;
+	private static final int INITIAL_SEGMENT_CAPACITY = 64;
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
+	//----------------
+	// Data members
+	//----------------
+	private final Segment segments[];
+	
+	//----------------
+	// Constructors
+	//----------------
+	public SeenUrlSet() {
+		this.segments = new Segment[NUM_SEGMENTS];
+		for (int i = 0; i < NUM_SEGMENTS; i++)
+			this.segments[i] = new Segment();
+	}
+	
+	//----------------
+	// Mutators
+	//----------------
+	/**
+	 * Add the URL to the set.
+	 * @param url
+	 *        Absolute URL.
+	 * @return {@code true} if the URL has not been seen before.
+	 */
+	public boolean add(String url) {
+		long fingerprint = fingerprint(canonicalize(url));
+		return segmentFor(fingerprint).add(fingerprint);
+	}
+	
+	//----------------
+	// Accessors
+	//----------------
+	public boolean contains(String url) {
+		long fingerprint = fingerprint(canonicalize(url));
+		return segmentFor(fingerprint).contains(fingerprint);
+	}
+	
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments)
+			size += segment.size();
+		return size;
+	}
+	
+	private Segment segmentFor(long fingerprint) {
+		// The low bits pick the slot in the segment. Use the high bits for the segment.
+		return segments[(int) (fingerprint >>> 60) & (NUM_SEGMENTS - 1)];
+	}
+	
+	/**
+	 * Canonicalise the URL: lower case scheme and host, no default port, no
+	 * fragment, no dot segments in the path, "/" for an empty path and upper
+	 * case hexadecimal digits in percent-encoding. The query is kept as-is.
+	 * @param url
+	 *        Absolute URL.
+	 * @return the canonical URL, or the URL itself if it cannot be parsed.
+	 */
+	public static String canonicalize(String url) {
+		URI uri;
+		try {
+			uri = new URI(url).normalize();
+		} catch (URISyntaxException e) {
+			return url;
+		}
+		if (uri.isOpaque() || uri.getScheme() == null || uri.getRawAuthority() == null)
+			return url;
+		
+		String scheme = uri.getScheme().toLowerCase();
+		StringBuilder canonical = new StringBuilder(url.length());
+		canonical.append(scheme).append("://");
+		if (uri.getRawUserInfo() != null)
+			canonical.append(uri.getRawUserInfo()).append('@');
+		if (uri.getHost() != null) {
+			canonical.append(uri.getHost().toLowerCase());
+			int port = uri.getPort();
+			if (port != -1 && !(scheme.equals("http") && port == HttpClient.DEFAULT_HTTP_PORT_NUMBER)
+					&& !(scheme.equals("https") && port == HttpClient.DEFAULT_HTTPS_PORT_NUMBER))
+				canonical.append(':').append(port);
+		} else
+			// Registry-based authority.
+			canonical.append(uri.getRawAuthority().toLowerCase());
+		
+		String path = uri.getRawPath();
+		appendPercentUpperCase(canonical, path == null || path.length() == 0 ? "/" : path);
+		if (uri.getRawQuery() != null) {
+			canonical.append('?');
+			appendPercentUpperCase(canonical, uri.getRawQuery());
+		}
+		return canonical.toString();
+	}
+	
+	private static void appendPercentUpperCase(StringBuilder out, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			out.append(c);
+			if (c == '%' && i + 2 < s.length()) {
+				out.append(Character.toUpperCase(s.charAt(++i)));
+				out.append(Character.toUpperCase(s.charAt(++i)));
+			}
+		}
+	}
+	
+	/**
+	 * 64-bit FNV-1a hash of the characters of the string.
+	 */
+	static long fingerprint(String s) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+			hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+		}
+		// 0 marks an empty slot.
+		return hash == 0 ? 1 : hash;
+	}
+	
+	/**
+	 * Open-addressing hash table of fingerprints with linear probing.
+	 */
+	private static class Segment {
+		private long table[];
+		private int size;
+		
+		Segment() {
+			this.table = new long[INITIAL_SEGMENT_CAPACITY];
+		}
+		
+		synchronized boolean add(long fingerprint) {
+			if (!insert(table, fingerprint))
+				return false;
+			// Keep the load factor under 1/2.
+			if (++size * 2 > table.length)
+				rehash();
+			return true;
+		}
+		
+		synchronized boolean contains(long fingerprint) {
+			int mask = table.length - 1;
+			for (int i = (int) fingerprint & mask; table[i] != 0; i = (i + 1) & mask)
+				if (table[i] == fingerprint)
+					return true;
+			return false;
+		}
+		
+		synchronized int size() {
+			return size;
+		}
+		
+		private void rehash() {
+			long newTable[] = new long[table.length * 2];
+			for (long fingerprint : table)
+				if (fingerprint != 0)
+					insert(newTable, fingerprint);
+			table = newTable;
+		}
+		
+		private static boolean insert(long table[], long fingerprint) {
+			int mask = table.length - 1;
+			int i;
+			for (i = (int) fingerprint & mask; table[i] != 0; i = (i + 1) & mask)
+				if (table[i] == fingerprint)
+					return false;
+			table[i] = fingerprint;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package org.nhahtdh;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * Decoders of HTML character references and URL percent-encoding, in one pass
+ * over the input.
+ * <p>
+ * - Character references: decimal (&amp;#39;), hexadecimal (&amp;#x27;) and the
+ *   named references of HTML 4 (Latin-1, markup and the common typographic
+ *   ones). A reference must end with a semicolon; anything which is not a known
+ *   reference is kept as-is.
+ * - Percent-encoding: a run of %XX escapes is decoded as UTF-8. Malformed
+ *   sequences are decoded to U+FFFD, and % not followed by two hexadecimal
+ *   digits is kept as-is.
+ * <p>
+ * The input is returned unchanged (without copying) when there is nothing to decode.
+ *
+ * @author Hong Dai Thanh
+ *
+ */
+class TextDecoder {
+	//--------------
+	// Constants
+	//--------------
+	/** Longest name of a character reference, including # and x */
+	private static final int MAX_REFERENCE_LENGTH = 8;
+	private static final String URL_CHARSET = "UTF-8";
+
+	/** Named character references of HTML 4, Latin-1 set, from &amp;nbsp; (160) to &amp;yuml; (255) */
+	private static final String LATIN1_NAMES[] = {
+		"nbsp", "iexcl", "cent", "pound", "curren", "yen", "brvbar", "sect",
+		"uml", "copy", "ordf", "laquo", "not", "shy", "reg", "macr",
+		"deg", "plusmn", "sup2", "sup3", "acute", "micro", "para", "middot",
+		"cedil", "sup1", "ordm", "raquo", "frac14", "frac12", "frac34", "iquest",
+		"Agrave", "Aacute", "Acirc", "Atilde", "Auml", "Aring", "AElig", "Ccedil",
+		"Egrave", "Eacute", "Ecirc", "Euml", "Igrave", "Iacute", "Icirc", "Iuml",
+		"ETH", "Ntilde", "Ograve", "Oacute", "Ocirc", "Otilde", "Ouml", "times",
+		"Oslash", "Ugrave", "Uacute", "Ucirc", "Uuml", "Yacute", "THORN", "szlig",
+		"agrave", "aacute", "acirc", "atilde", "auml", "aring", "aelig", "ccedil",
+		"egrave", "eacute", "ecirc", "euml", "igrave", "iacute", "icirc", "iuml",
+		"eth", "ntilde", "ograve", "oacute", "ocirc", "otilde", "ouml", "divide",
+		"oslash", "ugrave", "uacute", "ucirc", "uuml", "yacute", "thorn", "yuml"
+	};
+
+	/** Other named character references */
+	private static final Object OTHER_REFERENCES[][] = {
+		{"quot", '"'}, {"amp", '&'}, {"apos", '\''}, {"lt", '<'}, {"gt", '>'},
+		{"ndash", '\u2013'}, {"mdash", '\u2014'}, {"lsquo", '\u2018'}, {"rsquo", '\u2019'},
+		{"ldquo", '\u201c'}, {"rdquo", '\u201d'}, {"bull", '\u2022'}, {"hellip", '\u2026'},
+		{"euro", '\u20ac'}, {"trade", '\u2122'}
+	};
+
+	private static final HashMap<String, Character> NAMED_REFERENCES = new HashMap<String, Character>();
+
+	static {
+		for (int i = 0; i < LATIN1_NAMES.length; i++)
+			NAMED_REFERENCES.put(LATIN1_NAMES[i], (char) (160 + i));
+		for (Object pair[] : OTHER_REFERENCES)
+			NAMED_REFERENCES.put((String) pair[0], (Character) pair[1]);
+	}
+
+	private TextDecoder() {
+		// Static methods only.
+	}
+
+	//----------------
+	// Decoders
+	//----------------
+	/**
+	 * Decode the character references in the text.
+	 * @param text
+	 *        Text from an HTML page.
+	 * @return the decoded text, or the text itself if it has no reference.
+	 */
+	public static String decodeHtml(String text) {
+		return decodeHtml(text, false);
+	}
+
+	/**
+	 * Decode the character references in a link taken from an HTML attribute, and
+	 * encode + as %20, so that the link can be resolved as a URI with the spaces
+	 * of the query intact.
+	 * @param link
+	 *        Value of an href, src or onclick attribute.
+	 * @return the decoded link, or the link itself if there is nothing to decode.
+	 */
+	public static String decodeLink(String link) {
+		return decodeHtml(link, true);
+	}
+
+	private static String decodeHtml(String text, boolean encodePlus) {
+		int length = text.length();
+		int i = 0;
+		// Fast path: find the first character to be decoded.
+		while (i < length) {
+			char c = text.charAt(i);
+			if (c == '&' || c == '+' && encodePlus)
+				break;
+			i++;
+		}
+		if (i == length)
+			return text;
+
+		StringBuilder out = new StringBuilder(length + 8);
+		out.append(text, 0, i);
+		while (i < length) {
+			char c = text.charAt(i);
+			if (c == '+' && encodePlus) {
+				out.append("%20");
+				i++;
+			} else if (c == '&')
+				i = appendReference(text, i, out);
+			else {
+				out.append(c);
+				i++;
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Decode the character reference at the given position.
+	 * @param start
+	 *        Position of the ampersand.
+	 * @return the position after the reference, or after the ampersand if there is
+	 * no valid reference (in which case the ampersand is copied as-is).
+	 */
+	private static int appendReference(String text, int start, StringBuilder out) {
+		// Only look for the semicolon within the longest reference, so that the decoding stays linear.
+		int end = -1, limit = Math.min(text.length(), start + MAX_REFERENCE_LENGTH + 2);
+		for (int i = start + 1; i < limit; i++)
+			if (text.charAt(i) == ';') {
+				end = i;
+				break;
+			}
+		if (end < 0 || end == start + 1) {
+			out.append('&');
+			return start + 1;
+		}
+
+		if (text.charAt(start + 1) == '#') {
+			int i = start + 2, radix = 10;
+			if (i < end && (text.charAt(i) == 'x' || text.charAt(i) == 'X')) {
+				radix = 16;
+				i++;
+			}
+			int codePoint = 0, digit;
+			for ( ; i < end && (digit = Character.digit(text.charAt(i), radix)) >= 0; i++)
+				codePoint = codePoint * radix + digit;
+			if (i == end && i > start + (radix == 16 ? 3 : 2) && codePoint > 0 && Character.isValidCodePoint(codePoint)) {
+				out.appendCodePoint(codePoint);
+				return end + 1;
+			}
+		} else {
+			Character c = NAMED_REFERENCES.get(text.substring(start + 1, end));
+			if (c != null) {
+				out.append(c.charValue());
+				return end + 1;
+			}
+		}
+
+		out.append('&');
+		return start + 1;
+	}
+
+	/**
+	 * Decode the percent-encoding of a URL, or of a part of it, as UTF-8.
+	 * + is not decoded, since it is only a space in form data.
+	 * @param URL
+	 *        The URL to be decoded.
+	 * @return the decoded URL, or the URL itself if it has no escape.
+	 */
+	public static String decodeURL(String URL) {
+		int i = URL.indexOf('%');
+		if (i < 0)
+			return URL;
+
+		int length = URL.length();
+		StringBuilder out = new StringBuilder(length);
+		out.append(URL, 0, i);
+		byte bytes[] = null;
+		while (i < length) {
+			char c = URL.charAt(i);
+			if (c != '%' || hexValue(URL, i) < 0) {
+				out.append(c);
+				i++;
+				continue;
+			}
+
+			// Collect the run of escapes, and decode it as a whole.
+			if (bytes == null)
+				bytes = new byte[(length - i) / 3];
+			int n = 0, b;
+			while (i < length && URL.charAt(i) == '%' && (b = hexValue(URL, i)) >= 0) {
+				bytes[n++] = (byte) b;
+				i += 3;
+			}
+			try {
+				out.append(new String(bytes, 0, n, URL_CHARSET));
+			} catch (UnsupportedEncodingException e) {
+				// UTF-8 is always available.
+				throw new IllegalStateException(e);
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return the value of the two hexadecimal digits after the % at the given
+	 * position, or -1 if they are not hexadecimal digits.
+	 */
+	private static int hexValue(String s, int i) {
+		if (i + 2 >= s.length())
+			return -1;
+		int high = Character.digit(s.charAt(i + 1), 16), low = Character.digit(s.charAt(i + 2), 16);
+		return high < 0 || low < 0 ? -1 : high << 4 | low;
+	}
+}
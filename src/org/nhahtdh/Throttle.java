@@ -0,0 +1,297 @@
+package org.nhahtdh;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.io.*;
+
+/**
+ * Limits the requests sent to the servers, so that parallel downloads do not
+ * trip the throttling of the server.
+ * <p>
+ * - A token bucket caps the rate of requests over all hosts (optional).
+ * - The number of requests in flight to each host is capped by a limit which
+ *   is adjusted by AIMD (additive increase, multiplicative decrease): the limit
+ *   grows by about 1 for every limit healthy responses, and is cut on 503 and
+ *   429, on timeouts and broken connections, and when the time to the response
+ *   header rises well above the lowest time seen. The limit settles around the
+ *   highest concurrency the server tolerates.
+ * - A Retry-After (in seconds) given with 503 or 429 pauses all requests to the host.
+ * <p>
+ * A permit is acquired before each request (or batch of pipelined requests)
+ * and released when the response has been read. The throttle is safe for
+ * multithreaded access.
+ *
+ * @author Hong Dai Thanh
+ *
+ */
+class Throttle {
+	//---------
+	// Debug
+	//---------
+	/*
+	 * 0 - Changes of the limit
+	 */
+	private static final boolean debug[] = {false};
+
+	//--------------
+	// Constants
+	//--------------
+	private static final double INITIAL_LIMIT = 2;
+	/** Factor of the limit on errors and timeouts */
+	private static final double ERROR_BACKOFF = 0.5;
+	/** Factor of the limit when the latency rises */
+	private static final double LATENCY_BACKOFF = 0.9;
+	/** Latency above this multiple of the baseline is taken as congestion */
+	private static final double LATENCY_TOLERANCE = 2.0;
+	/** Weight of a new sample in the baseline latency, when the sample is above it */
+	private static final double BASELINE_DRIFT = 0.01;
+	/** Longest pause honoured from Retry-After (ms) */
+	private static final long MAX_RETRY_AFTER = 120000;
+
+	//----------------
+	// Data members
+	//----------------
+	/** Maximum number of requests per second over all hosts, or 0 if not limited */
+	private final double maxRate;
+	/** Upper bound of the limit of each host */
+	private final int maxLimit;
+	private final ReentrantLock lock;
+	/** Signalled when a permit is released, or the limit or the pause of a host changes */
+	private final Condition changed;
+	private final HashMap<String, Host> hosts;
+	// Token bucket
+	private double tokens;
+	private long lastRefill;
+
+	//----------------
+	// Constructors
+	//----------------
+	/**
+	 * Create a throttle.
+	 * @param maxRate
+	 *        Maximum number of requests per second over all hosts, or 0 for no limit.
+	 * @param maxLimit
+	 *        Maximum number of requests in flight to the same host.
+	 */
+	public Throttle(double maxRate, int maxLimit) {
+		if (maxRate < 0)
+			throw new IllegalArgumentException("Invalid rate: " + maxRate);
+		if (maxLimit < 1)
+			throw new IllegalArgumentException("Invalid maximum number of requests per host: " + maxLimit);
+		this.maxRate = maxRate;
+		this.maxLimit = maxLimit;
+		this.lock = new ReentrantLock();
+		this.changed = lock.newCondition();
+		this.hosts = new HashMap<String, Host>();
+		// The bucket holds up to one second of requests.
+		this.tokens = Math.max(1, maxRate);
+		this.lastRefill = System.nanoTime();
+	}
+
+	//----------------
+	// Mutators
+	//----------------
+	/**
+	 * Wait until a request can be sent to the host.
+	 * @param host
+	 *        Host name.
+	 * @return the permit of the request, which must be released.
+	 * @throws InterruptedIOException
+	 */
+	public Permit acquire(String host) throws InterruptedIOException {
+		String key = host.toLowerCase();
+		lock.lock();
+		try {
+			Host state = hosts.get(key);
+			if (state == null)
+				hosts.put(key, state = new Host(Math.min(INITIAL_LIMIT, maxLimit)));
+
+			while (true) {
+				long now = System.nanoTime();
+				long waitTime;
+				if (state.pausedUntil - now > 0)
+					waitTime = state.pausedUntil - now;
+				else if (state.inFlight >= (int) state.limit)
+					waitTime = -1;
+				else if ((waitTime = takeToken(now)) == 0)
+					break;
+
+				try {
+					if (waitTime < 0)
+						changed.await();
+					else
+						changed.awaitNanos(waitTime);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for a permit to " + key);
+				}
+			}
+			state.inFlight++;
+			return new Permit(state);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take a token from the bucket. Must be called with the lock held.
+	 * @return 0 if a token is taken; otherwise, the time in nanoseconds until the next token.
+	 */
+	private long takeToken(long now) {
+		if (maxRate == 0)
+			return 0;
+		tokens = Math.min(Math.max(1, maxRate), tokens + (now - lastRefill) * maxRate / 1e9);
+		lastRefill = now;
+		if (tokens >= 1) {
+			tokens--;
+			return 0;
+		}
+		return Math.max(1, (long) ((1 - tokens) * 1e9 / maxRate));
+	}
+
+	//----------------
+	// Accessors
+	//----------------
+	/**
+	 * @return the current limit of requests in flight to the host.
+	 */
+	public int getLimit(String host) {
+		lock.lock();
+		try {
+			Host state = hosts.get(host.toLowerCase());
+			return state == null ? (int) Math.min(INITIAL_LIMIT, maxLimit) : (int) state.limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Congestion state of a host. Guarded by the lock of the throttle.
+	 */
+	private static class Host {
+		double limit;
+		int inFlight;
+		/** Lowest time to response header seen, slowly drifting up (ns). 0 if no sample yet. */
+		double baseline;
+		/** Time of the last decrease of the limit (ns) */
+		long lastDecrease;
+		/** Time until which no request is sent (ns) */
+		long pausedUntil;
+
+		Host(double limit) {
+			this.limit = limit;
+			this.lastDecrease = System.nanoTime();
+			this.pausedUntil = lastDecrease;
+		}
+	}
+
+	/**
+	 * Permit of one request, or one batch of pipelined requests.
+	 */
+	class Permit {
+		private final Host state;
+		/** Time the request is sent, or the previous response of the batch is received (ns) */
+		private long start;
+		private boolean released;
+
+		Permit(Host state) {
+			this.state = state;
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * Report the response header received for the request, or for the next
+		 * request of the batch.
+		 * @param statusCode
+		 *        Status code of the response.
+		 * @param retryAfter
+		 *        Value of the Retry-After header field, or null.
+		 */
+		public void received(int statusCode, String retryAfter) {
+			long now = System.nanoTime();
+			long latency = now - start;
+			start = now;
+			lock.lock();
+			try {
+				if (statusCode == 503 || statusCode == 429) {
+					pause(retryAfter, now);
+					decrease(ERROR_BACKOFF, now);
+				} else if (statusCode == 504)
+					decrease(ERROR_BACKOFF, now);
+				else if (statusCode / 100 != 5) {
+					// Other server errors say nothing about the load, and are answered too fast to be a baseline.
+					if (state.baseline > 0 && latency > state.baseline * LATENCY_TOLERANCE)
+						decrease(LATENCY_BACKOFF, now);
+					else
+						increase();
+
+					if (state.baseline == 0 || latency < state.baseline)
+						state.baseline = latency;
+					else
+						state.baseline += (latency - state.baseline) * BASELINE_DRIFT;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Report that the request timed out, or that the connection broke.
+		 */
+		public void failed() {
+			lock.lock();
+			try {
+				decrease(ERROR_BACKOFF, System.nanoTime());
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Release the permit when the response has been read (or abandoned).
+		 */
+		public void release() {
+			lock.lock();
+			try {
+				if (released)
+					return;
+				released = true;
+				state.inFlight--;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void increase() {
+			if (state.limit < maxLimit) {
+				state.limit = Math.min(maxLimit, state.limit + 1 / state.limit);
+				changed.signalAll();
+			}
+		}
+
+		private void decrease(double factor, long now) {
+			/*
+			 * The responses to the requests already in flight carry the same
+			 * signal. Decrease at most once per round trip, so that one burst of
+			 * errors does not collapse the limit.
+			 */
+			if (now - state.lastDecrease < state.baseline)
+				return;
+			state.limit = Math.max(1, state.limit * factor);
+			state.lastDecrease = now;
+			if (debug[0])
+				System.out.println("Throttle: limit " + (int) state.limit);
+		}
+
+		private void pause(String retryAfter, long now) {
+			if (retryAfter == null || !retryAfter.trim().matches("\\d{1,6}"))
+				return;
+			long delay = Math.min(MAX_RETRY_AFTER, Long.parseLong(retryAfter.trim()) * 1000);
+			long until = now + TimeUnit.MILLISECONDS.toNanos(delay);
+			if (until - state.pausedUntil > 0)
+				state.pausedUntil = until;
+			changed.signalAll();
+		}
+	}
+}
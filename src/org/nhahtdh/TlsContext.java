@@ -0,0 +1,255 @@
+package org.nhahtdh;
+
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.net.*;
+import java.security.*;
+
+import javax.net.ssl.*;
+
+/**
+ * The SSL context of the secured connections, with the metrics of their
+ * handshakes.
+ * <p>
+ * - Sockets and engines are created for the (host, port) of the server, so
+ *   that a new connection to a server resumes the session of an earlier
+ *   connection (abbreviated handshake) instead of doing a full handshake.
+ *   The sessions are kept in the client session cache of the context, whose
+ *   size and timeout are set here.
+ * - The handshake is done as soon as the connection is opened. The number of
+ *   handshakes, the number of resumed sessions and the time spent are counted.
+ * - A custom {@code SSLContext} can be given, e.g. one trusting the
+ *   self-signed certificate of a test server (see {@link #trusting(KeyStore)}).
+ * <p>
+ * The context is safe for multithreaded access.
+ *
+ * @author Hong Dai Thanh
+ *
+ */
+class TlsContext {
+	//---------
+	// Debug
+	//---------
+	/*
+	 * 0 - Handshakes
+	 */
+	private static final boolean debug[] = {false};
+
+	//--------------
+	// Constants
+	//--------------
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 256;
+	public static final int DEFAULT_SESSION_TIMEOUT = 3600; // s
+	private static final String PROTOCOL = "TLS";
+
+	/** Context shared by the pools and clients which are not given a context explicitly */
+	private static TlsContext defaultContext;
+
+	//----------------
+	// Data members
+	//----------------
+	private final SSLContext context;
+	private final SSLSocketFactory socketFactory;
+	// Metrics
+	private final AtomicLong handshakes;
+	private final AtomicLong resumed;
+	private final AtomicLong handshakeTime; // ns
+
+	//----------------
+	// Constructors
+	//----------------
+	/**
+	 * Create a context with the default key and trust managers, and the default
+	 * size and timeout of the session cache.
+	 * @throws IOException
+	 *         If no TLS implementation is available.
+	 */
+	public TlsContext() throws IOException {
+		this(newContext(null, null), DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+	}
+
+	/**
+	 * Create a context on a custom {@code SSLContext}, with the default size
+	 * and timeout of the session cache.
+	 * @param context
+	 *        An initialized SSL context.
+	 */
+	public TlsContext(SSLContext context) {
+		this(context, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+	}
+
+	/**
+	 * Create a context on a custom {@code SSLContext}.
+	 * @param context
+	 *        An initialized SSL context.
+	 * @param sessionCacheSize
+	 *        Maximum number of sessions kept for resumption, or 0 for no limit.
+	 * @param sessionTimeout
+	 *        Time in seconds a session can be resumed, or 0 for no limit.
+	 */
+	public TlsContext(SSLContext context, int sessionCacheSize, int sessionTimeout) {
+		if (sessionCacheSize < 0 || sessionTimeout < 0)
+			throw new IllegalArgumentException("Invalid session cache: " + sessionCacheSize + ", " + sessionTimeout);
+		this.context = context;
+		SSLSessionContext sessions = context.getClientSessionContext();
+		if (sessions != null) {
+			sessions.setSessionCacheSize(sessionCacheSize);
+			sessions.setSessionTimeout(sessionTimeout);
+		}
+		this.socketFactory = context.getSocketFactory();
+		this.handshakes = new AtomicLong();
+		this.resumed = new AtomicLong();
+		this.handshakeTime = new AtomicLong();
+	}
+
+	/**
+	 * @return the context shared by the pools and clients which are not given a context.
+	 * @throws IOException
+	 *         If no TLS implementation is available.
+	 */
+	public static synchronized TlsContext getDefault() throws IOException {
+		if (defaultContext == null)
+			defaultContext = new TlsContext();
+		return defaultContext;
+	}
+
+	/**
+	 * Create an SSL context which trusts the certificates in the key store only,
+	 * e.g. the self-signed certificate of a test server.
+	 * @param trustStore
+	 *        The trusted certificates.
+	 * @return an initialized SSL context.
+	 * @throws IOException
+	 *         If the context cannot be created with the key store.
+	 */
+	public static SSLContext trusting(KeyStore trustStore) throws IOException {
+		try {
+			TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			factory.init(trustStore);
+			return newContext(null, factory.getTrustManagers());
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cannot trust the key store: " + e.getMessage());
+		}
+	}
+
+	private static SSLContext newContext(KeyManager keyManagers[], TrustManager trustManagers[]) throws IOException {
+		try {
+			SSLContext context = SSLContext.getInstance(PROTOCOL);
+			context.init(keyManagers, trustManagers, null);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("No " + PROTOCOL + " context: " + e.getMessage());
+		}
+	}
+
+	//----------------
+	// Operations
+	//----------------
+	/**
+	 * Open a secured connection to the server, and do the handshake.
+	 * @param host
+	 *        Host name.
+	 * @param port
+	 *        Port number.
+	 * @param connectTimeout
+	 *        Time in milliseconds to wait for the connection to be established.
+	 * @param readTimeout
+	 *        Time in milliseconds a read (including the handshake) waits for data.
+	 * @return the connected socket.
+	 * @throws IOException
+	 */
+	public SSLSocket createSocket(String host, int port, int connectTimeout, int readTimeout) throws IOException {
+		Socket plain = new Socket();
+		SSLSocket socket;
+		try {
+			plain.connect(new InetSocketAddress(host, port), connectTimeout);
+			plain.setSoTimeout(readTimeout);
+			// Layered on the connected socket with the host name, so that the session can be resumed.
+			socket = (SSLSocket) socketFactory.createSocket(plain, host, port, true);
+		} catch (IOException e) {
+			plain.close();
+			throw e;
+		}
+		try {
+			socket.setSoTimeout(readTimeout);
+			long start = System.nanoTime(), startTime = System.currentTimeMillis();
+			socket.startHandshake();
+			handshakeFinished(socket.getSession(), start, startTime);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	/**
+	 * Create the engine of a non-blocking secured connection to the server, in
+	 * client mode. The caller does the handshake, and reports it with
+	 * {@link #handshakeFinished(SSLSession, long, long)}.
+	 * @param host
+	 *        Host name.
+	 * @param port
+	 *        Port number.
+	 */
+	public SSLEngine createEngine(String host, int port) {
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		return engine;
+	}
+
+	/**
+	 * Count a finished handshake.
+	 * @param session
+	 *        The session negotiated by the handshake.
+	 * @param start
+	 *        Value of {@code System.nanoTime()} when the handshake started.
+	 * @param startTime
+	 *        Value of {@code System.currentTimeMillis()} when the handshake started.
+	 */
+	void handshakeFinished(SSLSession session, long start, long startTime) {
+		long time = System.nanoTime() - start;
+		handshakes.incrementAndGet();
+		handshakeTime.addAndGet(time);
+		// A resumed session was created by an earlier handshake.
+		boolean isResumed = session.getCreationTime() < startTime;
+		if (isResumed)
+			resumed.incrementAndGet();
+		if (debug[0])
+			System.out.println((isResumed ? "Resumed session with " : "Full handshake with ") + session.getPeerHost()
+				+ ":" + session.getPeerPort() + " (" + session.getProtocol() + ") in " + time / 1000000 + " ms");
+	}
+
+	//----------------
+	// Accessors
+	//----------------
+	public SSLContext getContext() {
+		return context;
+	}
+
+	/**
+	 * @return the number of handshakes done, including the resumed sessions.
+	 */
+	public long getHandshakeCount() {
+		return handshakes.get();
+	}
+
+	/**
+	 * @return the number of handshakes which resumed an earlier session.
+	 */
+	public long getResumedCount() {
+		return resumed.get();
+	}
+
+	/**
+	 * @return the total time spent in handshakes, in milliseconds.
+	 */
+	public long getHandshakeTime() {
+		return handshakeTime.get() / 1000000;
+	}
+
+	public String toString() {
+		long count = handshakes.get();
+		return "TLS handshakes: " + count + " (" + resumed.get() + " resumed), "
+			+ (count == 0 ? 0 : handshakeTime.get() / count / 1000000) + " ms on average";
+	}
+}
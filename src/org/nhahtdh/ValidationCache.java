@@ -0,0 +1,177 @@
+package org.nhahtdh;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * On-disk cache of the validators (ETag and Last-Modified) of the files downloaded,
+ * keyed by URL and folder of the file. The HTTP client sends the validators with
+ * the next request of the same URL to the same folder, and the server answers 304
+ * Not Modified without body if the file has not changed, in which case the file
+ * downloaded earlier is used. A URL downloaded to another folder (e.g. the same
+ * image in another forum) has its own entry, so that a file is never taken from
+ * the folder of another download.
+ * <p>
+ * Each line of the cache file is the URL, ETag, Last-Modified and path of the file,
+ * separated by tabs. The cache is safe for multithreaded access.
+ * 
+ * @author Hong Dai Thanh
+ *
+ */
+class ValidationCache {
+	//---------
+	// Debug
+	//---------
+	/*
+	 * 0 - Cache hit and update
+	 */
+	private static final boolean debug[] = {false};
+	
+	//--------------
+	// Constants
+	//--------------
+	private static final String CACHE_CHARSET = "UTF-8";
+	
+	//----------------
+	// Data members
+	//----------------
+	private final File file;
+	private final HashMap<String, Entry> entries;
+	private boolean modified;
+	
+	//----------------
+	// Constructors
+	//----------------
+	/**
+	 * Load the cache from the given file. An empty cache is created if the file
+	 * does not exist.
+	 * @param path
+	 *        Path of the cache file.
+	 * @throws IOException
+	 */
+	public ValidationCache(String path) throws IOException {
+		this.file = new File(path);
+		this.entries = new HashMap<String, Entry>();
+		if (!file.exists())
+			return;
+		
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), CACHE_CHARSET));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String fields[] = line.split("\t", -1);
+				// Ignore malformed lines. The file will be downloaded again.
+				if (fields.length == 4) {
+					Entry entry = new Entry(fields[0], emptyToNull(fields[1]), emptyToNull(fields[2]), new File(fields[3]));
+					entries.put(getKey(entry.URL, entry.file.getAbsoluteFile().getParentFile()), entry);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	//----------------
+	// Mutators
+	//----------------
+	/**
+	 * Record the validators of a downloaded file. Nothing is recorded if the
+	 * server gives no validator.
+	 * @param URL
+	 *        The URL of the file.
+	 * @param eTag
+	 *        Value of ETag header field, or null.
+	 * @param lastModified
+	 *        Value of Last-Modified header field, or null.
+	 * @param receivedFile
+	 *        The file the response body is written to. The entry is for the
+	 *        folder of the file.
+	 */
+	public synchronized void put(String URL, String eTag, String lastModified, File receivedFile) {
+		String key = getKey(URL, receivedFile.getAbsoluteFile().getParentFile());
+		if (eTag == null && lastModified == null) {
+			if (entries.remove(key) != null)
+				modified = true;
+			return;
+		}
+		entries.put(key, new Entry(URL, eTag, lastModified, receivedFile));
+		modified = true;
+		if (debug[0])
+			System.out.println("Validators of " + URL + " cached: " + eTag + " " + lastModified);
+	}
+	
+	/**
+	 * Write the cache to disk, if modified.
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (!modified)
+			return;
+		File tempFile = new File(file.getPath() + ".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), CACHE_CHARSET));
+		try {
+			for (Entry entry : entries.values())
+				out.write(entry.URL + "\t" + nullToEmpty(entry.eTag) + "\t" + nullToEmpty(entry.lastModified) + "\t" + entry.file.getPath() + "\n");
+		} finally {
+			out.close();
+		}
+		// renameTo does not replace an existing file on all platforms.
+		if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+			throw new IOException("Cannot write " + file.getPath());
+		modified = false;
+	}
+	
+	//----------------
+	// Accessors
+	//----------------
+	/**
+	 * Get the cache entry of the URL downloaded to the folder. Entries whose file
+	 * has been removed from disk are ignored, since there is nothing to revalidate.
+	 * @param URL
+	 *        The URL of the file.
+	 * @param folder
+	 *        The folder the file is downloaded to.
+	 * @return the entry, or null if the URL is not cached for the folder.
+	 */
+	public synchronized Entry get(String URL, String folder) {
+		Entry entry = entries.get(getKey(URL, new File(folder).getAbsoluteFile()));
+		if (entry != null && !entry.file.exists())
+			return null;
+		if (debug[0] && entry != null)
+			System.out.println("Validators of " + URL + " found: " + entry.eTag + " " + entry.lastModified);
+		return entry;
+	}
+	
+	/**
+	 * The key of an entry. A tab is not valid in a URL, nor written in a path by
+	 * the crawler.
+	 */
+	private static String getKey(String URL, File folder) {
+		return folder.getPath() + "\t" + URL;
+	}
+	
+	private static String emptyToNull(String s) {
+		return s.isEmpty() ? null : s;
+	}
+	
+	private static String nullToEmpty(String s) {
+		return s == null ? "" : s;
+	}
+	
+	/**
+	 * Validators and file of a cached URL.
+	 */
+	static class Entry {
+		final String URL;
+		final String eTag;
+		final String lastModified;
+		final File file;
+		
+		Entry(String URL, String eTag, String lastModified, File file) {
+			this.URL = URL;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+			this.file = file;
+		}
+	}
+}
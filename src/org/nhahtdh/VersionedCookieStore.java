@@ -0,0 +1,167 @@
+package org.nhahtdh;
+
+import java.util.*;
+import java.net.*;
+
+/**
+ * Cookie store which keeps the encoded Cookie field of the requests, until the
+ * cookies change.
+ * <p>
+ * All operations are delegated to the wrapped store. Every change of the store
+ * through this wrapper moves it to a new version, which drops the encoded
+ * fields. A field is also encoded again when one of its cookies has expired.
+ * All clients sharing the cookies must share this wrapper, not the wrapped
+ * store, for the encoded fields to stay correct.
+ * <p>
+ * The store is safe for multithreaded access if the wrapped store is.
+ *
+ * @author Hong Dai Thanh
+ *
+ */
+class VersionedCookieStore implements CookieStore {
+	//--------------
+	// Constants
+	//--------------
+	private static final byte COOKIE_FIELD[] = RequestEncoder.encode("Cookie: ");
+	private static final byte COOKIE_SEPARATOR[] = RequestEncoder.encode("; ");
+	private static final byte CRLF[] = {'\r', '\n'};
+	/** Maximum number of encoded fields kept */
+	private static final int MAX_CACHED_FIELDS = 256;
+
+	//----------------
+	// Data members
+	//----------------
+	private final CookieStore store;
+	private long version;
+	/** Encoded fields, by URI without query */
+	private final HashMap<String, Field> fields;
+
+	//----------------
+	// Constructors
+	//----------------
+	public VersionedCookieStore(CookieStore store) {
+		this.store = store;
+		this.fields = new HashMap<String, Field>();
+	}
+
+	//----------------
+	// Mutators
+	//----------------
+	public void add(URI uri, HttpCookie cookie) {
+		store.add(uri, cookie);
+		changed();
+	}
+
+	public boolean remove(URI uri, HttpCookie cookie) {
+		boolean removed = store.remove(uri, cookie);
+		if (removed)
+			changed();
+		return removed;
+	}
+
+	public boolean removeAll() {
+		boolean removed = store.removeAll();
+		changed();
+		return removed;
+	}
+
+	private synchronized void changed() {
+		version++;
+		fields.clear();
+	}
+
+	//----------------
+	// Accessors
+	//----------------
+	public List<HttpCookie> get(URI uri) {
+		return store.get(uri);
+	}
+
+	public List<HttpCookie> getCookies() {
+		return store.getCookies();
+	}
+
+	public List<URI> getURIs() {
+		return store.getURIs();
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Get the Cookie field of a request to the URI.
+	 * @return the encoded field, including the line terminator, or null if no
+	 * cookie is sent to the URI. The array must not be modified.
+	 */
+	public byte[] getCookieLine(URI uri) {
+		String key = uri.getScheme() + "://" + uri.getRawAuthority() + uri.getRawPath();
+		long version;
+		synchronized (this) {
+			Field field = fields.get(key);
+			if (field != null && !field.hasExpired())
+				return field.line;
+			version = this.version;
+		}
+
+		List<HttpCookie> cookies = store.get(uri);
+		Field field = new Field(cookies, encode(cookies));
+		synchronized (this) {
+			// Keep the field only if the cookies have not changed in the meantime.
+			if (version == this.version) {
+				if (fields.size() >= MAX_CACHED_FIELDS)
+					fields.clear();
+				fields.put(key, field);
+			}
+		}
+		return field.line;
+	}
+
+	/**
+	 * Encode the Cookie field with the cookies.
+	 * @return the encoded field, or null if there is no cookie.
+	 */
+	static byte[] encode(List<HttpCookie> cookies) {
+		if (cookies.isEmpty())
+			return null;
+		byte values[][] = new byte[cookies.size()][];
+		int length = COOKIE_FIELD.length + CRLF.length + COOKIE_SEPARATOR.length * (values.length - 1);
+		for (int i = 0; i < values.length; i++)
+			length += (values[i] = RequestEncoder.encode(cookies.get(i).toString())).length;
+
+		byte line[] = new byte[length];
+		int offset = 0;
+		System.arraycopy(COOKIE_FIELD, 0, line, offset, COOKIE_FIELD.length);
+		offset += COOKIE_FIELD.length;
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				System.arraycopy(COOKIE_SEPARATOR, 0, line, offset, COOKIE_SEPARATOR.length);
+				offset += COOKIE_SEPARATOR.length;
+			}
+			System.arraycopy(values[i], 0, line, offset, values[i].length);
+			offset += values[i].length;
+		}
+		System.arraycopy(CRLF, 0, line, offset, CRLF.length);
+		return line;
+	}
+
+	/**
+	 * Encoded Cookie field, with the cookies it is made of.
+	 */
+	private static class Field {
+		final List<HttpCookie> cookies;
+		final byte line[];
+
+		Field(List<HttpCookie> cookies, byte line[]) {
+			this.cookies = cookies;
+			this.line = line;
+		}
+
+		boolean hasExpired() {
+			for (HttpCookie cookie : cookies)
+				if (cookie.hasExpired())
+					return true;
+			return false;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package org.nhahtdh;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+
+import javax.net.ssl.*;
+
+/**
+ * Test of the session resumption of TlsContext: two connections are opened
+ * through one context to a local server with a self-signed key, and the
+ * handshake of the second connection must be counted as resumed.
+ * <p>
+ * The key is generated by the keytool of the running JRE. Run with:
+ * <pre>java -cp bin org.nhahtdh.TlsContextTest</pre>
+ *
+ * @author Hong Dai Thanh
+ *
+ */
+public class TlsContextTest {
+	//--------------
+	// Constants
+	//--------------
+	private static final String HOST = "127.0.0.1";
+	private static final String ALIAS = "test";
+	private static final String PASSWORD = "changeit";
+	private static final int NUM_CONNECTIONS = 2;
+	private static final int TIMEOUT = 10000; // ms
+
+	public static void main(String args[]) throws Exception {
+		File keyStoreFile = File.createTempFile("tlscontexttest", ".jks");
+		// keytool refuses to write over an existing file.
+		keyStoreFile.delete();
+		try {
+			KeyStore keyStore = generateKeyStore(keyStoreFile);
+
+			// The client trusts the self-signed certificate only.
+			KeyStore trustStore = KeyStore.getInstance("JKS");
+			trustStore.load(null, null);
+			trustStore.setCertificateEntry(ALIAS, keyStore.getCertificate(ALIAS));
+			TlsContext tlsContext = new TlsContext(TlsContext.trusting(trustStore));
+
+			final SSLServerSocket server = createServerSocket(keyStore);
+			Thread serverThread = new Thread(new Runnable() {
+				public void run() {
+					serve(server);
+				}
+			}, "TlsContextTest-server");
+			serverThread.start();
+			try {
+				for (int i = 0; i < NUM_CONNECTIONS; i++) {
+					// The session creation time is in milliseconds. Keep the handshakes apart.
+					if (i > 0)
+						Thread.sleep(10);
+					SSLSocket socket = tlsContext.createSocket(HOST, server.getLocalPort(), TIMEOUT, TIMEOUT);
+					try {
+						// The byte sent by the server comes after the session ticket of TLS 1.3, if any.
+						if (socket.getInputStream().read() < 0)
+							throw new AssertionError("Connection " + (i + 1) + " closed by the server.");
+					} finally {
+						socket.close();
+					}
+				}
+			} finally {
+				server.close();
+				serverThread.join(TIMEOUT);
+			}
+
+			System.out.println(tlsContext);
+			check(tlsContext.getHandshakeCount() == NUM_CONNECTIONS, "Handshakes: " + tlsContext.getHandshakeCount() + ", expected " + NUM_CONNECTIONS);
+			check(tlsContext.getResumedCount() == NUM_CONNECTIONS - 1, "Resumed handshakes: " + tlsContext.getResumedCount() + ", expected " + (NUM_CONNECTIONS - 1));
+			System.out.println("OK");
+		} finally {
+			keyStoreFile.delete();
+		}
+	}
+
+	/**
+	 * Generate a key pair with a self-signed certificate with the keytool of
+	 * the running JRE, and load it.
+	 */
+	private static KeyStore generateKeyStore(File file) throws Exception {
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		ProcessBuilder builder = new ProcessBuilder(keytool, "-genkeypair", "-alias", ALIAS, "-keyalg", "RSA",
+			"-keysize", "2048", "-dname", "CN=" + HOST, "-validity", "1", "-storetype", "JKS",
+			"-keystore", file.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD);
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		// Drain the output, so that keytool does not block on a full pipe.
+		StringBuilder output = new StringBuilder();
+		BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+				output.append(line).append('\n');
+		} finally {
+			in.close();
+		}
+		check(process.waitFor() == 0, "keytool failed:\n" + output);
+
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		InputStream keyStoreIn = new FileInputStream(file);
+		try {
+			keyStore.load(keyStoreIn, PASSWORD.toCharArray());
+		} finally {
+			keyStoreIn.close();
+		}
+		return keyStore;
+	}
+
+	private static SSLServerSocket createServerSocket(KeyStore keyStore) throws Exception {
+		KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		factory.init(keyStore, PASSWORD.toCharArray());
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(factory.getKeyManagers(), null, null);
+		return (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0, NUM_CONNECTIONS, InetAddress.getByName(HOST));
+	}
+
+	/**
+	 * Accept the connections until the server socket is closed. Each client is
+	 * sent one byte, then the connection is closed when the client closes it.
+	 */
+	private static void serve(SSLServerSocket server) {
+		while (!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				try {
+					socket.setSoTimeout(TIMEOUT);
+					OutputStream out = socket.getOutputStream();
+					out.write('!');
+					out.flush();
+					InputStream in = socket.getInputStream();
+					while (in.read() >= 0)
+						;
+				} finally {
+					socket.close();
+				}
+			} catch (IOException e) {
+				// Closed by the test, or the client has gone away.
+			}
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}